@@ -21,6 +21,7 @@ package eu.unitn.disi.db.exemplar.commands.manages;
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
 import eu.unitn.disi.db.command.global.LoaderCommand;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
 import eu.unitn.disi.db.grava.graphs.BigMultigraph;
 import eu.unitn.disi.db.mutilities.StringUtils;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
@@ -38,7 +39,11 @@ public class BigMultigraphLoader extends LoaderCommand {
     @Override
     protected void execute() throws ExecutionException {
         try {
-            loadedObject = new BigMultigraph(graphPath + "-sin.graph", graphPath + "-sout.graph", StringUtils.countLines((graphPath + "-sin.graph")));
+            if (MappedMultigraph.isStored(graphPath)) {
+                loadedObject = new MappedMultigraph(MappedMultigraph.imagePath(graphPath));
+            } else {
+                loadedObject = new BigMultigraph(graphPath + "-sin.graph", graphPath + "-sout.graph", StringUtils.countLines((graphPath + "-sin.graph")));
+            }
         } catch (ParseException | IOException ex) {
             throw new ExecutionException(ex);
         }
@@ -55,7 +60,7 @@ public class BigMultigraphLoader extends LoaderCommand {
 
     @Override
     protected String commandDescription() {
-        return "Load a big multigraph into main memory";
+        return "Load a big multigraph into main memory, or map its binary image when available";
     }
 
 }
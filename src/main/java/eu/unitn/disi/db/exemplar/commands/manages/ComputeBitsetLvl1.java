@@ -25,27 +25,33 @@ package eu.unitn.disi.db.exemplar.commands.manages;
 
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.exemplar.core.storage.NodeSignatureIndex;
 import eu.unitn.disi.db.exemplar.core.storage.SetIndex;
+import eu.unitn.disi.db.exemplar.core.storage.SignatureBuilder;
+import eu.unitn.disi.db.exemplar.core.storage.SignatureStore;
 import eu.unitn.disi.db.exemplar.core.storage.StorableTable;
-import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.exemplar.core.storage.TableFile;
 import eu.unitn.disi.db.mutilities.Pair;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +62,8 @@ import java.util.logging.Logger;
 public class ComputeBitsetLvl1 extends GraphCommand {
 
     private boolean runTest = false;
+    private int shardSize = 1_000_000;
+    private boolean spill = false;
 
     @Override
     @SuppressWarnings("unchecked")
@@ -103,104 +111,81 @@ public class ComputeBitsetLvl1 extends GraphCommand {
                 watch.stop();
                 info("List of %s nodes build in %s ms", graphNodes.length, watch.getElapsedTimeMillis());
                 watch.reset();
-                List<Long> labels = new ArrayList<>(labelFrequencies.keySet());
-                Collections.sort(labels);
-                HashMap<Long, Integer> positions = new HashMap<>(labels.size() * 4 / 3);
-                idx = 0;
-                for (Long l : labels) {
-                    positions.put(l, idx);
-                    idx++;
-                }
-                int numLabels = labels.size();
-                info("List of %s labels build in %s ms", labels.size(), watch.getElapsedTimeMillis());
-
-                HashMap<Set<Integer>, Integer> bits = new HashMap<>(graphNodes.length / 100);
-                HashSet<Integer> bb;
-                Iterator<Edge> it;
-
-                long edges = 0;
-                long lastLb;
-                long lbl;
-                int numLargeNodes = 0;
-                int clusterId = 0;
-                int nodeIndex = 0;
-                bb = new HashSet<>(numLabels/10); // This will be re-initialized at the end of the loop
-                for (long node : graphNodes) {
-                    if (graph.degreeOf(node) > 100_000) {
-                        info("Processing large node with %s edges", graph.degreeOf(node));
-                        numLargeNodes++;
-                    }
+                watch.start();
+                Map<Long, Integer> positions = SignatureBuilder.labelPositions(labelFrequencies.keySet());
+                info("List of %s labels build in %s ms", positions.size(), watch.getElapsedTimeMillis());
+                watch.reset();
+                watch.start();
 
-                    it = graph.outgoingEdgesIteratorOf(node);
-                    lastLb = -1;
-                    while (it.hasNext()) {
-                        lbl = it.next().getLabel();
-                        if (lbl != lastLb) {
-                            bb.add(positions.get(lbl));
-                            lastLb = lbl;
+                int shardSize = Math.max(1, this.shardSize);
+                int numShards = (graphNodes.length + shardSize - 1) / shardSize;
+                int numThreads = Math.max(1, Math.min(this.threads, numShards));
+                info("Computing signatures of %s shards with %s threads", numShards, numThreads);
+                ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+                List<Future<Object>> shards = new ArrayList<>(numShards);
+                ThreadLocal<SignatureBuilder> builders = ThreadLocal.withInitial(() -> new SignatureBuilder(graph, positions));
+                for (int s = 0; s < numShards; s++) {
+                    final int shard = s;
+                    final int from = s * shardSize;
+                    final int to = Math.min(graphNodes.length, from + shardSize);
+                    shards.add(pool.submit(() -> {
+                        SignatureBuilder.Shard computed = builders.get().build(graphNodes, from, to);
+                        if (!this.spill) {
+                            return computed;
                         }
-                        edges++;
-                    }
-                    it = graph.incomingEdgesIteratorOf(node);
-                    lastLb = -1;
-                    while (it.hasNext()) {
-                        lbl = it.next().getLabel();
-                        if (lbl != lastLb) {
-                            bb.add(numLabels + positions.get(lbl));
-                            lastLb = lbl;
+                        File spilled = shardFile(shard);
+                        computed.spill(spilled);
+                        return spilled;
+                    }));
+                }
+                pool.shutdown();
+
+                // Merging in shard order assigns the same ids of a sequential scan
+                SignatureBuilder.Dictionary signatures = new SignatureBuilder.Dictionary();
+                try {
+                    for (int s = 0; s < numShards; s++) {
+                        Object result = shards.get(s).get();
+                        SignatureBuilder.Shard shard;
+                        if (result instanceof File) {
+                            shard = SignatureBuilder.Shard.read((File) result);
+                            ((File) result).delete();
+                        } else {
+                            shard = (SignatureBuilder.Shard) result;
                         }
-                        edges++;
-                    }
-                    Integer bx = bits.get(bb);
-                    if (bx == null) {
-                        bits.put(bb, clusterId);
-                        bx = clusterId;
-                        clusterId++;
-                        bb = new HashSet<>(numLabels/10);
-                    } else {
-                        bb.clear();
+                        signatures.merge(shard, graphClusters, s * shardSize);
+                        shards.set(s, null);
+                        info("Merged shard %s of %s with %s signatures, current size %s", s + 1, numShards, shard.size(), signatures.size());
                     }
-                    graphClusters[nodeIndex] = bx;
-                    nodeIndex++;
-                    if (nodeIndex > 0 && nodeIndex % 5_000_000 == 0) {
-                        info("Processed %s nodes (%s large) and %s edges, current size %s", nodeIndex, numLargeNodes, edges, bits.size());
+                } finally {
+                    pool.shutdownNow();
+                    for (int s = 0; s < numShards; s++) {
+                        shardFile(s).delete();
                     }
                 }
+                watch.stop();
+                info("Computed %s signatures in %s ms", signatures.size(), watch.getElapsedTimeMillis());
 
-                bitsets = new ArrayList<>(bits.size());
-                for (int i = 0; i < bits.size(); i++) {
-                    bitsets.add(null);                    
-                }
-                for (Entry<Set<Integer>, Integer> en : bits.entrySet()) {
-                    bitsets.set(en.getValue(),en.getKey());
-                }
-
-                info("Writing   %s maps  to file  %s", bits.size(), this.outDir + File.separator + "bitsets-l1.array");
-                FileOutputStream fos = new FileOutputStream(this.outDir + File.separator + "bitsets-l1.array");
-                try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-                    oos.writeObject(bitsets);
-                }
+                info("Writing   %s maps  to file  %s", signatures.size(), this.outDir + File.separator + SignatureStore.FILE_NAME);
+                SignatureStore.storeEncoded(signatures.getSignatures(), this.outDir + File.separator + SignatureStore.FILE_NAME);
 
                 info("Writing  the map as StorableTable");
 
-                fos = new FileOutputStream(this.outDir + File.separator + "node-hashing-id-l1.tbl");
-                try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-                    oos.writeObject(graphNodes);
-                }
-
-                fos = new FileOutputStream(this.outDir + File.separator + "node-hashing-values-l1.tbl");
-                try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-                    oos.writeObject(graphClusters);
-                }
+                TableFile.writeLongs(this.outDir + File.separator + "node-hashing-id-l1.tbl", LongBuffer.wrap(graphNodes), graphNodes.length);
+                TableFile.writeInts(this.outDir + File.separator + "node-hashing-values-l1.tbl", IntBuffer.wrap(graphClusters), graphClusters.length);
+                // The rebuilt tables replace the versions written by UpdateSignatures
+                Files.deleteIfExists(Paths.get(this.outDir, NodeSignatureIndex.MANIFEST_FILE));
             } else {
-                info("Reading maps from file  %s", this.outDir + File.separator + "bitsets-l1.array");
+                info("Reading maps from file  %s", this.outDir + File.separator + SignatureStore.FILE_NAME);
                 watch.reset();
                 watch.start();
-                FileInputStream fis = new FileInputStream(this.outDir + File.separator + "bitsets-l1.array");
-                try (ObjectInputStream iis = new ObjectInputStream(fis)) {
-                    bitsets = (ArrayList<Set<Integer>>) iis.readObject();
-                } catch (ClassNotFoundException ex) {
-                    Logger.getLogger(ComputeBitsetLvl1.class.getName()).log(Level.SEVERE, null, ex);
+                SignatureStore store = new SignatureStore(this.outDir + File.separator + SignatureStore.FILE_NAME);
+                bitsets = new ArrayList<>(store.size());
+                for (int i = 0; i < store.size(); i++) {
+                    Set<Integer> signature = new HashSet<>();
+                    for (int p : store.positionsOf(i)) {
+                        signature.add(p);
+                    }
+                    bitsets.add(signature);
                 }
                 watch.stop();
                 info("Loaded %s bitsets in %s ms", bitsets.size(), watch.getElapsedTimeMillis());
@@ -210,11 +195,12 @@ public class ComputeBitsetLvl1 extends GraphCommand {
                 watch.start();
                 StorableTable stp = new StorableTable(this.outDir, "node-hashing-id-l1", "node-hashing-values-l1", this.graph.numberOfNodes() * 5 / 4);
                 stp.load();
-                nodesHahMap = new HashMap<>(stp.getNodes().size() * 4 / 3);
+                nodesHahMap = new HashMap<>(stp.size() * 4 / 3);
                 HashSet<Integer> diff = new HashSet<>(bitsets.size() * 4 / 3);
-                for (Pair<Long, Integer> p : stp) {
-                    diff.add(p.getSecond());
-                    nodesHahMap.put(p.getFirst(), p.getSecond());
+                StorableTable.Cursor cur = stp.cursor();
+                while (cur.moveNext()) {
+                    diff.add(cur.value());
+                    nodesHahMap.put(cur.key(), cur.value());
                 }
                 watch.stop();
                 info("Loaded  map for %s (%s) in %s ms", nodesHahMap.size(), diff.size(), watch.getElapsedTimeMillis());
@@ -296,6 +282,28 @@ public class ComputeBitsetLvl1 extends GraphCommand {
         this.runTest = tst;
     }
 
+    private File shardFile(int shard) {
+        return new File(this.outDir, "signatures-shard-" + shard + ".tmp");
+    }
+
+    @CommandInput(
+            consoleFormat = "--shard-size",
+            defaultValue = "1000000",
+            mandatory = false,
+            description = "number of nodes in each shard of the signature computation")
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    @CommandInput(
+            consoleFormat = "--spill",
+            defaultValue = "false",
+            mandatory = false,
+            description = "write the computed shards to disk until they are merged")
+    public void setSpill(boolean spill) {
+        this.spill = spill;
+    }
+
     @Override
     protected String commandDescription() {
         return "compute all the tables in  -dir";
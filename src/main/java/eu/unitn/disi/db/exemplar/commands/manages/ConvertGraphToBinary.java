@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.commands.manages;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.global.Command;
+import eu.unitn.disi.db.exemplar.core.storage.LabelStatistics;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
+import eu.unitn.disi.db.grava.graphs.BigMultigraph;
+import eu.unitn.disi.db.mutilities.StopWatch;
+import eu.unitn.disi.db.mutilities.StringUtils;
+import eu.unitn.disi.db.mutilities.exceptions.ParseException;
+import java.io.IOException;
+
+/**
+ * One-time conversion of the text sin/sout files into the binary image read
+ * by {@link MappedMultigraph}, together with the {@link LabelStatistics} of
+ * the graph
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class ConvertGraphToBinary extends Command {
+
+    private String kbPath;
+    private String imagePath;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        StopWatch watch = new StopWatch();
+        String out = imagePath == null || imagePath.isEmpty() ? MappedMultigraph.imagePath(kbPath) : imagePath;
+        try {
+            watch.start();
+            info("Loading the Graph from %s", kbPath);
+            BigMultigraph graph = new BigMultigraph(kbPath + "-sin.graph", kbPath + "-sout.graph", StringUtils.countLines(kbPath + "-sin.graph"));
+            info("Graph with %s nodes and %s edges loaded in %s ms", graph.numberOfNodes(), graph.numberOfEdges(), watch.getElapsedTimeMillis());
+
+            watch.reset();
+            info("Writing binary image to %s", out);
+            MappedMultigraph.store(graph, out);
+            info("Image written in %s ms", watch.getElapsedTimeMillis());
+
+            watch.reset();
+            MappedMultigraph mapped = new MappedMultigraph(out);
+            if (mapped.numberOfNodes() != graph.numberOfNodes() || mapped.numberOfEdges() != graph.numberOfEdges()) {
+                throw new ExecutionException("Image %s has %s nodes and %s edges instead of %s and %s", out,
+                        mapped.numberOfNodes(), mapped.numberOfEdges(), graph.numberOfNodes(), graph.numberOfEdges());
+            }
+            info("Image verified in %s ms", watch.getElapsedTimeMillis());
+
+            watch.reset();
+            LabelStatistics stats = LabelStatistics.compute(mapped);
+            stats.store(LabelStatistics.statisticsPath(kbPath));
+            info("Statistics of %s labels written in %s ms", stats.size(), watch.getElapsedTimeMillis());
+        } catch (ParseException | IOException ex) {
+            throw new ExecutionException(ex);
+        }
+    }
+
+    @CommandInput(
+            consoleFormat = "-kb",
+            defaultValue = "",
+            description = "path to the knowledgbase sin and sout files, just up to the prefix, like InputData/freebase ",
+            mandatory = true)
+    public void setKbPath(String kb) {
+        this.kbPath = kb;
+    }
+
+    @CommandInput(
+            consoleFormat = "-out",
+            defaultValue = "",
+            description = "output binary image, defaults to the knowledgebase prefix followed by " + MappedMultigraph.IMAGE_SUFFIX,
+            mandatory = false)
+    public void setImagePath(String imagePath) {
+        this.imagePath = imagePath;
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Convert the text knowledgebase into a memory mappable binary image and compute its label statistics";
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.commands.manages;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.global.Command;
+import eu.unitn.disi.db.exemplar.core.storage.NodeSignatureIndex;
+import eu.unitn.disi.db.exemplar.core.storage.SignatureStore;
+import eu.unitn.disi.db.exemplar.core.storage.StorableTable;
+import eu.unitn.disi.db.exemplar.core.storage.StorableTriple;
+import eu.unitn.disi.db.exemplar.core.storage.TableFile;
+import eu.unitn.disi.db.mutilities.StopWatch;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * One-time conversion of the tables serialized by older versions of
+ * {@link StorableTable} and {@link StorableTriple} into {@link TableFile}s,
+ * and of the serialized node signatures into a {@link SignatureStore}
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class ConvertTables extends Command {
+
+    private String dirPath;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        List<Path> tables;
+        List<Path> signatures;
+        try (Stream<Path> files = Files.walk(Paths.get(dirPath))) {
+            tables = files.filter(p -> Files.isRegularFile(p) && (p.toString().endsWith(".tbl") || p.toString().endsWith(".obj")))
+                    .collect(Collectors.toList());
+        } catch (IOException ex) {
+            throw new ExecutionException(ex);
+        }
+        try (Stream<Path> files = Files.walk(Paths.get(dirPath))) {
+            signatures = files.filter(p -> p.getFileName().toString().equals(NodeSignatureIndex.LEGACY_SIGNATURES_FILE))
+                    .collect(Collectors.toList());
+        } catch (IOException ex) {
+            throw new ExecutionException(ex);
+        }
+        for (Path legacy : signatures) {
+            try {
+                if (NodeSignatureIndex.convertLegacy(legacy.getParent().toString())) {
+                    info("Converted the signatures in %s", legacy.getParent());
+                }
+            } catch (IOException ex) {
+                throw new ExecutionException("Cannot convert %s", ex, legacy);
+            }
+        }
+        int converted = 0, skipped = 0;
+        for (Path table : tables) {
+            try {
+                if (TableFile.convert(table.toString())) {
+                    converted++;
+                    debug("Converted %s", table);
+                }
+            } catch (IOException ex) {
+                // Other serialized objects share the extension, leave them
+                skipped++;
+                warn("Skipping %s: %s", table, ex.getMessage());
+            }
+        }
+        info("Converted %s of %s tables in %s ms, skipped %s files that are not tables", converted, tables.size(), watch.getElapsedTimeMillis(), skipped);
+    }
+
+    @CommandInput(
+            consoleFormat = "-dir",
+            defaultValue = "",
+            description = "directory containing the tables, searched recursively",
+            mandatory = true)
+    public void setDirPath(String dirPath) {
+        this.dirPath = dirPath;
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Convert the serialized tables and signatures in a directory into memory mappable binary files";
+    }
+
+}
@@ -24,28 +24,23 @@
 package eu.unitn.disi.db.exemplar.commands.manages;
 
 
-import com.koloboke.collect.map.hash.HashLongIntMaps;
-import com.koloboke.collect.set.hash.HashLongSets;
 import eu.unitn.disi.db.exemplar.commands.tests.exq.TestExemplar;
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.command.util.stats.Statistics;
 import eu.unitn.disi.db.command.util.stats.StatisticsCSVExporter;
-import eu.unitn.disi.db.exemplar.core.storage.StorableTable;
 import eu.unitn.disi.db.exemplar.utils.names.FreebaseNames;
 import eu.unitn.disi.db.grava.graphs.BaseMultigraph;
 import eu.unitn.disi.db.grava.graphs.BigMultigraph;
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
-import eu.unitn.disi.db.mutilities.Pair;
 import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -271,8 +266,8 @@ public class GenerateQueries extends TestExemplar {
                         if(this.graph.degreeOf(n)<4){
                             continue;
                         }
-                        cluster = this.nodesHahMap.get(n);
-                        Set<Long> similarNodes = this.hashInvertedIndex.get(cluster);
+                        cluster = this.signatureIndex.signatureOf(n);
+                        Set<Long> similarNodes = this.signatureIndex.nodesOf(cluster);
                         if(similarNodes.size()> 50){
                             for (int i = 0; i < similarNodes.size()*2; i++) {                        
                                 Long l = randomObject(similarNodes);
@@ -478,8 +473,13 @@ public class GenerateQueries extends TestExemplar {
         debug("Max Label Informativeness is %s", maxlabelInformativeness);                
 
         if (graph == null) {
-            graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
-            info("Loaded graph from file-path %s", this.kbPath);
+            if (MappedMultigraph.isStored(this.kbPath)) {
+                graph = new MappedMultigraph(MappedMultigraph.imagePath(this.kbPath));
+                info("Mapped graph image %s", MappedMultigraph.imagePath(this.kbPath));
+            } else {
+                graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
+                info("Loaded graph from file-path %s", this.kbPath);
+            }
         }
         if (graph == null) {
             throw new IllegalStateException("Null Knowledgebase!!");
@@ -491,47 +491,8 @@ public class GenerateQueries extends TestExemplar {
         
         // BitSet Mapping of Label Neighborhood
         String nodeHashPath = this.dataPath + File.separator + "nodes-hash";
-        FileInputStream fis = new FileInputStream(nodeHashPath + File.separator + "bitsets-l1.array");
-        try (ObjectInputStream iis = new ObjectInputStream(fis)) {
-            bitsets = (ArrayList<Set<Integer>>) iis.readObject();
-        } catch (ClassNotFoundException ex) {
-            throw new IllegalStateException("Cannot deserialize bitsets!!");
-        }
-
-        // This is a simple 1 level index to retrieve bitsets faster
-        //final int KEY=13; //23
-        //this.stIndx = new SetIndex(bitsets, KEY);//23
-        
-        // Index: cluster id -> set of nodes
-        hashInvertedIndex  = new ArrayList<>(bitsets.size());
-        int iter = bitsets.size();
-        for(int i=0; i<iter; i++){                                
-            hashInvertedIndex.add(HashLongSets.newUpdatableSet());//new HashSet<>(1_000));;            
-        }
-        
-        if (nodesHahMap == null) {
-            StorableTable stp = new StorableTable(nodeHashPath, "node-hashing-id-l1", "node-hashing-values-l1");
-            stp.load();
-            nodesHahMap = HashLongIntMaps.newUpdatableMap(stp.getNodes().size()); //new HashMap<>(stp.getNodes().size()*4/3 +1); //;
-            // Each node is mapped to the integer ID of its BitSet
-            for (Pair<Long, Integer> p : stp) {
-                // We retriev the set of nodes that share the same BitSet signature/ID
-                Set<Long> nodes = hashInvertedIndex.get(p.getSecond());                
-                // We add the current node to the set of nodes with the same signature
-                nodes.add(p.getFirst());       
-                
-                //We update the index Node ->cluster ID
-                nodesHahMap.put(p.getFirst(), p.getSecond());
-                
-            }
-            debug("Loaded %s Node Hashes", this.nodesHahMap.size());
-            stp.clear();
-        } else {
-            debug("Node Hashes already loaded!");
-        }
-        if (nodesHahMap == null) {
-            throw new IllegalStateException("Null HashIndex!!");
-        }
+        loadSignatureIndex(nodeHashPath, nodesHahMap);
+        nodesHahMap = signatureIndex.getNodeSignatures();
 
         
 
@@ -27,7 +27,9 @@ import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.DynamicInput;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
 import eu.unitn.disi.db.command.global.Command;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
 import eu.unitn.disi.db.grava.graphs.BigMultigraph;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
@@ -50,7 +52,7 @@ public class GraphCommand extends Command {
     protected String hubsFile;
     protected int threads;
     
-    protected BigMultigraph graph;
+    protected Multigraph graph;
     protected Map<Long, Integer> labelFrequencies;
     //protected List<Long> sortedLabels;
     protected Set<Long> skipNodes = new HashSet<>();
@@ -71,8 +73,13 @@ public class GraphCommand extends Command {
         
         info("Loading the Graph");
         if (graph == null) {
-            graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
-            info("Loaded graph from file-path %s", this.kbPath);
+            if (MappedMultigraph.isStored(this.kbPath)) {
+                graph = new MappedMultigraph(MappedMultigraph.imagePath(this.kbPath));
+                info("Mapped graph image %s", MappedMultigraph.imagePath(this.kbPath));
+            } else {
+                graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
+                info("Loaded graph from file-path %s", this.kbPath);
+            }
         }
         if (graph == null) {
             throw new IllegalStateException("Null Knowledgebase!!");
@@ -113,7 +120,7 @@ public class GraphCommand extends Command {
     @DynamicInput(
             consoleFormat = "--graph",
             description = "multigraph used as a knowledge-base")
-    public void setGraph(BigMultigraph graph) {
+    public void setGraph(Multigraph graph) {
         this.graph = graph;
     }
 
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.commands.manages;
+
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.exemplar.core.storage.NodeSignatureIndex;
+import eu.unitn.disi.db.exemplar.core.storage.SignatureBuilder;
+import eu.unitn.disi.db.mutilities.exceptions.ParseException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Updates the signatures computed by {@link ComputeBitsetLvl1} after a change
+ * of the graph, recomputing only the signatures of the endpoints of the
+ * changed edges.
+ *
+ * The graph must already contain the changes, and the label frequencies must
+ * be the ones used to build the signatures, since they fix the position of
+ * each label. The delta file has a line per edge, "+ source destination
+ * label" for an added edge and "- source destination label" for a removed
+ * one.
+ *
+ * The index is updated offline: the node tables are written as a new version
+ * and the manifest of the directory is switched to it in one step. A running
+ * ExemplarServer keeps its index until POST /reload, which loads the new
+ * version and drops the cached answers.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class UpdateSignatures extends GraphCommand {
+
+    private String deltaFile;
+
+    @Override
+    protected void execute() throws ExecutionException {
+        try {
+            watch.start();
+            this.prepareData();
+            Map<Long, Integer> positions = SignatureBuilder.labelPositions(labelFrequencies.keySet());
+
+            info("Reading changed edges from %s", deltaFile);
+            watch.reset();
+            Set<Long> touched = new HashSet<>();
+            int added = 0;
+            int removed = 0;
+            try (BufferedReader in = new BufferedReader(new FileReader(deltaFile))) {
+                String line;
+                int lineNo = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNo++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("\\s+");
+                    if (fields.length != 4 || !(fields[0].equals("+") || fields[0].equals("-"))) {
+                        throw new ParseException("Malformed edge at line %s of %s: %s", lineNo, deltaFile, line);
+                    }
+                    long label = Long.parseLong(fields[3]);
+                    if (fields[0].equals("+")) {
+                        if (!positions.containsKey(label)) {
+                            throw new ExecutionException("Label %s is not in the signatures, rebuild them with ComputeBitsetLvl1", label);
+                        }
+                        added++;
+                    } else {
+                        removed++;
+                    }
+                    touched.add(Long.parseLong(fields[1]));
+                    touched.add(Long.parseLong(fields[2]));
+                }
+            }
+            info("Read %s added and %s removed edges touching %s nodes in %s ms", added, removed, touched.size(), watch.getElapsedTimeMillis());
+
+            watch.reset();
+            NodeSignatureIndex index = NodeSignatureIndex.load(this.outDir, null);
+            int knownNodes = index.getNodeSignatures().size();
+            info("Loaded %s signatures of %s nodes in %s ms", index.size(), knownNodes, watch.getElapsedTimeMillis());
+
+            watch.reset();
+            SignatureBuilder builder = new SignatureBuilder(graph, positions);
+            Map<Long, long[]> changed = new HashMap<>(touched.size() * 4 / 3 + 1);
+            for (Long node : touched) {
+                boolean inGraph = graph.containsVertex(node);
+                changed.put(node, inGraph ? builder.signatureOf(node) : null);
+            }
+            int newSignatures = index.update(changed, this.outDir);
+            long version = index.storeNodes(this.outDir);
+            info("Updated %s nodes with %s new signatures in %s ms, now %s nodes in version %s of the tables", changed.size(), newSignatures, watch.getElapsedTimeMillis(), index.getNodeSignatures().size(), version);
+        } catch (ParseException | IOException | NumberFormatException ex) {
+            throw new ExecutionException(ex);
+        }
+    }
+
+    @CommandInput(
+            consoleFormat = "-delta",
+            defaultValue = "",
+            mandatory = true,
+            description = "file of the changed edges, one '+|- source destination label' per line")
+    public void setDeltaFile(String deltaFile) {
+        this.deltaFile = deltaFile;
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Update the node signatures in -dir for the edges added and removed from the graph";
+    }
+
+}
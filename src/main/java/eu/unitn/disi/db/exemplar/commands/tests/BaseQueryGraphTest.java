@@ -35,10 +35,11 @@ import eu.unitn.disi.db.exemplar.core.ranking.ProximityBasedScoring;
 import eu.unitn.disi.db.exemplar.core.ranking.RandomScoring;
 import eu.unitn.disi.db.exemplar.core.ranking.StructuralSimilarityScoring;
 import eu.unitn.disi.db.exemplar.core.ranking.UniformSimilarityScorng;
+import eu.unitn.disi.db.exemplar.core.storage.LabelStatistics;
+import eu.unitn.disi.db.exemplar.core.storage.NodeSignatureIndex;
 import eu.unitn.disi.db.exemplar.utils.NamesProvider;
 import eu.unitn.disi.db.exemplar.utils.names.FreebaseNames;
 import eu.unitn.disi.db.exemplar.utils.names.YagoNames;
-import eu.unitn.disi.db.grava.graphs.BigMultigraph;
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.Pair;
@@ -92,19 +93,26 @@ public abstract class BaseQueryGraphTest extends Command {
     protected int memoryLimit;
     protected int timeLimit;
     protected boolean mappable;
+    protected boolean parallelExpansion;
+    protected boolean sortedSignatures;
 
     
     
     /**
      * Precomputed Infos
      */
-    protected BigMultigraph graph;
+    protected Multigraph graph;
     protected List<Long> labels;
     
     protected Set<Long> bighubs;
     protected Map<Long, Double> labelInformativeness;
     protected Map<Long, Integer> labelFrequencies;
     protected Map<Long, Integer> labelsOrder;
+    protected LabelStatistics labelStatistics;
+    /**
+     * Replaced by a new instance when a server reloads the signatures
+     */
+    protected volatile NodeSignatureIndex signatureIndex;
     
 
 
@@ -304,6 +312,42 @@ public abstract class BaseQueryGraphTest extends Command {
         return true;
     }
 
+    /**
+     * Loads the index of the label signatures of the nodes, once
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @param nodeSignatures the signature id of each node, if already
+     * loaded, null to load it from the tables
+     * @throws IOException
+     */
+    protected void loadSignatureIndex(String nodeHashPath, Map<Long, Integer> nodeSignatures) throws IOException {
+        if (signatureIndex == null) {
+            StopWatch wa = new StopWatch();
+            wa.start();
+            signatureIndex = NodeSignatureIndex.load(nodeHashPath, nodeSignatures, sortedSignatures);
+            debug("Loaded %s signatures of %s nodes in %s ms", signatureIndex.size(), signatureIndex.getNodeSignatures().size(), wa.getElapsedTimeMillis());
+        } else {
+            debug("Node Hashes already loaded!");
+        }
+    }
+
+    /**
+     * Loads the label statistics stored with the knowledgebase, if they have
+     * been computed: without them the root is chosen as before and the
+     * planner uses the label frequencies
+     *
+     * @throws IOException
+     */
+    protected void loadLabelStatistics() throws IOException {
+        if (labelStatistics != null) {
+            return;
+        }
+        if (LabelStatistics.isStored(kbPath)) {
+            labelStatistics = LabelStatistics.load(LabelStatistics.statisticsPath(kbPath));
+            debug("Loaded statistics of %s labels", labelStatistics.size());
+        }
+    }
+
     /**
      *
      * @return true if GC has been called
@@ -363,7 +407,7 @@ public abstract class BaseQueryGraphTest extends Command {
     @DynamicInput(
             consoleFormat = "--graph",
             description = "multigraph used as a knowledge-base")
-    public void setGraph(BigMultigraph graph) {
+    public void setGraph(Multigraph graph) {
         this.graph = graph;
     }
 
@@ -458,6 +502,24 @@ public abstract class BaseQueryGraphTest extends Command {
         this.mappable = map;
     }
 
+    @CommandInput(
+            consoleFormat = "--parallel-expansion",
+            defaultValue = "false",
+            description = "spread the particles of the neighborhood expansion on all the cores",
+            mandatory = false)
+    public void setParallelExpansion(boolean parallelExpansion) {
+        this.parallelExpansion = parallelExpansion;
+    }
+
+    @CommandInput(
+            consoleFormat = "--sorted-signatures",
+            defaultValue = "false",
+            description = "keep the node signature ids in sorted arrays instead of hash tables",
+            mandatory = false)
+    public void setSortedSignatures(boolean sortedSignatures) {
+        this.sortedSignatures = sortedSignatures;
+    }
+
     @CommandInput(
             consoleFormat = "--no-save",
             defaultValue = "false",
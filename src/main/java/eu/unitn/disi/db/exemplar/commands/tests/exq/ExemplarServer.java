@@ -0,0 +1,362 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.commands.tests.exq;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import eu.unitn.disi.db.command.CommandInput;
+import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
+import eu.unitn.disi.db.command.exceptions.ExecutionException;
+import eu.unitn.disi.db.command.exceptions.LoadException;
+import eu.unitn.disi.db.exemplar.commands.util.GraphFilesManager;
+import eu.unitn.disi.db.exemplar.core.AnswerCache;
+import eu.unitn.disi.db.exemplar.core.AnswerSink;
+import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.core.NeighborhoodCache;
+import eu.unitn.disi.db.exemplar.core.TopKAnswerSink;
+import eu.unitn.disi.db.exemplar.core.storage.NodeSignatureIndex;
+import eu.unitn.disi.db.grava.graphs.BaseMultigraph;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import eu.unitn.disi.db.mutilities.StopWatch;
+import eu.unitn.disi.db.mutilities.exceptions.ParseException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers exemplar queries over HTTP, loading the graph and the indexes once.
+ *
+ * A query graph is posted to /query in the format of the query files, and
+ * the top-k answers are returned as tab separated lines
+ * "position weight intersect edges", with the edges as "source->destination"
+ * separated by " | ", as in the top-k files of {@link TestExemplar}.
+ * The answers are ranked as they are found. The searches of concurrent
+ * requests, and their expansions with --parallel-expansion, run as tasks of
+ * the one work stealing pool of --cores workers owned by the server, the
+ * other stages on the --server-threads handlers. The results of the last
+ * queries are cached, so a repeated query skips the search. POST /reload
+ * loads the node signatures written since by UpdateSignatures and drops the
+ * cached answers; the graph is not reloaded. GET /status reports the loaded
+ * data and the cache counters, POST /shutdown stops the server.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class ExemplarServer extends TestExemplar {
+
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    private String host;
+    private int port;
+    private int serverThreads;
+    private int cacheSize;
+    private AnswerCache<String> cache;
+
+    private final AtomicLong served = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    @Override
+    protected void execute() throws ExecutionException {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        HttpServer server;
+        try {
+            this.prepareData();
+            // The searches of concurrent requests are tasks of the server pool
+            this.workStealing = true;
+            info("Loaded data into main-memory in %dms", watch.getElapsedTimeMillis());
+
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (ParseException | IOException ex) {
+            fatal("Unable to load the data: %s", ex, ex.getMessage());
+            throw new ExecutionException(ex);
+        }
+        cache = new AnswerCache<>(cacheSize);
+        ExecutorService handlers = Executors.newFixedThreadPool(Math.max(1, serverThreads));
+        server.setExecutor(handlers);
+        server.createContext("/query", this::handleQuery);
+        server.createContext("/reload", this::handleReload);
+        server.createContext("/status", this::handleStatus);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.start();
+        info("Serving exemplar queries on http://%s:%s/query", host, port);
+        try {
+            stopped.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.stop(1);
+            handlers.shutdown();
+            searchPool.shutdown();
+            info("Server stopped after %s queries", served.get());
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "POST a query graph\n");
+                return;
+            }
+            int k = topK > 0 ? topK : 10;
+            String params = exchange.getRequestURI().getQuery();
+            if (params != null) {
+                for (String param : params.split("&")) {
+                    if (param.startsWith("topk=")) {
+                        k = Integer.parseInt(param.substring(5));
+                    }
+                }
+            }
+            Multigraph queryGraph = new BaseMultigraph();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                new GraphFilesManager(this.names).loadGraph(in, queryGraph);
+            }
+            if (queryGraph.numberOfEdges() == 0) {
+                send(exchange, 400, "Empty query graph\n");
+                return;
+            }
+            if (!isQueryMappable(queryGraph)) {
+                send(exchange, 400, "Query graph is not in the knowledge graph\n");
+                return;
+            }
+            int answersK = k;
+            String answers = cache.get(new AnswerCache.Key(queryGraph, k), () -> answer(queryGraph, answersK));
+            served.incrementAndGet();
+            send(exchange, 200, answers);
+        } catch (ParseException | LoadException | NumberFormatException ex) {
+            send(exchange, 400, "Cannot parse the query: " + ex.getMessage() + "\n");
+        } catch (AlgorithmExecutionException | RuntimeException ex) {
+            error("Query failed: %s", ex, ex.getMessage());
+            send(exchange, 500, "Query failed: " + ex.getMessage() + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Searches and ranks the answers of the query
+     *
+     * @param queryGraph
+     * @param k number of answers of each kind
+     * @return the top-k answers, one per line
+     * @throws AlgorithmExecutionException
+     */
+    protected String answer(Multigraph queryGraph, int k) throws AlgorithmExecutionException {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        Collection<Long> neighbourStartingNodes = new LinkedHashSet<>(queryGraph.vertexSet());
+        Collection<Long> queryEdgeLabels = new HashSet<>();
+        for (Edge edge : queryGraph.edgeSet()) {
+            queryEdgeLabels.add(edge.getLabel());
+        }
+
+        NeighborhoodCache.Entry expansion = skipNeighborhood ? null : expand(neighbourStartingNodes, queryEdgeLabels, true);
+        Multigraph neighborhood = expansion == null ? graph : expansion.getNeighborhood();
+        Map<Long, Set<Long>> queryGraphMap = skipPruning ? new HashMap<>() : computeQueryGraphMap(queryGraph);
+        Map<Long, Double> popularities = computePopularities(expansion, neighbourStartingNodes, queryEdgeLabels);
+
+        TopKAnswerSink<ExemplarAnswer> topIntersect = new TopKAnswerSink<>(k);
+        TopKAnswerSink<ExemplarAnswer> topNoIntersect = new TopKAnswerSink<>(k);
+        AnswerSink<ExemplarAnswer> answerSink = answer -> {
+            if (weightAnswer(answer, queryGraph, neighbourStartingNodes, popularities)) {
+                topIntersect.accept(answer);
+            } else {
+                topNoIntersect.accept(answer);
+            }
+        };
+        newSearch(queryGraph, queryGraphMap, neighborhood, answerSink).compute();
+
+        StringBuilder out = new StringBuilder();
+        out.append("Position\tWeight\tIntersect\tQuery\n");
+        for (int type = 0; type <= 1; type++) {
+            NavigableSet<ExemplarAnswer> sortedSet = (type == 0 ? topNoIntersect : topIntersect).getTopK().descendingSet();
+            int position = 0;
+            for (ExemplarAnswer answer : sortedSet) {
+                position++;
+                out.append(position).append('\t').append(answer.getTotalWeight()).append('\t').append(type).append('\t');
+                int edges = 0;
+                for (Edge edge : answer.getUsedEdges()) {
+                    if (edges > 0) {
+                        out.append(" | ");
+                    }
+                    out.append(edge.getSource()).append("->").append(edge.getDestination());
+                    edges++;
+                }
+                out.append('\n');
+            }
+        }
+        debug("Answered query with %s edges in %dms, %s answers found", queryGraph.numberOfEdges(), watch.getElapsedTimeMillis(),
+                topIntersect.getReceived() + topNoIntersect.getReceived());
+        return out.toString();
+    }
+
+    private void handleReload(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "POST to reload the signatures\n");
+                return;
+            }
+            long version = reloadSignatures();
+            send(exchange, 200, String.format("tables\t%s%nsignatures\t%s%nepoch\t%s%n", version, signatureIndex.size(), cache.getEpoch()));
+        } catch (IOException | RuntimeException ex) {
+            error("Reload failed: %s", ex, ex.getMessage());
+            send(exchange, 500, "Reload failed: " + ex.getMessage() + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Loads the current version of the node signatures in a new index, which
+     * replaces the one of the searches started from now on, and starts a new
+     * epoch of the answer cache
+     *
+     * @return the version of the node tables loaded
+     * @throws IOException
+     */
+    protected synchronized long reloadSignatures() throws IOException {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        String nodeHashPath = this.dataPath + File.separator + "nodes-hash";
+        long version = NodeSignatureIndex.tablesVersion(nodeHashPath);
+        NodeSignatureIndex index = NodeSignatureIndex.load(nodeHashPath, null, sortedSignatures);
+        nodesHahMap = index.getNodeSignatures();
+        signatureIndex = index;
+        long epoch = cache.invalidate();
+        if (answerCache != null) {
+            answerCache.invalidate();
+        }
+        info("Reloaded version %s of the node tables, %s signatures of %s nodes in %dms, cache epoch %s",
+                version, index.size(), nodesHahMap.size(), watch.getElapsedTimeMillis(), epoch);
+        return version;
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, String.format("nodes\t%s%nedges\t%s%nsignatures\t%s%nqueries\t%s%ncached\t%s%ncache-hits\t%s%ncache-misses\t%s%ncache-epoch\t%s%nneighborhoods\t%s%nneighborhood-hits\t%s%n",
+                    graph.numberOfNodes(), graph.numberOfEdges(), signatureIndex.size(), served.get(),
+                    cache.size(), cache.getHits(), cache.getMisses(), cache.getEpoch(), neighborhoodCache.size(), neighborhoodCache.getHits()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "POST to stop the server\n");
+                return;
+            }
+            send(exchange, 200, "Stopping\n");
+            stopped.countDown();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", TEXT);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    @CommandInput(
+            consoleFormat = "-q",
+            defaultValue = "",
+            description = "not used, queries are received by the server",
+            mandatory = false)
+    public void setQuery(String input) throws ExecutionException {
+    }
+
+    @Override
+    @CommandInput(
+            consoleFormat = "--neighborhood-cache",
+            defaultValue = "256",
+            mandatory = false,
+            description = "memory in Mb for the cached neighborhoods of the query nodes, 0 to disable the cache")
+    public void setNeighborhoodCacheSize(int neighborhoodCacheSize) {
+        super.setNeighborhoodCacheSize(neighborhoodCacheSize);
+    }
+
+    @CommandInput(
+            consoleFormat = "--host",
+            defaultValue = "127.0.0.1",
+            description = "address to listen on",
+            mandatory = false)
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    @CommandInput(
+            consoleFormat = "--port",
+            defaultValue = "8585",
+            description = "port to listen on",
+            mandatory = false)
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    @CommandInput(
+            consoleFormat = "--server-threads",
+            defaultValue = "4",
+            description = "number of requests handled at the same time",
+            mandatory = false)
+    public void setServerThreads(int serverThreads) {
+        this.serverThreads = serverThreads;
+    }
+
+    @CommandInput(
+            consoleFormat = "--cache-size",
+            defaultValue = "1000",
+            description = "number of query results kept in the cache, 0 to disable it",
+            mandatory = false)
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    protected String commandDescription() {
+        return "Answer exemplar queries over HTTP keeping the graph and the indexes in memory";
+    }
+
+}
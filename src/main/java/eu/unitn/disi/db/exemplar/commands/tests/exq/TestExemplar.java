@@ -23,44 +23,47 @@
  */
 package eu.unitn.disi.db.exemplar.commands.tests.exq;
 
-import com.koloboke.collect.map.hash.HashLongIntMaps;
-import com.koloboke.collect.set.hash.HashLongSets;
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
 import eu.unitn.disi.db.command.exceptions.ExecutionException;
 import eu.unitn.disi.db.exemplar.commands.tests.BaseQueryGraphTest;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.command.util.stats.Statistics;
 import eu.unitn.disi.db.command.util.stats.StatisticsCSVExporter;
 import eu.unitn.disi.db.exemplar.core.VectorSimilarities;
+import eu.unitn.disi.db.exemplar.core.AnswerCache;
+import eu.unitn.disi.db.exemplar.core.AnswerSink;
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.core.NeighborhoodCache;
+import eu.unitn.disi.db.exemplar.core.QueryScheduler;
+import eu.unitn.disi.db.exemplar.core.TopKAnswerSink;
 import eu.unitn.disi.db.exemplar.isomorphism.algorithms.IsomorphicQuerySearch;
+import eu.unitn.disi.db.exemplar.core.algorithms.PersonalizedPageRank;
 import eu.unitn.disi.db.exemplar.core.algorithms.SampleExpansionRank;
-import eu.unitn.disi.db.exemplar.core.storage.StorableTable;
 import eu.unitn.disi.db.grava.graphs.BigMultigraph;
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.Pair;
 import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
-import eu.unitn.disi.db.mutilities.data.CompoundSet;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -78,14 +81,37 @@ public class TestExemplar extends BaseQueryGraphTest {
     protected double lambda;
     protected boolean skipPruning;
     protected boolean skipNeighborhood;
+    protected boolean csrAdjacency;
+    protected boolean workStealing;
+    protected int branchDegree;
+    protected boolean streaming;
+    protected boolean queryPlanning;
+    protected int concurrentQueries;
+    protected int neighborhoodCacheSize;
+    protected boolean composeSeeds;
+    protected int answerCacheSize;
                
 
     /**
      * Node Index
      */
-    protected ArrayList<Set<Integer>> bitsets; 
-    protected List<Set<Long>> hashInvertedIndex;
     protected Map<Long, Integer> nodesHahMap;    
+
+    /**
+     * Expansions of the query nodes already computed
+     */
+    protected NeighborhoodCache neighborhoodCache;
+
+    /**
+     * Top-k answers of the queries already ranked, null if disabled
+     */
+    protected AnswerCache<RankedAnswers> answerCache;
+
+    /**
+     * Work stealing pool of the searches and of the parallel expansions of
+     * all the queries, shut down when the command ends
+     */
+    protected ForkJoinPool searchPool;
         
     
     /**
@@ -165,284 +191,30 @@ public class TestExemplar extends BaseQueryGraphTest {
             gWatch.reset();
             if (!files.isEmpty()) {
                 // .. Each file is a query
-                for (Pair<String, Multigraph> mQuery : multipleQueries) {
-                    // ALGOS
-                    SampleExpansionRank ppv = new SampleExpansionRank(graph);
-
-                    //DATA
-                    String queryFile;
-                    Multigraph queryGraph;
-                    Collection<Long> neighbourStartingNodes = new LinkedHashSet<>();
-                    Collection<Long> queryEdgeLabels = new HashSet<>();
-                    
-
-                    //VARIABLES
-                    boolean processError = false; // This is set to true if prunign goes south
-
-                    // Prepare Single query Stats
-                    stat = new Statistics();
-                    stat.addStringField(Cols.QUERY);
-                    stat.addNumericField(Cols.NSIZE_E);
-                    stat.addNumericField(Cols.NSIZE_V);
-                    stat.addNumericField(Cols.PSIZE_V);
-                    stat.addNumericField(Cols.SOLUTIONS);
-                    stat.addNumericField(Cols.NTIME);
-                    stat.addNumericField(Cols.PTIME);
-                    stat.addNumericField(Cols.RTIME);
-                    stat.addNumericField(Cols.STIME);
-
-
-                    //1: THE EXEMPLAR GRAPH
-                    queryFile=mQuery.getFirst();
-                    debug("Now testing : " + queryFile);
-                    queryGraph = mQuery.getSecond();
-                    
-
-                    // The nodes from which we start neighrborhood exploration
-                    neighbourStartingNodes.addAll(queryGraph.vertexSet());
-
-
-                    // The edge labels for priortizing exploration
-                    for (Edge edge : queryGraph.edgeSet()) {
-                        queryEdgeLabels.add(edge.getLabel());
+                // With more concurrent queries they are all scheduled at once, and aggregated in order
+                QueryScheduler scheduler = null;
+                List<Future<Statistics>> scheduled = new ArrayList<>(multipleQueries.size());
+                if (this.concurrentQueries > 1) {
+                    // The searches of all the queries share the pool of --cores workers
+                    this.workStealing = true;
+                    scheduler = new QueryScheduler(this.concurrentQueries, this.memoryLimit);
+                    info("Running %s queries at a time with a budget of %sMb each", this.concurrentQueries, scheduler.getQueryBudget());
+                    for (Pair<String, Multigraph> mQuery : multipleQueries) {
+                        scheduled.add(scheduler.submit(() -> runQuery(mQuery.getFirst(), mQuery.getSecond())));
                     }
-
-
-                    // Multiple Iterations for the same query
-                    for (int experimentIterations = 0; experimentIterations < repetitions; experimentIterations++) {                    
-                        debug("Repetition %d", experimentIterations);
-                        if(processError){
-                            error("Skipping iteration, pruning has gone wrong");
-                            break;
-                        }
-
-
-
+                }
+                for (int q = 0; q < multipleQueries.size(); q++) {
+                    String queryFile = multipleQueries.get(q).getFirst();
+                    if (scheduler == null) {
+                        stat = runQuery(queryFile, multipleQueries.get(q).getSecond());
+                    } else {
                         try {
-                            StopWatch watch = new StopWatch();
-
-                            Multigraph neighborhood ;                            
-
-                            stat.addStringValue(Cols.QUERY, queryFile);
-                            Map<Long, Set<Long>> queryGraphMap;
-
-
-                            watch.start();
-                            //2. PRUNE THE SPACE
-                            //2.1: PAGE RANK PRUNING
-                            watch.reset();
-                            if (!skipNeighborhood) {
-
-                                ppv.setStartingNodes(neighbourStartingNodes);
-                                ppv.setThreshold(threshold);
-                                ppv.setRestartProbability(restartProb);
-                                ppv.setMaxNumNodes(this.neighborSize);
-                                ppv.setLabelInformativeness(labelInformativeness);
-                                ppv.setPriorityLabels(queryEdgeLabels);
-                                ppv.setKeepOnlyQueryEdges(true);
-                                ppv.setHubs(bighubs);
-                                ppv.compute();
-                                neighborhood = ppv.getNeighborhood();
-
-                                debug("Time to get the most important neighbors: %dms", watch.getElapsedTimeMillis());
-                                stat.addNumericValue(Cols.NTIME,watch.getElapsedTimeMillis());
-
-                                debug("Neighbors contains %d edges and %d vertexes", neighborhood.numberOfEdges(), neighborhood.vertexSet().size());
-                                stat.addNumericValue(Cols.NSIZE_E, neighborhood.numberOfEdges());
-                                stat.addNumericValue(Cols.NSIZE_V, neighborhood.numberOfNodes());
-
-
-                            } else {
-                                debug("Skipping neighborhood pruning!");
-                                neighborhood = graph;
-                                
-                                //debug("Time to get the most important neighbors: %dms", watch.getElapsedTimeMillis());
-                                //debug("NaiveNeighbors contains %d edges and %d vertexes", neighborhood.edgeSet().size(), neighborhood.vertexSet().size());
-                                stat.addNumericValue(Cols.NTIME,-1);
-                                stat.addNumericValue(Cols.NSIZE_E, graph.numberOfEdges());
-                                stat.addNumericValue(Cols.NSIZE_V, graph.numberOfNodes());
-
-                            }
-                            
-                            
-                            //2.3: TABLE PRUNING
-                            if (!skipPruning) {                                
-                                debug("Preparing for Pruning with neighbors tables");
-                                watch.reset();                                
-                                //2.5: COMPUTE SIMULATION MAPPING
-                                queryGraphMap = computeQueryGraphMap(queryGraph);                    
-                                
-                                                                                                                              
-                                debug("Time to compute the graph mapping to prune the graph: %dms, found", watch.getElapsedTimeMillis());
-                                stat.addNumericValue(Cols.PTIME,watch.getElapsedTimeMillis());
-                                int numNodes = 0;
-                                for(Set<Long> n : queryGraphMap.values()){
-                                    numNodes += n.size();
-                                }
-                                stat.addNumericValue(Cols.PSIZE_V, numNodes);
-                            } else {
-                                queryGraphMap = new HashMap<>();
-                                stat.addNumericValue(Cols.PTIME,-1);
-                                stat.addNumericValue(Cols.PSIZE_V,-1);                             
-                            }
-
-                            //3: SEARCH EXEMPLAR ANSWERS
-                            watch.reset();
-                            HashSet<ExemplarAnswer> exemplarAnswersUnique;
-                            List<ExemplarAnswer> exemplarAnswers;
-
-                            IsomorphicQuerySearch isoAlgorithm = new IsomorphicQuerySearch();
-
-                            isoAlgorithm.setQuery(queryGraph);                                                                                    
-                            isoAlgorithm.setQueryToGraphMap(queryGraphMap);
-                            isoAlgorithm.setNumThreads(this.cores);
-                            isoAlgorithm.setLimitedComputation(this.limitComputation);
-                            isoAlgorithm.setSkipSave(this.skipSave);
-                            isoAlgorithm.setMemoryLimit(this.memoryLimit);
-                            isoAlgorithm.setGraph(neighborhood);
-                            isoAlgorithm.compute();
-
-                            exemplarAnswers = isoAlgorithm.getExemplarAnswers();
-                            stat.addNumericValue(Cols.STIME, watch.getElapsedTimeMillis());
-
-                            exemplarAnswersUnique = new HashSet<>(exemplarAnswers);
-                            stat.addNumericValue(Cols.SOLUTIONS, exemplarAnswersUnique.size());
-                            debug("Found %d related queries of which uniques are %d", exemplarAnswers.size(), exemplarAnswersUnique.size());
-
-
-                            //4: RANK QUERIES
-                            if (experimentIterations == 0 && topK > 0) {
-                                int a;
-                                long rankingTime = 0l;
-                                double pop, similarity;
-                                
-                                Map<Long, Double> popularities;
-                                TreeSet<ExemplarAnswer> orderedQueriesIntersect = new TreeSet<>();
-                                TreeSet<ExemplarAnswer> orderedQueriesNoIntersect = new TreeSet<>();
-
-
-                                info("Ordering related queries");
-
-                                watch.reset();
-
-                                if(skipNeighborhood){
-                                    // IF we have skipped the neighborhood we now need to
-                                    // comput the ppr
-                                    info("Recompute Neighborhood and vectors for ranking");
-                                    ppv.setStartingNodes(neighbourStartingNodes);
-                                    ppv.setThreshold(threshold);
-                                    ppv.setRestartProbability(restartProb);
-                                    ppv.setMaxNumNodes(this.neighborSize);
-                                    ppv.setLabelInformativeness(labelInformativeness);
-                                    ppv.setPriorityLabels(queryEdgeLabels);
-                                    ppv.setKeepOnlyQueryEdges(true);
-                                    ppv.setHubs(bighubs);
-                                    ppv.setKeepOnlyQueryEdges(false);
-                                    ppv.compute();
-                                }
-                               
-                                popularities = new HashMap<>(ppv.getPPRVector());
-                                
-                                rankingTime += watch.getElapsedTimeMillis();                                
-                                watch.reset();
-
-                                for (ExemplarAnswer relQuery : exemplarAnswersUnique) {
-                                    int intersections = 1;
-
-                                    Set<Long> mappedNodes = relQuery.getUsedNodes();
-                                    for (Long q : queryGraph.vertexSet()) {
-                                        if (mappedNodes.contains(q)) {
-                                            intersections++;
-                                        }
-                                    }
-                                    intersections *= intersections;
-                                    for (Long q : neighbourStartingNodes) {
-                                        similarity = 0;
-                                        pop = 0;
-                                        for( Long n1 : relQuery.mapOf(q)){
-
-                                            if (popularities.containsKey(n1)) {
-                                                pop += popularities.get(n1);
-                                            }
-
-                                            similarity += score(this.bitsets.get(this.nodesHahMap.get(q)), this.bitsets.get(this.nodesHahMap.get(n1)));
-
-                                        }
-
-                                        relQuery.addWeight(q, (((lambda * similarity ) + (1 - lambda) * pop)/relQuery.mapOf(q).size()));
-                                    }
-                                    if(intersections == 1){
-                                       orderedQueriesNoIntersect.add(relQuery);
-                                    } else {
-                                       orderedQueriesIntersect.add(relQuery);
-                                    }
-                                }
-                                rankingTime += watch.getElapsedTimeMillis();
-                                info("Ranked related queries in %dms", watch.getElapsedTimeMillis());
-                                stat.addNumericValue(Cols.RTIME, rankingTime);
-
-                                //9: PRINT RELATED
-                                info("Top-%d related queries", topK);
-
-
-                                Statistics rank = new Statistics();
-                                rank.addNumericField("Position");
-                                rank.addNumericField("Weight");
-                                rank.addStringField("Query");
-                                rank.addNumericField("Intersect");
-
-                                for(int type = 0;  type<=1 ;type ++ ){
-                                    NavigableSet<ExemplarAnswer> sortedSet = (type == 0 ? orderedQueriesNoIntersect : orderedQueriesIntersect ).descendingSet();
-                                    a=0;
-                                    for (ExemplarAnswer rQuery : sortedSet) {
-                                        a++;
-                                        if (a <= topK || a == sortedSet.size() ) {
-                                            rank.addNumericValue("Position", a);
-                                            rank.addNumericValue("Intersect", type);
-                                            rank.addNumericValue("Weight", rQuery.getTotalWeight());
-
-                                            System.out.println(rQuery.getTotalWeight());
-                                            
-                                            String s = String.format("[Q%d,value=%f]", a, rQuery.getTotalWeight());
-                                            String q = "";
-                                            Set<Edge> mappedEdges = rQuery.getUsedEdges();
-
-                                            int tempEdgeCnt = 0;
-                                            for (Edge edge : mappedEdges ) {
-                                                if(tempEdgeCnt>0){
-                                                    q+= " | ";
-                                                }
-                                                //FreebaseConstants.convertLongToMid(
-                                                q += (edge.getSource())
-                                                        + "->"
-                                                        + ( edge.getDestination());
-                                                tempEdgeCnt++;
-                                            }
-                                            rank.addStringValue("Query", q);
-                                            //debug(s + q);
-                                        }
-                                    }
-                                }
-
-                                StatisticsCSVExporter rankxp = new StatisticsCSVExporter(rank, this.outDir +  "/" +(new File(queryFile)).getName() + ".top-"+ topK +".csv");                                
-                                rankxp.write();
-                            //END IF i==0
-                            }  else {
-                                stat.addNumericValue(Cols.RTIME, -1);
-                            }
-
-
-                        } catch (AlgorithmExecutionException ex) {
-                            error("ERROR WHILE COMPUTING: %s", ex.getMessage());
-                            ex.printStackTrace();
-                            processError = true;
+                            stat = scheduled.get(q).get();
+                        } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                            scheduler.shutdownNow();
+                            throw new ExecutionException("Query %s failed", ex, queryFile);
                         }
-
-                    } //END FOR REPETITIONS
-
-
-                    StatisticsCSVExporter xp = new StatisticsCSVExporter(stat,this.outDir +  "/" +(new File(queryFile)).getName() + ".stats.csv");                    
-                    xp.write();
+                    }
 
 
                     aggStat.addStringValue(Cols.QUERY, (new File(queryFile)).getName());
@@ -468,6 +240,9 @@ public class TestExemplar extends BaseQueryGraphTest {
                     }
 
                 } //END FOR FILES
+                if (scheduler != null) {
+                    scheduler.shutdown();
+                }
 
 
                 StatisticsCSVExporter aggxp = new StatisticsCSVExporter(aggStat, this.outDir +  "/aggregate.stats.csv");                
@@ -481,65 +256,505 @@ public class TestExemplar extends BaseQueryGraphTest {
             fatal("Something wrong happened, message: %s", ex.getMessage());
             ex.printStackTrace();
             throw new ExecutionException(ex);
+        } finally {
+            searchPool.shutdown();
         }
     }
 
     /**
-     * 
+     * Top-k answers of a query, with and without intersection
+     */
+    protected static class RankedAnswers {
+
+        private TreeSet<ExemplarAnswer> noIntersect;
+        private TreeSet<ExemplarAnswer> intersect;
+        private long solutions = -1;
+
+        protected void set(TreeSet<ExemplarAnswer> noIntersect, TreeSet<ExemplarAnswer> intersect, long solutions) {
+            this.noIntersect = noIntersect;
+            this.intersect = intersect;
+            this.solutions = solutions;
+        }
+
+        protected boolean isRanked() {
+            return noIntersect != null;
+        }
+    }
+
+    /**
+     * Runs a query, or writes the top-k answers cached for the same query
+     * graph. A cached query is reported as a single repetition with no
+     * search time.
+     *
+     * @param queryFile
      * @param queryGraph
-     * @return  Map from each node in the query to all nodes in the graph that can match it
+     * @return the statistics of the query
+     * @throws IOException
      */
-    protected Map<Long, Set<Long>> computeQueryGraphMap(Multigraph queryGraph) {
-        //StoredInvertedIndexNeighborTables storedTables;
-        Map<Long, Set<Long>> queryGraphMap = new HashMap<>();        
-        Iterator<Edge> it;
-        int numLabels = this.labelsOrder.size();
-        Set<Integer> bb;
-        Map<Long,Set<Integer>> bbs = new HashMap<>();
-        Long lbl;
-        StopWatch wa = new StopWatch();
-        wa.start();
-        for (Long node : queryGraph) {
-            bb = new HashSet<>();
-            for (int i = 0; i < 2; i++) {
-                it = (i == 0 ? queryGraph.outgoingEdgesIteratorOf(node) : queryGraph.incomingEdgesIteratorOf(node));
-                while (it.hasNext()) {
-                    lbl = it.next().getLabel();
-                    bb.add(i * numLabels + this.labelsOrder.get(lbl));
-                }
-            }
-            bbs.put(node,bb);
-            queryGraphMap.put(node, new CompoundSet<>());            
+    protected Statistics runQuery(String queryFile, Multigraph queryGraph) throws IOException {
+        if (answerCache == null || topK <= 0) {
+            return searchQuery(queryFile, queryGraph, new RankedAnswers());
+        }
+        AtomicReference<Statistics> searched = new AtomicReference<>();
+        RankedAnswers ranked = answerCache.get(new AnswerCache.Key(queryGraph, topK), () -> {
+            RankedAnswers answers = new RankedAnswers();
+            searched.set(searchQuery(queryFile, queryGraph, answers));
+            return answers.isRanked() ? answers : null;
+        });
+        if (searched.get() != null) {
+            return searched.get();
         }
-        debug("Prepared  %s key bitset in %s ms", queryGraph.numberOfNodes(), wa.getElapsedTimeMillis());
+        if (ranked == null) {
+            // The same query failed in another thread, the error is reported here too
+            return searchQuery(queryFile, queryGraph, new RankedAnswers());
+        }
+        debug("Answers of %s found in the cache", queryFile);
+        writeTopK(ranked.noIntersect, ranked.intersect, queryFile);
+        Statistics stat = new Statistics();
+        stat.addStringField(Cols.QUERY);
+        stat.addNumericField(Cols.NSIZE_E);
+        stat.addNumericField(Cols.NSIZE_V);
+        stat.addNumericField(Cols.PSIZE_V);
+        stat.addNumericField(Cols.SOLUTIONS);
+        stat.addNumericField(Cols.NTIME);
+        stat.addNumericField(Cols.PTIME);
+        stat.addNumericField(Cols.RTIME);
+        stat.addNumericField(Cols.STIME);
+        stat.addStringValue(Cols.QUERY, queryFile);
+        stat.addNumericValue(Cols.NSIZE_E, -1);
+        stat.addNumericValue(Cols.NSIZE_V, -1);
+        stat.addNumericValue(Cols.PSIZE_V, -1);
+        stat.addNumericValue(Cols.SOLUTIONS, ranked.solutions);
+        stat.addNumericValue(Cols.NTIME, -1);
+        stat.addNumericValue(Cols.PTIME, -1);
+        stat.addNumericValue(Cols.RTIME, -1);
+        stat.addNumericValue(Cols.STIME, 0);
+        StatisticsCSVExporter xp = new StatisticsCSVExporter(stat, this.outDir + "/" + (new File(queryFile)).getName() + ".stats.csv");
+        xp.write();
+        return stat;
+    }
+
+    /**
+     * Runs all the repetitions of a query and writes its statistics and its
+     * top-k answers
+     *
+     * @param queryFile
+     * @param queryGraph
+     * @param ranked receives the top-k answers of the first repetition
+     * @return the statistics of the query
+     * @throws IOException
+     */
+    protected Statistics searchQuery(String queryFile, Multigraph queryGraph, RankedAnswers ranked) throws IOException {
+        //DATA
+        Collection<Long> neighbourStartingNodes = new LinkedHashSet<>();
+        Collection<Long> queryEdgeLabels = new HashSet<>();
         
+
+        //VARIABLES
+        boolean processError = false; // This is set to true if prunign goes south
+
+        // Prepare Single query Stats
+        Statistics stat = new Statistics();
+        stat.addStringField(Cols.QUERY);
+        stat.addNumericField(Cols.NSIZE_E);
+        stat.addNumericField(Cols.NSIZE_V);
+        stat.addNumericField(Cols.PSIZE_V);
+        stat.addNumericField(Cols.SOLUTIONS);
+        stat.addNumericField(Cols.NTIME);
+        stat.addNumericField(Cols.PTIME);
+        stat.addNumericField(Cols.RTIME);
+        stat.addNumericField(Cols.STIME);
+
+
+        //1: THE EXEMPLAR GRAPH
+        debug("Now testing : " + queryFile);
         
-        //bb = new BitSet(labelsOrder.size());
-        int matched = 0;                
-        int idx =0;        
-        for(Set<Integer> container : this.bitsets){    
-                        
-            for (Map.Entry<Long, Set<Integer>> contained : bbs.entrySet()) {                                
-                if (container.containsAll(contained.getValue())) {
-                    matched++;
-                    @SuppressWarnings("unchecked")
-                    CompoundSet<Long> nodes = (CompoundSet<Long>)queryGraphMap.get(contained.getKey());                    
-                    nodes.addAll(this.hashInvertedIndex.get(idx));                    
-                    //estNodes += this.hashInvertedIndex.get(idx).size();                                        
+
+        // The nodes from which we start neighrborhood exploration
+        neighbourStartingNodes.addAll(queryGraph.vertexSet());
+
+
+        // The edge labels for priortizing exploration
+        for (Edge edge : queryGraph.edgeSet()) {
+            queryEdgeLabels.add(edge.getLabel());
+        }
+
+
+        // Multiple Iterations for the same query
+        for (int experimentIterations = 0; experimentIterations < repetitions; experimentIterations++) {                    
+            debug("Repetition %d", experimentIterations);
+            if(processError){
+                error("Skipping iteration, pruning has gone wrong");
+                break;
+            }
+
+
+
+            try {
+                StopWatch watch = new StopWatch();
+
+                Multigraph neighborhood ;                            
+                NeighborhoodCache.Entry expansion = null;
+
+                stat.addStringValue(Cols.QUERY, queryFile);
+                Map<Long, Set<Long>> queryGraphMap;
+
+
+                watch.start();
+                //2. PRUNE THE SPACE
+                //2.1: PAGE RANK PRUNING
+                watch.reset();
+                if (!skipNeighborhood) {
+
+                    expansion = expand(neighbourStartingNodes, queryEdgeLabels, true);
+                    neighborhood = expansion.getNeighborhood();
+
+                    debug("Time to get the most important neighbors: %dms", watch.getElapsedTimeMillis());
+                    stat.addNumericValue(Cols.NTIME,watch.getElapsedTimeMillis());
+
+                    debug("Neighbors contains %d edges and %d vertexes", neighborhood.numberOfEdges(), neighborhood.vertexSet().size());
+                    stat.addNumericValue(Cols.NSIZE_E, neighborhood.numberOfEdges());
+                    stat.addNumericValue(Cols.NSIZE_V, neighborhood.numberOfNodes());
+
+
+                } else {
+                    debug("Skipping neighborhood pruning!");
+                    neighborhood = graph;
+                    
+                    //debug("Time to get the most important neighbors: %dms", watch.getElapsedTimeMillis());
+                    //debug("NaiveNeighbors contains %d edges and %d vertexes", neighborhood.edgeSet().size(), neighborhood.vertexSet().size());
+                    stat.addNumericValue(Cols.NTIME,-1);
+                    stat.addNumericValue(Cols.NSIZE_E, graph.numberOfEdges());
+                    stat.addNumericValue(Cols.NSIZE_V, graph.numberOfNodes());
+
+                }
+                
+                
+                //2.3: TABLE PRUNING
+                if (!skipPruning) {                                
+                    debug("Preparing for Pruning with neighbors tables");
+                    watch.reset();                                
+                    //2.5: COMPUTE SIMULATION MAPPING
+                    queryGraphMap = computeQueryGraphMap(queryGraph);                    
+                    
+                                                                                                                  
+                    debug("Time to compute the graph mapping to prune the graph: %dms, found", watch.getElapsedTimeMillis());
+                    stat.addNumericValue(Cols.PTIME,watch.getElapsedTimeMillis());
+                    int numNodes = 0;
+                    for(Set<Long> n : queryGraphMap.values()){
+                        numNodes += n.size();
+                    }
+                    stat.addNumericValue(Cols.PSIZE_V, numNodes);
+                } else {
+                    queryGraphMap = new HashMap<>();
+                    stat.addNumericValue(Cols.PTIME,-1);
+                    stat.addNumericValue(Cols.PSIZE_V,-1);                             
+                }
+
+                //3: SEARCH EXEMPLAR ANSWERS
+                watch.reset();
+                HashSet<ExemplarAnswer> exemplarAnswersUnique = null;
+                List<ExemplarAnswer> exemplarAnswers;
+                boolean rank = experimentIterations == 0 && topK > 0;
+                long rankingTime = 0l;
+                long solutions;
+                TreeSet<ExemplarAnswer> orderedQueriesIntersect = new TreeSet<>();
+                TreeSet<ExemplarAnswer> orderedQueriesNoIntersect = new TreeSet<>();
+
+                // In streaming mode the answers are ranked as they are found and only the top-k are kept
+                TopKAnswerSink<ExemplarAnswer> topIntersect = new TopKAnswerSink<>(rank ? topK : 0);
+                TopKAnswerSink<ExemplarAnswer> topNoIntersect = new TopKAnswerSink<>(rank ? topK : 0);
+                AnswerSink<ExemplarAnswer> answerSink = null;
+                if (streaming) {
+                    if (rank) {
+                        info("Ranking related queries on arrival");
+                        Map<Long, Double> popularities = computePopularities(expansion, neighbourStartingNodes, queryEdgeLabels);
+                        rankingTime += watch.getElapsedTimeMillis();
+                        watch.reset();
+                        answerSink = answer -> {
+                            if (weightAnswer(answer, queryGraph, neighbourStartingNodes, popularities)) {
+                                topIntersect.accept(answer);
+                            } else {
+                                topNoIntersect.accept(answer);
+                            }
+                        };
+                    } else {
+                        answerSink = topNoIntersect;
+                    }
+                }
+
+                IsomorphicQuerySearch isoAlgorithm = newSearch(queryGraph, queryGraphMap, neighborhood, answerSink);
+                isoAlgorithm.compute();
+
+                stat.addNumericValue(Cols.STIME, watch.getElapsedTimeMillis());
+
+                if (streaming) {
+                    solutions = topIntersect.getReceived() + topNoIntersect.getReceived();
+                    stat.addNumericValue(Cols.SOLUTIONS, solutions);
+                    debug("Streamed %d related queries", solutions);
+                } else {
+                    exemplarAnswers = isoAlgorithm.getExemplarAnswers();
+                    exemplarAnswersUnique = new HashSet<>(exemplarAnswers);
+                    solutions = exemplarAnswersUnique.size();
+                    stat.addNumericValue(Cols.SOLUTIONS, solutions);
+                    debug("Found %d related queries of which uniques are %d", exemplarAnswers.size(), exemplarAnswersUnique.size());
+                }
+
+
+                //4: RANK QUERIES
+                if (rank) {
+                    if (streaming) {
+                        // The top-k and the last one, as printed from the full ranking
+                        orderedQueriesIntersect = topIntersect.getTopK();
+                        if (topIntersect.getWorst() != null) {
+                            orderedQueriesIntersect.add(topIntersect.getWorst());
+                        }
+                        orderedQueriesNoIntersect = topNoIntersect.getTopK();
+                        if (topNoIntersect.getWorst() != null) {
+                            orderedQueriesNoIntersect.add(topNoIntersect.getWorst());
+                        }
+                    } else {
+                        info("Ordering related queries");
+
+                        watch.reset();
+                        Map<Long, Double> popularities = computePopularities(expansion, neighbourStartingNodes, queryEdgeLabels);
+
+                        rankingTime += watch.getElapsedTimeMillis();                                
+                        watch.reset();
+
+                        for (ExemplarAnswer relQuery : exemplarAnswersUnique) {
+                            if (weightAnswer(relQuery, queryGraph, neighbourStartingNodes, popularities)) {
+                               orderedQueriesIntersect.add(relQuery);
+                            } else {
+                               orderedQueriesNoIntersect.add(relQuery);
+                            }
+                        }
+                        rankingTime += watch.getElapsedTimeMillis();
+                        info("Ranked related queries in %dms", watch.getElapsedTimeMillis());
+                    }
+                    stat.addNumericValue(Cols.RTIME, rankingTime);
+
+                    //9: PRINT RELATED
+                    writeTopK(orderedQueriesNoIntersect, orderedQueriesIntersect, queryFile);
+                    ranked.set(orderedQueriesNoIntersect, orderedQueriesIntersect, solutions);
+                //END IF i==0
+                }  else {
+                    stat.addNumericValue(Cols.RTIME, -1);
                 }
+
+
+            } catch (AlgorithmExecutionException ex) {
+                error("ERROR WHILE COMPUTING: %s", ex.getMessage());
+                ex.printStackTrace();
+                processError = true;
             }
-            idx++;
+
+        } //END FOR REPETITIONS
+
+
+        StatisticsCSVExporter xp = new StatisticsCSVExporter(stat,this.outDir +  "/" +(new File(queryFile)).getName() + ".stats.csv");                    
+        xp.write();
+        return stat;
+    }
+
+    /**
+     * Expands the neighborhood of the query nodes, or returns the expansion
+     * cached for the same nodes and labels
+     *
+     * @param neighbourStartingNodes
+     * @param queryEdgeLabels
+     * @param withNeighborhood true to collect the neighborhood, with only the
+     * edges with a label of the query
+     * @return the particle vector and the neighborhood of the nodes
+     * @throws AlgorithmExecutionException
+     */
+    protected NeighborhoodCache.Entry expand(Collection<Long> neighbourStartingNodes, Collection<Long> queryEdgeLabels, boolean withNeighborhood) throws AlgorithmExecutionException {
+        NeighborhoodCache.Key key = new NeighborhoodCache.Key(neighbourStartingNodes, queryEdgeLabels, threshold, restartProb);
+        NeighborhoodCache.Entry expansion = neighborhoodCache.get(key, withNeighborhood);
+        if (expansion != null) {
+            debug("Expansion of %s nodes found in cache", neighbourStartingNodes.size());
+            return expansion;
         }
-            
-        ArrayList<Integer> matches = new ArrayList<>();
-        for(Map.Entry<Long, Set<Long>> maps : queryGraphMap.entrySet()){        
-            matches.add(maps.getValue().size());
+        SampleExpansionRank ppv = new SampleExpansionRank(graph);
+        ppv.setStartingNodes(neighbourStartingNodes);
+        ppv.setThreshold(threshold);
+        ppv.setRestartProbability(restartProb);
+        ppv.setMaxNumNodes(this.neighborSize);
+        ppv.setLabelInformativeness(labelInformativeness);
+        ppv.setPriorityLabels(queryEdgeLabels);
+        ppv.setKeepOnlyQueryEdges(true);
+        ppv.setHubs(bighubs);
+        ppv.setComputeNeighborhood(withNeighborhood);
+        ppv.setNumThreads(this.parallelExpansion ? this.cores : 1);
+        ppv.setPool(this.searchPool);
+        ppv.compute();
+        expansion = new NeighborhoodCache.Entry(ppv.getParticleVector(), withNeighborhood ? ppv.getNeighborhood() : null);
+        neighborhoodCache.put(key, expansion);
+        return expansion;
+    }
+
+    /**
+     * The search of the answers of the query configured with the inputs of
+     * the command
+     *
+     * @param queryGraph
+     * @param queryGraphMap the candidates of each query node, empty to skip
+     * the pruning
+     * @param neighborhood the graph to search
+     * @param answerSink where to stream the answers, null to collect them
+     * @return the search, to be computed
+     */
+    protected IsomorphicQuerySearch newSearch(Multigraph queryGraph, Map<Long, Set<Long>> queryGraphMap, Multigraph neighborhood, AnswerSink<ExemplarAnswer> answerSink) {
+        IsomorphicQuerySearch isoAlgorithm = new IsomorphicQuerySearch();
+
+        isoAlgorithm.setQuery(queryGraph);
+        isoAlgorithm.setQueryToGraphMap(queryGraphMap);
+        isoAlgorithm.setNumThreads(this.cores);
+        isoAlgorithm.setLimitedComputation(this.limitComputation);
+        isoAlgorithm.setSkipSave(this.skipSave);
+        isoAlgorithm.setMemoryLimit(this.memoryLimit);
+        isoAlgorithm.setCsrAdjacency(this.csrAdjacency);
+        isoAlgorithm.setWorkStealing(this.workStealing);
+        isoAlgorithm.setPool(this.searchPool);
+        isoAlgorithm.setBranchDegree(this.branchDegree);
+        isoAlgorithm.setAnswerSink(answerSink);
+        isoAlgorithm.setQueryPlanning(this.queryPlanning);
+        isoAlgorithm.setLabelStatistics(this.labelStatistics);
+        isoAlgorithm.setLabelFrequencies(this.labelFrequencies);
+        isoAlgorithm.setGraph(neighborhood);
+        return isoAlgorithm;
+    }
+
+    /**
+     * The personalized page rank of the nodes around the query, computed if
+     * the neighborhood was skipped during the search, or composed from the
+     * vectors of the single query nodes
+     *
+     * @param expansion the expansion of the neighborhood, null if skipped
+     * @param neighbourStartingNodes
+     * @param queryEdgeLabels
+     * @return the popularity of the nodes, do not modify
+     * @throws AlgorithmExecutionException
+     */
+    protected Map<Long, Double> computePopularities(NeighborhoodCache.Entry expansion, Collection<Long> neighbourStartingNodes, Collection<Long> queryEdgeLabels) throws AlgorithmExecutionException {
+        if (composeSeeds && neighbourStartingNodes.size() > 1) {
+            List<Map<Long, Double>> vectors = new ArrayList<>(neighbourStartingNodes.size());
+            for (Long node : neighbourStartingNodes) {
+                vectors.add(expand(Collections.singleton(node), queryEdgeLabels, false).getParticleVector());
+            }
+            return PersonalizedPageRank.normalize(NeighborhoodCache.compose(vectors));
         }
-                            
-        wa.stop();
-        debug("Loaded index for %s nodes in %s ms matching %s maps with %s size", queryGraphMap.size(), wa.getElapsedTimeMillis(), matched, matches);
-        
-        return queryGraphMap;
+        if (expansion == null) {
+            // IF we have skipped the neighborhood we now need to
+            // comput the ppr
+            info("Recompute vectors for ranking");
+            expansion = expand(neighbourStartingNodes, queryEdgeLabels, false);
+        }
+        return expansion.getPopularities();
+    }
+
+    /**
+     * Weights the answer combining the structural similarity and the
+     * popularity of its nodes
+     *
+     * @param relQuery the answer to weight
+     * @param queryGraph
+     * @param neighbourStartingNodes
+     * @param popularities
+     * @return true if the answer intersects the query
+     */
+    protected boolean weightAnswer(ExemplarAnswer relQuery, Multigraph queryGraph, Collection<Long> neighbourStartingNodes, Map<Long, Double> popularities) {
+        double pop, similarity;
+        int intersections = 1;
+
+        Set<Long> mappedNodes = relQuery.getUsedNodes();
+        for (Long q : queryGraph.vertexSet()) {
+            if (mappedNodes.contains(q)) {
+                intersections++;
+            }
+        }
+        intersections *= intersections;
+        for (Long q : neighbourStartingNodes) {
+            similarity = 0;
+            pop = 0;
+            for( Long n1 : relQuery.mapOf(q)){
+
+                if (popularities.containsKey(n1)) {
+                    pop += popularities.get(n1);
+                }
+
+                similarity += score(signatureIndex.getSignature(signatureIndex.signatureOf(q)), signatureIndex.getSignature(signatureIndex.signatureOf(n1)));
+
+            }
+
+            relQuery.addWeight(q, (((lambda * similarity ) + (1 - lambda) * pop)/relQuery.mapOf(q).size()));
+        }
+        return intersections != 1;
+    }
+
+    /**
+     * Writes the top-k answers of both rankings
+     *
+     * @param orderedQueriesNoIntersect
+     * @param orderedQueriesIntersect
+     * @param queryFile
+     * @throws IOException
+     */
+    protected void writeTopK(TreeSet<ExemplarAnswer> orderedQueriesNoIntersect, TreeSet<ExemplarAnswer> orderedQueriesIntersect, String queryFile) throws IOException {
+        int a;
+        info("Top-%d related queries", topK);
+
+
+        Statistics rank = new Statistics();
+        rank.addNumericField("Position");
+        rank.addNumericField("Weight");
+        rank.addStringField("Query");
+        rank.addNumericField("Intersect");
+
+        for(int type = 0;  type<=1 ;type ++ ){
+            NavigableSet<ExemplarAnswer> sortedSet = (type == 0 ? orderedQueriesNoIntersect : orderedQueriesIntersect ).descendingSet();
+            a=0;
+            for (ExemplarAnswer rQuery : sortedSet) {
+                a++;
+                if (a <= topK || a == sortedSet.size() ) {
+                    rank.addNumericValue("Position", a);
+                    rank.addNumericValue("Intersect", type);
+                    rank.addNumericValue("Weight", rQuery.getTotalWeight());
+
+                    System.out.println(rQuery.getTotalWeight());
+                    
+                    String s = String.format("[Q%d,value=%f]", a, rQuery.getTotalWeight());
+                    String q = "";
+                    Set<Edge> mappedEdges = rQuery.getUsedEdges();
+
+                    int tempEdgeCnt = 0;
+                    for (Edge edge : mappedEdges ) {
+                        if(tempEdgeCnt>0){
+                            q+= " | ";
+                        }
+                        //FreebaseConstants.convertLongToMid(
+                        q += (edge.getSource())
+                                + "->"
+                                + ( edge.getDestination());
+                        tempEdgeCnt++;
+                    }
+                    rank.addStringValue("Query", q);
+                    //debug(s + q);
+                }
+            }
+        }
+
+        StatisticsCSVExporter rankxp = new StatisticsCSVExporter(rank, this.outDir +  "/" +(new File(queryFile)).getName() + ".top-"+ topK +".csv");                                
+        rankxp.write();
+    }
+
+    /**
+     * 
+     * @param queryGraph
+     * @return  Map from each node in the query to all nodes in the graph that can match it
+     */
+    protected Map<Long, Set<Long>> computeQueryGraphMap(Multigraph queryGraph) {
+        return signatureIndex.candidates(queryGraph, this.labelsOrder);
     }
 
 
@@ -582,57 +797,27 @@ public class TestExemplar extends BaseQueryGraphTest {
                         
 
         if (graph == null) {
-            graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
-            info("Loaded graph from file-path %s", this.kbPath);
+            if (MappedMultigraph.isStored(this.kbPath)) {
+                graph = new MappedMultigraph(MappedMultigraph.imagePath(this.kbPath));
+                info("Mapped graph image %s", MappedMultigraph.imagePath(this.kbPath));
+            } else {
+                graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
+                info("Loaded graph from file-path %s", this.kbPath);
+            }
         }
         if (graph == null) {
             throw new IllegalStateException("Null Knowledgebase!!");
         }
         info("Graph has %s nodes and %s edges", this.graph.numberOfNodes(), this.graph.numberOfEdges());
+        loadLabelStatistics();
 
         // BitSet Mapping of Label Neighborhood
         String nodeHashPath = this.dataPath + File.separator + "nodes-hash";
-        FileInputStream fis = new FileInputStream(nodeHashPath + File.separator + "bitsets-l1.array");
-        try (ObjectInputStream iis = new ObjectInputStream(fis)) {
-            bitsets = (ArrayList<Set<Integer>>) iis.readObject();
-        } catch (ClassNotFoundException ex) {
-            throw new IllegalStateException("Cannot deserialize bitsets!!");
-        }
-
-        // This is a simple 1 level index to retrieve bitsets faster
-        //final int KEY=13; //23
-        //this.stIndx = new SetIndex(bitsets, KEY);//23
-        
-        // Index: cluster id -> set of nodes
-        hashInvertedIndex  = new ArrayList<>(bitsets.size());
-        int iter = bitsets.size();
-        for(int i=0; i<iter; i++){                                
-            hashInvertedIndex.add(HashLongSets.newUpdatableSet());//new HashSet<>(1_000));;            
-        }
-        
-        if (nodesHahMap == null) {
-            StorableTable stp = new StorableTable(nodeHashPath, "node-hashing-id-l1", "node-hashing-values-l1");
-            stp.load();
-            nodesHahMap = HashLongIntMaps.newUpdatableMap(stp.getNodes().size()); //new HashMap<>(stp.getNodes().size()*4/3 +1); //;
-            // Each node is mapped to the integer ID of its BitSet
-            for (Pair<Long, Integer> p : stp) {
-                // We retriev the set of nodes that share the same BitSet signature/ID
-                Set<Long> nodes = hashInvertedIndex.get(p.getSecond());                
-                // We add the current node to the set of nodes with the same signature
-                nodes.add(p.getFirst());       
-                
-                //We update the index Node ->cluster ID
-                nodesHahMap.put(p.getFirst(), p.getSecond());
-                
-            }
-            debug("Loaded %s Node Hashes", this.nodesHahMap.size());
-            stp.clear();
-        } else {
-            debug("Node Hashes already loaded!");
-        }
-        if (nodesHahMap == null) {
-            throw new IllegalStateException("Null HashIndex!!");
-        }
+        loadSignatureIndex(nodeHashPath, nodesHahMap);
+        nodesHahMap = signatureIndex.getNodeSignatures();
+        neighborhoodCache = new NeighborhoodCache(this.neighborhoodCacheSize);
+        answerCache = this.answerCacheSize > 0 ? new AnswerCache<>(this.answerCacheSize) : null;
+        searchPool = new ForkJoinPool(Math.max(1, this.cores));
 
         
         
@@ -648,13 +833,13 @@ public class TestExemplar extends BaseQueryGraphTest {
      * @param levelNodes
      * @param level
      */
-    protected void updateVector(Map<Long, Double> vector, Set<Integer> levelNodes,  int level) {
+    protected void updateVector(Map<Long, Double> vector, int[] levelNodes,  int level) {
         
         Double value;
         Long label;
         int sqLevel = level * level;
 
-        for (Integer labelIdx : levelNodes) {            
+        for (int labelIdx : levelNodes) {            
             label = this.labels.get(labelIdx);
             value = vector.getOrDefault(label, 0.0);
             value += (labelInformativeness.get(label)) / sqLevel;
@@ -668,7 +853,7 @@ public class TestExemplar extends BaseQueryGraphTest {
      * @param node2
      * @return
      */
-    protected double score(Set<Integer> node1, Set<Integer> node2) {
+    protected double score(int[] node1, int[] node2) {
         
         Map<Long, Double> vector1 = new HashMap<>(), vector2 = new HashMap<>();
         
@@ -706,6 +891,87 @@ public class TestExemplar extends BaseQueryGraphTest {
         this.skipNeighborhood = useNeighborhood;
     }
 
+    @CommandInput(
+            consoleFormat = "--neighborhood-cache",
+            defaultValue = "0",
+            mandatory = false,
+            description = "memory in Mb for the cached neighborhoods of the query nodes, 0 to disable the cache; repetitions of a cached query do not measure the expansion")
+    public void setNeighborhoodCacheSize(int neighborhoodCacheSize) {
+        this.neighborhoodCacheSize = neighborhoodCacheSize;
+    }
+
+    @CommandInput(
+            consoleFormat = "--answer-cache",
+            defaultValue = "0",
+            mandatory = false,
+            description = "number of top-k rankings cached by query graph, so a repeated query is not searched again, 0 to disable the cache")
+    public void setAnswerCacheSize(int answerCacheSize) {
+        this.answerCacheSize = answerCacheSize;
+    }
+
+    @CommandInput(
+            consoleFormat = "--compose-seeds",
+            defaultValue = "false",
+            mandatory = false,
+            description = "rank with the sum of the cached vectors of the single query nodes")
+    public void setComposeSeeds(boolean composeSeeds) {
+        this.composeSeeds = composeSeeds;
+    }
+
+    @CommandInput(
+            consoleFormat = "--csr",
+            defaultValue = "false",
+            mandatory = false,
+            description = "search on a CSR snapshot of the neighborhood with the edges grouped by label")
+    public void setCsrAdjacency(boolean csrAdjacency) {
+        this.csrAdjacency = csrAdjacency;
+    }
+
+    @CommandInput(
+            consoleFormat = "--fork-join",
+            defaultValue = "false",
+            mandatory = false,
+            description = "search every root as a task of a work stealing pool shared by all the queries")
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    @CommandInput(
+            consoleFormat = "--branch-degree",
+            defaultValue = "0",
+            mandatory = false,
+            description = "with --fork-join, split in more tasks the roots with at least this number of candidate edges, 0 never splits")
+    public void setBranchDegree(int branchDegree) {
+        this.branchDegree = branchDegree;
+    }
+
+    @CommandInput(
+            consoleFormat = "--stream",
+            defaultValue = "false",
+            mandatory = false,
+            description = "rank the answers as they are found and keep only the top-k, instead of collecting all of them")
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    @CommandInput(
+            consoleFormat = "--plan",
+            defaultValue = "false",
+            mandatory = false,
+            description = "match the query edges in the order planned on the label frequencies")
+    public void setQueryPlanning(boolean queryPlanning) {
+        this.queryPlanning = queryPlanning;
+    }
+
+    @CommandInput(
+            consoleFormat = "--concurrent-queries",
+            defaultValue = "1",
+            mandatory = false,
+            description = "number of queries processed at the same time, admitted within the --memory limit; their searches are tasks of one pool of --cores workers")
+    public void setConcurrentQueries(int concurrentQueries) {
+        this.concurrentQueries = concurrentQueries;
+    }
+
     @CommandInput(
             consoleFormat = "-topk",
             defaultValue = "0",
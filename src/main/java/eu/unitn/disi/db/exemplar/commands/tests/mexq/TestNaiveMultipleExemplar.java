@@ -24,8 +24,6 @@
 package eu.unitn.disi.db.exemplar.commands.tests.mexq;
 
 
-import com.koloboke.collect.map.hash.HashLongIntMaps;
-import com.koloboke.collect.set.hash.HashLongSets;
 
 import eu.unitn.disi.db.command.CommandInput;
 import eu.unitn.disi.db.command.DynamicInput;
@@ -39,31 +37,26 @@ import eu.unitn.disi.db.exemplar.core.algorithms.ConnectedComponents;
 import eu.unitn.disi.db.exemplar.core.algorithms.ExemplarQuerySearch;
 import eu.unitn.disi.db.exemplar.core.algorithms.GraphQueryEstimator;
 import eu.unitn.disi.db.exemplar.core.algorithms.SampleExpansionRank;
+import eu.unitn.disi.db.exemplar.core.storage.MappedMultigraph;
 import eu.unitn.disi.db.exemplar.core.storage.StorableTable;
 import eu.unitn.disi.db.exemplar.core.storage.StorableTriple;
 import eu.unitn.disi.db.exemplar.isomorphism.algorithms.IsomorphicQuerySearch;
 import eu.unitn.disi.db.exemplar.multiple.algorithms.MulExqStrict;
 import eu.unitn.disi.db.exemplar.simulation.algorithms.ConnectedSimulatedQuerySearch;
 import eu.unitn.disi.db.grava.graphs.BigMultigraph;
-import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
 import eu.unitn.disi.db.mutilities.Pair;
-import eu.unitn.disi.db.mutilities.StopWatch;
-import eu.unitn.disi.db.mutilities.data.CompoundSet;
 import eu.unitn.disi.db.mutilities.exceptions.ParseException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -92,8 +85,6 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
     protected Map<Pair<Long, Long>, Integer> labelPairFrequency;
     protected Map<Long, Double> totalPairFreq;
     protected Map<Long, Integer> nodesHahMap;    
-    protected List<Set<Long>> hashInvertedIndex;
-    protected ArrayList<Set<Integer>> bitsets;
     //protected SetIndex stIndx;
     
     protected MatchMethod matchMethod;
@@ -101,6 +92,10 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
     protected String globalStatsName = "global.stats.csv";
 
     protected boolean useRw = false;
+    protected boolean bitSimulation = false;
+    protected boolean ballReuse = false;
+    protected int maxBallEdges = 0;
+    protected boolean dualFilter = false;
     protected double minPprThreshold;
     protected double restartProb;
 
@@ -275,6 +270,7 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
                         ppv.setPriorityLabels(mQuery.getSecond().labelSet());
                         ppv.setKeepOnlyQueryEdges(false);
                         ppv.setHubs(bighubs);
+                        ppv.setNumThreads(this.parallelExpansion ? this.cores : 1);
                         ppv.compute();
 
                         //ppv.expandWithQueryEdges();
@@ -432,55 +428,7 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
      * @return  Map from each node in the query to all nodes in the graph that can match it
      */
     protected Map<Long, Set<Long>> computeQueryGraphMap(Multigraph queryGraph) {
-        //StoredInvertedIndexNeighborTables storedTables;
-        Map<Long, Set<Long>> queryGraphMap = new HashMap<>();        
-        Iterator<Edge> it;
-        int numLabels = this.labelsOrder.size();
-        Set<Integer> bb;
-        Map<Long,Set<Integer>> bbs = new HashMap<>();
-        Long lbl;
-        StopWatch wa = new StopWatch();
-        wa.start();
-        for (Long node : queryGraph) {
-            bb = new HashSet<>();
-            for (int i = 0; i < 2; i++) {
-                it = (i == 0 ? queryGraph.outgoingEdgesIteratorOf(node) : queryGraph.incomingEdgesIteratorOf(node));
-                while (it.hasNext()) {
-                    lbl = it.next().getLabel();
-                    bb.add(i * numLabels + this.labelsOrder.get(lbl));
-                }
-            }
-            bbs.put(node,bb);
-            queryGraphMap.put(node, new CompoundSet<>());            
-        }
-        debug("Prepared  %s key bitset in %s ms", queryGraph.numberOfNodes(), wa.getElapsedTimeMillis());
-        
-        
-        //bb = new BitSet(labelsOrder.size());
-        int matched = 0;                
-        int idx =0;        
-        for(Set<Integer> container : this.bitsets){            
-            for (Entry<Long, Set<Integer>> contained : bbs.entrySet()) {                                
-                if (container.containsAll(contained.getValue())) {
-                    matched++;
-                    @SuppressWarnings("unchecked")
-                    CompoundSet<Long> nodes = (CompoundSet<Long>)queryGraphMap.get(contained.getKey());                    
-                    nodes.addAll(this.hashInvertedIndex.get(idx));                    
-                    //estNodes += this.hashInvertedIndex.get(idx).size();                                        
-                }
-            }
-            idx++;
-        }
-            
-        ArrayList<Integer> matches = new ArrayList<>();
-        for(Entry<Long, Set<Long>> maps : queryGraphMap.entrySet()){        
-            matches.add(maps.getValue().size());
-        }
-                            
-        wa.stop();
-        debug("Loaded index for %s nodes in %s ms matching %s maps with %s size", queryGraphMap.size(), wa.getElapsedTimeMillis(), matched, matches);
-        
-        return queryGraphMap;
+        return signatureIndex.candidates(queryGraph, this.labelsOrder);
     }
         
 
@@ -496,8 +444,15 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
         }
         searchAlgorithm.setQuery(query);
         searchAlgorithm.setStrictPruning(true);
+        searchAlgorithm.setLabelStatistics(this.labelStatistics);
         searchAlgorithm.setGraph(prunedGraph);
         searchAlgorithm.setNumThreads(this.cores);        
+        if (searchAlgorithm instanceof ConnectedSimulatedQuerySearch) {
+            ((ConnectedSimulatedQuerySearch) searchAlgorithm).setBitSimulation(this.bitSimulation);
+            ((ConnectedSimulatedQuerySearch) searchAlgorithm).setBallReuse(this.ballReuse);
+            ((ConnectedSimulatedQuerySearch) searchAlgorithm).setMaxBallEdges(this.maxBallEdges);
+            ((ConnectedSimulatedQuerySearch) searchAlgorithm).setDualFilter(this.dualFilter);
+        }
         //isoAlgorithm.setLimitedComputation(limitComputation);  // We do not limit computation
         searchAlgorithm.compute();
         debug("Computed %s Exemplar Queries in %s ms",  this.matchMethod.name().toUpperCase(),  searchAlgorithm.getComputationTime());
@@ -550,13 +505,19 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
                         
 
         if (graph == null) {
-            graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
-            info("Loaded graph from file-path %s", this.kbPath);
+            if (MappedMultigraph.isStored(this.kbPath)) {
+                graph = new MappedMultigraph(MappedMultigraph.imagePath(this.kbPath));
+                info("Mapped graph image %s", MappedMultigraph.imagePath(this.kbPath));
+            } else {
+                graph = new BigMultigraph(this.kbPath + "-sin.graph", this.kbPath + "-sout.graph"/*, knowledgebaseFileSize*/);
+                info("Loaded graph from file-path %s", this.kbPath);
+            }
         }
         if (graph == null) {
             throw new IllegalStateException("Null Knowledgebase!!");
         }
         info("Graph has %s nodes and %s edges", this.graph.numberOfNodes(), this.graph.numberOfEdges());
+        loadLabelStatistics();
 
         this.labelsDegreesPath = Paths.get(this.dataPath, "label-degrees").toString();
         this.labelsPairsPath = Paths.get(this.dataPath, "label-pairs").toString();
@@ -586,47 +547,8 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
         
         // BitSet Mapping of Label Neighborhood
         String nodeHashPath = this.dataPath + File.separator + "nodes-hash";
-        FileInputStream fis = new FileInputStream(nodeHashPath + File.separator + "bitsets-l1.array");
-        try (ObjectInputStream iis = new ObjectInputStream(fis)) {
-            bitsets = (ArrayList<Set<Integer>>) iis.readObject();
-        } catch (ClassNotFoundException ex) {
-            throw new IllegalStateException("Cannot deserialize bitsets!!");
-        }
-
-        // This is a simple 1 level index to retrieve bitsets faster
-        //final int KEY=13; //23
-        //this.stIndx = new SetIndex(bitsets, KEY);//23
-        
-        // Index: cluster id -> set of nodes
-        hashInvertedIndex  = new ArrayList<>(bitsets.size());
-        int iter = bitsets.size();
-        for(int i=0; i<iter; i++){                                
-            hashInvertedIndex.add(HashLongSets.newUpdatableSet());//new HashSet<>(1_000));;            
-        }
-        
-        if (nodesHahMap == null) {
-            StorableTable stp = new StorableTable(nodeHashPath, "node-hashing-id-l1", "node-hashing-values-l1");
-            stp.load();
-            nodesHahMap = HashLongIntMaps.newUpdatableMap(stp.getNodes().size()); //new HashMap<>(stp.getNodes().size()*4/3 +1); //;
-            // Each node is mapped to the integer ID of its BitSet
-            for (Pair<Long, Integer> p : stp) {
-                // We retriev the set of nodes that share the same BitSet signature/ID
-                Set<Long> nodes = hashInvertedIndex.get(p.getSecond());                
-                // We add the current node to the set of nodes with the same signature
-                nodes.add(p.getFirst());       
-                
-                //We update the index Node ->cluster ID
-                nodesHahMap.put(p.getFirst(), p.getSecond());
-                
-            }
-            debug("Loaded %s Node Hashes", this.nodesHahMap.size());
-            stp.clear();
-        } else {
-            debug("Node Hashes already loaded!");
-        }
-        if (nodesHahMap == null) {
-            throw new IllegalStateException("Null HashIndex!!");
-        }
+        loadSignatureIndex(nodeHashPath, nodesHahMap);
+        nodesHahMap = signatureIndex.getNodeSignatures();
 
         
         
@@ -667,6 +589,42 @@ public class TestNaiveMultipleExemplar extends BaseQueryGraphTest {
         this.restartProb = c;
     }
 
+    @CommandInput(
+            consoleFormat = "--bit-simulation",
+            defaultValue = "false",
+            mandatory = false,
+            description = "compute the strong simulation on bitsets over the nodes of each ball")
+    public void setBitSimulation(boolean bitSimulation) {
+        this.bitSimulation = bitSimulation;
+    }
+
+    @CommandInput(
+            consoleFormat = "--ball-reuse",
+            defaultValue = "false",
+            mandatory = false,
+            description = "visit the centers of the strong simulation breadth first and reuse the ball of a center for its neighbors")
+    public void setBallReuse(boolean ballReuse) {
+        this.ballReuse = ballReuse;
+    }
+
+    @CommandInput(
+            consoleFormat = "--max-ball-edges",
+            defaultValue = "0",
+            mandatory = false,
+            description = "skip the centers of the strong simulation with a ball with more edges, 0 for no limit")
+    public void setMaxBallEdges(int maxBallEdges) {
+        this.maxBallEdges = maxBallEdges;
+    }
+
+    @CommandInput(
+            consoleFormat = "--dual-filter",
+            defaultValue = "false",
+            mandatory = false,
+            description = "restrict the strong simulation to the nodes in the dual simulation of the query in the graph")
+    public void setDualFilter(boolean dualFilter) {
+        this.dualFilter = dualFilter;
+    }
+
     @CommandInput(
             consoleFormat = "-method",
             defaultValue = "iso",
@@ -122,91 +122,105 @@ public final class GraphFilesManager extends LoggableObject {
     }
 
     public <T extends Multigraph> HashMap<Long, String> loadGraph(String filename, T graph) throws ParseException, LoadException {
+        try (BufferedReader in = new BufferedReader(new FileReader(new File(filename)))) {
+            return loadGraph(in, graph);
+        } catch (IOException ex) {
+            Logger.getLogger(GraphFilesManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Parses a graph in the format of the query files, one "source
+     * destination label" edge per line
+     *
+     * @param <T>
+     * @param in the lines of the graph, not closed
+     * @param graph where the edges are added
+     * @return the names of the labels that were not numeric
+     * @throws ParseException
+     * @throws LoadException
+     * @throws IOException
+     */
+    public <T extends Multigraph> HashMap<Long, String> loadGraph(BufferedReader in, T graph) throws ParseException, LoadException, IOException {
         Map<String, Long> edgeLabelsCache = new HashMap<>();
         HashMap<Long, String> midLabels = new HashMap<>();
 
-        try {
-            File file = new File(filename);
-            BufferedReader in = new BufferedReader(new FileReader(file));
-            long sourceId;
-            long destId;
-            Long edgeLabel, lastAddedLabel = 0l;
-            String line, source, dest, label;
-            String[] tokens;
-            int count = 0;
+        long sourceId;
+        long destId;
+        Long edgeLabel, lastAddedLabel = 0l;
+        String line, source, dest, label;
+        String[] tokens;
+        int count = 0;
 //            Map<Long, Concept> concepts = new HashMap<Long, Concept>();
 //            Concept sourceNode = null;
 //            Concept destinationNode = null;
-            if (graph == null) {
-                throw new LoadException("Input graph cannot be null");
-            }
-            String pline;
-            while ((line = in.readLine()) != null) {
-                count++;
-                pline = line.trim();
-                if (!"".equals(pline) && !pline.startsWith("#")) { //Comment
-                    //System.out.println(line);
-                    tokens = StringUtils.fastSplit(pline, ' ', 3); // split on whitespace
-                    if (tokens.length < 3) { // line too short
-                        tokens = StringUtils.fastSplit(pline, '\t', 3);
-                        if (tokens.length != 3) {
-                            throw new ParseException("Line " + count + " is malformed");
-                        }
+        if (graph == null) {
+            throw new LoadException("Input graph cannot be null");
+        }
+        String pline;
+        while ((line = in.readLine()) != null) {
+            count++;
+            pline = line.trim();
+            if (!"".equals(pline) && !pline.startsWith("#")) { //Comment
+                //System.out.println(line);
+                tokens = StringUtils.fastSplit(pline, ' ', 3); // split on whitespace
+                if (tokens.length < 3) { // line too short
+                    tokens = StringUtils.fastSplit(pline, '\t', 3);
+                    if (tokens.length != 3) {
+                        throw new ParseException("Line " + count + " is malformed");
                     }
-                    //TODO: This is not the proper way to handle this
-                    source = tokens[0];
-                    dest = tokens[1];
-                    label = tokens[2];
+                }
+                //TODO: This is not the proper way to handle this
+                source = tokens[0];
+                dest = tokens[1];
+                label = tokens[2];
 
-                    try {
-                        sourceId = Long.parseLong(source);
-                        destId = Long.parseLong(dest);
-                    } catch (NumberFormatException nfex) {
-                        sourceId = names.getNodeIDFromName(source);
-                        destId = names.getNodeIDFromName(dest);
-                    }
-                    try {
-                        edgeLabel = Long.parseLong(label);
-                    } catch (NumberFormatException nfex) {                                                
-                        edgeLabel = Edge.GENERIC_EDGE_LABEL;
-                        if (label != null) {
-                            label = label.trim();
-                            if (this.names instanceof FreebaseNames && label.equals("isA")) {
-                                edgeLabel = FreebaseNames.ISA_ID;
-                            } else if (edgeLabelsCache.containsKey(label)) {
-                                edgeLabel = edgeLabelsCache.get(label);
-                            } else {
+                try {
+                    sourceId = Long.parseLong(source);
+                    destId = Long.parseLong(dest);
+                } catch (NumberFormatException nfex) {
+                    sourceId = names.getNodeIDFromName(source);
+                    destId = names.getNodeIDFromName(dest);
+                }
+                try {
+                    edgeLabel = Long.parseLong(label);
+                } catch (NumberFormatException nfex) {                                                
+                    edgeLabel = Edge.GENERIC_EDGE_LABEL;
+                    if (label != null) {
+                        label = label.trim();
+                        if (this.names instanceof FreebaseNames && label.equals("isA")) {
+                            edgeLabel = FreebaseNames.ISA_ID;
+                        } else if (edgeLabelsCache.containsKey(label)) {
+                            edgeLabel = edgeLabelsCache.get(label);
+                        } else {
 //                                LinkedList<String> edgeLabelName = new LinkedList<String>();
 //                                edgeLabelName.add(label);
-                                //try {
-                                
-                                    edgeLabel = names.getLabelIDFromName(label);
-                                    if (edgeLabel == null) {
-                                        throw new ParseException("Cannot parse label '%s' on line  %s ", label, line);
-                                    }
-                                //} catch (NullPointerException ex) {
-                                //    throw new ParseException("Cannot parse label '%s' on line [%s]  %s ", ex, label,count, line );
-                                //}
-                                if (edgeLabel >= 0) {
-                                    edgeLabelsCache.put(label, edgeLabel);
-                                } else {
-                                    lastAddedLabel++;
-                                    edgeLabelsCache.put(label, lastAddedLabel);
-                                    edgeLabel = lastAddedLabel;
+                            //try {
+                            
+                                edgeLabel = names.getLabelIDFromName(label);
+                                if (edgeLabel == null) {
+                                    throw new ParseException("Cannot parse label '%s' on line  %s ", label, line);
                                 }
+                            //} catch (NullPointerException ex) {
+                            //    throw new ParseException("Cannot parse label '%s' on line [%s]  %s ", ex, label,count, line );
+                            //}
+                            if (edgeLabel >= 0) {
+                                edgeLabelsCache.put(label, edgeLabel);
+                            } else {
+                                lastAddedLabel++;
+                                edgeLabelsCache.put(label, lastAddedLabel);
+                                edgeLabel = lastAddedLabel;
                             }
-
-                            midLabels.put(edgeLabel, label);
                         }
+
+                        midLabels.put(edgeLabel, label);
                     }
-                    graph.addVertex(sourceId);
-                    graph.addVertex(destId);
-                    graph.addEdge(sourceId, destId, edgeLabel);
                 }
+                graph.addVertex(sourceId);
+                graph.addVertex(destId);
+                graph.addEdge(sourceId, destId, edgeLabel);
             }
-
-        } catch (IOException ex) {
-            Logger.getLogger(GraphFilesManager.class.getName()).log(Level.SEVERE, null, ex);
         }
         return midLabels;
     }
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core;
+
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of the results of exemplar queries.
+ *
+ * Queries are keyed by their canonical form, the sorted list of their
+ * (source, destination, label) edges and the sorted list of their nodes, so
+ * the same exemplar graph written in a different order hits the same entry,
+ * while a query with additional isolated nodes does not. The results refer to the graph and the
+ * indexes loaded when they were computed: whoever reloads them calls
+ * {@link #invalidate()}, which empties the cache and starts a new epoch, so
+ * that the results of searches still running on the old data are not
+ * stored. Concurrent misses of the same query wait for a single search.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ * @param <V> the type of results
+ */
+public class AnswerCache<V> {
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, V> entries;
+    private final ConcurrentHashMap<Key, CompletableFuture<V>> running = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long epoch = 0;
+
+    /**
+     * Computes the result of a query missing from the cache
+     *
+     * @param <V> the type of results
+     * @param <E> the exception thrown by the search
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Exception> {
+
+        /**
+         *
+         * @return the result, null if it must not be cached
+         * @throws E
+         */
+        V load() throws E;
+    }
+
+    /**
+     *
+     * @param maxSize maximum number of results kept
+     */
+    public AnswerCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+                return size() > AnswerCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached result of the query, or loads it. If the same query
+     * is being loaded by another thread, waits for its result instead of
+     * searching again.
+     *
+     * @param <E> the exception thrown by the search
+     * @param key
+     * @param loader the search of the query
+     * @return the result of the query
+     * @throws E if the search, here or in the thread loading it, failed
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V get(Key key, Loader<V, E> loader) throws E {
+        long loadEpoch;
+        synchronized (this) {
+            V value = entries.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+            loadEpoch = epoch;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> loading = running.putIfAbsent(key, future);
+        if (loading != null) {
+            try {
+                return loading.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw (E) ex.getCause();
+            }
+        }
+        try {
+            V value = loader.load();
+            synchronized (this) {
+                if (value != null && maxSize > 0 && loadEpoch == epoch) {
+                    entries.put(key, value);
+                }
+            }
+            future.complete(value);
+            return value;
+        } catch (Exception | Error ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            running.remove(key, future);
+        }
+    }
+
+    /**
+     * Removes all the results and starts a new epoch, the results of the
+     * searches started before are not cached
+     *
+     * @return the new epoch
+     */
+    public synchronized long invalidate() {
+        entries.clear();
+        running.clear();
+        return ++epoch;
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Canonical form of a query and of the parameters of its result
+     */
+    public static final class Key {
+
+        private final long[] edges;
+        private final long[] nodes;
+        private final long[] parameters;
+        private final int hash;
+
+        /**
+         *
+         * @param query
+         * @param parameters the parameters changing the result, like k
+         */
+        public Key(Multigraph query, long... parameters) {
+            long[][] triples = new long[query.numberOfEdges()][];
+            int i = 0;
+            for (Edge edge : query.edgeSet()) {
+                triples[i++] = new long[]{edge.getSource(), edge.getDestination(), edge.getLabel()};
+            }
+            triples = Arrays.copyOf(triples, i);
+            Arrays.sort(triples, (long[] a, long[] b) -> {
+                for (int j = 0; j < 3; j++) {
+                    int c = Long.compare(a[j], b[j]);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            });
+            this.edges = new long[triples.length * 3];
+            for (int t = 0; t < triples.length; t++) {
+                System.arraycopy(triples[t], 0, this.edges, t * 3, 3);
+            }
+            long[] vertices = new long[query.numberOfNodes()];
+            int n = 0;
+            for (Long node : query.vertexSet()) {
+                vertices[n++] = node;
+            }
+            this.nodes = Arrays.copyOf(vertices, n);
+            Arrays.sort(this.nodes);
+            this.parameters = parameters.clone();
+            this.hash = 31 * (31 * Arrays.hashCode(this.edges) + Arrays.hashCode(this.nodes)) + Arrays.hashCode(this.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(edges, other.edges) && Arrays.equals(nodes, other.nodes) && Arrays.equals(parameters, other.parameters);
+        }
+    }
+}
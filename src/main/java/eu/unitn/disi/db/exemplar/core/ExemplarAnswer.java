@@ -44,7 +44,7 @@ public abstract class ExemplarAnswer implements Comparable<ExemplarAnswer> {
     protected Map<Long, Double> nodeWeights;
     protected double totalWeight;
 
-    ExemplarAnswer() {  } //A default constructor used for serialization
+    protected ExemplarAnswer() {  } //A default constructor used for serialization
 
     /**
      * Constructor for the class
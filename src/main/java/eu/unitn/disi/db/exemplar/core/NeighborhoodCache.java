@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core;
+
+import com.koloboke.collect.map.hash.HashLongDoubleMap;
+import com.koloboke.collect.map.hash.HashLongDoubleMaps;
+import eu.unitn.disi.db.exemplar.core.algorithms.PersonalizedPageRank;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of the particle vectors and neighborhoods
+ * computed by the expansion around the query nodes.
+ *
+ * Entries are keyed by the seed nodes, the priority labels, the threshold and
+ * the restart probability. The cache is bounded by an estimate of the memory
+ * used by its entries: the least recently used are dropped when the estimate
+ * exceeds the limit.
+ * Particle vectors of single seeds can be composed to approximate the vector
+ * of a set of seeds, summing the particles of each node.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class NeighborhoodCache {
+
+    /**
+     * Estimated bytes of a node in a particle vector and of an edge in a
+     * neighborhood
+     */
+    public static final long PARTICLE_BYTES = 32;
+    public static final long EDGE_BYTES = 128;
+
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param memoryLimit maximum memory of the entries in Mb, 0 to disable
+     * the cache
+     */
+    public NeighborhoodCache(long memoryLimit) {
+        this.maxBytes = memoryLimit * 1024 * 1024;
+    }
+
+    /**
+     *
+     * @param key
+     * @param withNeighborhood true if the neighborhood is needed
+     * @return the cached expansion, null if missing or without the
+     * neighborhood when needed
+     */
+    public synchronized Entry get(Key key, boolean withNeighborhood) {
+        Entry entry = entries.get(key);
+        if (entry == null || (withNeighborhood && entry.neighborhood == null)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Adds an expansion, replacing the one with the same key, and evicts the
+     * least recently used ones if needed
+     *
+     * @param key
+     * @param entry
+     */
+    public synchronized void put(Key key, Entry entry) {
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            usedBytes -= old.weight;
+        }
+        usedBytes += entry.weight;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            usedBytes -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Sums the particle vectors of single seeds
+     *
+     * @param vectors
+     * @return the particle vector of all the seeds
+     */
+    public static Map<Long, Double> compose(List<Map<Long, Double>> vectors) {
+        if (vectors.size() == 1) {
+            return vectors.get(0);
+        }
+        int size = 0;
+        for (Map<Long, Double> vector : vectors) {
+            size = Math.max(size, vector.size());
+        }
+        HashLongDoubleMap composed = HashLongDoubleMaps.newUpdatableMap(size);
+        for (Map<Long, Double> vector : vectors) {
+            for (Map.Entry<Long, Double> particles : vector.entrySet()) {
+                composed.addValue(particles.getKey().longValue(), particles.getValue().doubleValue());
+            }
+        }
+        return composed;
+    }
+
+    public synchronized void invalidate() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @return estimated memory of the entries in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The result of an expansion
+     */
+    public static final class Entry {
+
+        private final Map<Long, Double> particleVector;
+        private final Multigraph neighborhood;
+        private final long weight;
+        private volatile Map<Long, Double> popularities = null;
+
+        /**
+         *
+         * @param particleVector the particles of each node, not modified
+         * afterwards
+         * @param neighborhood the neighborhood, null if not computed
+         */
+        public Entry(Map<Long, Double> particleVector, Multigraph neighborhood) {
+            this.particleVector = particleVector;
+            this.neighborhood = neighborhood;
+            this.weight = particleVector.size() * PARTICLE_BYTES
+                    + (neighborhood == null ? 0 : neighborhood.numberOfEdges() * EDGE_BYTES);
+        }
+
+        public Map<Long, Double> getParticleVector() {
+            return particleVector;
+        }
+
+        public Multigraph getNeighborhood() {
+            return neighborhood;
+        }
+
+        /**
+         *
+         * @return the particle vector normalized in the [0-1] range, do not
+         * modify
+         */
+        public Map<Long, Double> getPopularities() {
+            Map<Long, Double> normalized = popularities;
+            if (normalized == null) {
+                normalized = Collections.unmodifiableMap(PersonalizedPageRank.normalize(particleVector));
+                popularities = normalized;
+            }
+            return normalized;
+        }
+    }
+
+    /**
+     * The inputs of an expansion
+     */
+    public static final class Key {
+
+        private final long[] seeds;
+        private final long[] labels;
+        private final double threshold;
+        private final double restartProbability;
+        private final int hash;
+
+        /**
+         *
+         * @param seeds the starting nodes
+         * @param labels the priority labels
+         * @param threshold
+         * @param restartProbability
+         */
+        public Key(Collection<Long> seeds, Collection<Long> labels, double threshold, double restartProbability) {
+            this.seeds = sorted(seeds);
+            this.labels = sorted(labels);
+            this.threshold = threshold;
+            this.restartProbability = restartProbability;
+            int h = Arrays.hashCode(this.seeds);
+            h = 31 * h + Arrays.hashCode(this.labels);
+            h = 31 * h + Double.hashCode(threshold);
+            this.hash = 31 * h + Double.hashCode(restartProbability);
+        }
+
+        private static long[] sorted(Collection<Long> values) {
+            long[] array = new long[values.size()];
+            int i = 0;
+            for (Long value : values) {
+                array[i++] = value;
+            }
+            Arrays.sort(array);
+            return array;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && threshold == other.threshold && restartProbability == other.restartProbability
+                    && Arrays.equals(seeds, other.seeds) && Arrays.equals(labels, other.labels);
+        }
+    }
+}
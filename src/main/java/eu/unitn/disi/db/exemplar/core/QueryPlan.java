@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core;
+
+import eu.unitn.disi.db.grava.graphs.Edge;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The order in which the edges of a query are matched: a root node and a
+ * sequence of edges, each one touching at least a node already matched.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class QueryPlan {
+
+    /**
+     * One edge of the plan
+     */
+    public static final class Step {
+
+        private final Edge queryEdge;
+        private final Long boundNode;
+        private final Long nextNode;
+        private final boolean incoming;
+        private final boolean closing;
+
+        /**
+         *
+         * @param queryEdge the query edge to match
+         * @param boundNode the end of the edge already matched
+         * @param closing true if also the other end is already matched
+         */
+        public Step(Edge queryEdge, Long boundNode, boolean closing) {
+            this.queryEdge = queryEdge;
+            this.boundNode = boundNode;
+            this.incoming = queryEdge.getDestination().equals(boundNode);
+            this.nextNode = incoming ? queryEdge.getSource() : queryEdge.getDestination();
+            this.closing = closing;
+        }
+
+        public Edge getQueryEdge() {
+            return queryEdge;
+        }
+
+        /**
+         *
+         * @return the end of the edge already matched, where the candidate
+         * edges are looked up
+         */
+        public Long getBoundNode() {
+            return boundNode;
+        }
+
+        /**
+         *
+         * @return the other end of the edge
+         */
+        public Long getNextNode() {
+            return nextNode;
+        }
+
+        /**
+         *
+         * @return true if the edge enters the bound node
+         */
+        public boolean isIncoming() {
+            return incoming;
+        }
+
+        /**
+         *
+         * @return true if both ends are already matched, so the step only
+         * checks that the edge exists
+         */
+        public boolean isClosing() {
+            return closing;
+        }
+
+        @Override
+        public String toString() {
+            return (closing ? "check " : "expand ") + queryEdge;
+        }
+    }
+
+    private final Long root;
+    private final List<Step> steps;
+
+    /**
+     *
+     * @param root the query node matched first
+     * @param steps the edges in matching order
+     */
+    public QueryPlan(Long root, List<Step> steps) {
+        this.root = root;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    public Long getRoot() {
+        return root;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    @Override
+    public String toString() {
+        return "root " + root + " " + steps;
+    }
+}
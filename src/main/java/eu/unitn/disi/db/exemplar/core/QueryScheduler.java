@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core;
+
+import eu.unitn.disi.db.mutilities.LoggableObject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several queries at the same time on a bounded pool, so the stages of
+ * different queries overlap.
+ *
+ * The scheduler bounds only the queries in progress: the parallel stages of
+ * the queries, the searches and the expansions, should run on one pool
+ * shared by all of them, so that the threads in use stay within maxQueries
+ * plus the workers of that pool.
+ *
+ * Each query gets a memory budget of memoryLimit / maxQueries megabytes, and
+ * it is admitted only if the heap in use plus its budget stays within the
+ * limit, or if no other query is running. This is a heuristic: the heap is
+ * freed by the collector and not when a query ends, so a waiting query
+ * checks again periodically, and a running query is not stopped when it
+ * goes over its budget.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class QueryScheduler extends LoggableObject {
+
+    private static final long ADMISSION_WAIT_MS = 200;
+    private static final double MEGABYTE = 1024 * 1024.;
+
+    private final ExecutorService pool;
+    private final int memoryLimit;
+    private final int queryBudget;
+    private final Runtime runtime = Runtime.getRuntime();
+    private int running = 0;
+
+    /**
+     *
+     * @param maxQueries number of queries running at the same time
+     * @param memoryLimit heap occupation limit (megabytes), not positive for
+     * no limit
+     */
+    public QueryScheduler(int maxQueries, int memoryLimit) {
+        maxQueries = Math.max(1, maxQueries);
+        this.pool = Executors.newFixedThreadPool(maxQueries);
+        this.memoryLimit = memoryLimit;
+        this.queryBudget = memoryLimit > 0 ? memoryLimit / maxQueries : -1;
+    }
+
+    /**
+     *
+     * @return the memory budget of a query (megabytes), -1 for no limit
+     */
+    public int getQueryBudget() {
+        return queryBudget;
+    }
+
+    /**
+     * Schedules the query, it starts once admitted
+     *
+     * @param <T>
+     * @param query
+     * @return the result of the query
+     */
+    public <T> Future<T> submit(Callable<T> query) {
+        return pool.submit(() -> {
+            admit();
+            try {
+                return query.call();
+            } finally {
+                release();
+            }
+        });
+    }
+
+    private double usedMemory() {
+        return (runtime.totalMemory() - runtime.freeMemory()) / MEGABYTE;
+    }
+
+    private synchronized void admit() throws InterruptedException {
+        boolean waited = false;
+        while (running > 0 && memoryLimit > 0 && usedMemory() + queryBudget > memoryLimit) {
+            if (!waited) {
+                debug("Query waiting for %sMb with %.2fMb in use by %s queries", queryBudget, usedMemory(), running);
+                waited = true;
+            }
+            wait(ADMISSION_WAIT_MS);
+        }
+        running++;
+    }
+
+    private synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Stops the pool once the scheduled queries are over
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Drops the queries not started and interrupts the running ones
+     */
+    public void shutdownNow() {
+        pool.shutdownNow();
+    }
+}
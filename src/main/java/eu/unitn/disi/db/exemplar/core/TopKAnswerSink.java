@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core;
+
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps only the k answers with the highest total weight, so the answers have
+ * to be weighted before reaching the sink.
+ *
+ * As in a {@link TreeSet} of answers, answers with the same weight are kept
+ * once. The lowest weighted answer received is kept as well.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ * @param <T> the type of answers
+ */
+public class TopKAnswerSink<T extends ExemplarAnswer> implements AnswerSink<T> {
+
+    private final int k;
+    private final TreeSet<T> top = new TreeSet<>();
+    private final AtomicLong received = new AtomicLong();
+    private T worst = null;
+
+    // Answers not above the threshold and not below the worst are discarded without locking
+    private volatile double threshold = Double.NEGATIVE_INFINITY;
+    private volatile double worstWeight = Double.POSITIVE_INFINITY;
+
+    /**
+     *
+     * @param k number of answers to keep, 0 to only count the answers
+     */
+    public TopKAnswerSink(int k) {
+        this.k = k;
+    }
+
+    @Override
+    public void accept(T answer) {
+        received.incrementAndGet();
+        double weight = answer.getTotalWeight();
+        if (weight <= threshold && weight >= worstWeight) {
+            return;
+        }
+        synchronized (this) {
+            if (worst == null || weight < worst.getTotalWeight()) {
+                worst = answer;
+                worstWeight = weight;
+            }
+            if (k > 0) {
+                top.add(answer);
+                if (top.size() > k) {
+                    top.pollFirst();
+                }
+                if (top.size() == k) {
+                    threshold = top.first().getTotalWeight();
+                }
+            } else {
+                threshold = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the top-k answers in ascending order of weight
+     */
+    public synchronized TreeSet<T> getTopK() {
+        return new TreeSet<>(top);
+    }
+
+    /**
+     *
+     * @return the answer with the lowest weight, null if none was received
+     */
+    public synchronized T getWorst() {
+        return worst;
+    }
+
+    /**
+     *
+     * @return number of answers received, including duplicates
+     */
+    public long getReceived() {
+        return received.get();
+    }
+}
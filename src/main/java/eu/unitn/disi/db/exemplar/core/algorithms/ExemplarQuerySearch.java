@@ -21,10 +21,13 @@ import eu.unitn.disi.db.command.algorithmic.Algorithm;
 import eu.unitn.disi.db.command.algorithmic.AlgorithmInput;
 import eu.unitn.disi.db.command.algorithmic.AlgorithmOutput;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
+import eu.unitn.disi.db.exemplar.core.AnswerSink;
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.core.storage.LabelStatistics;
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -74,6 +77,12 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
     @AlgorithmInput
     protected Set<Long> whiteList = null;
 
+    @AlgorithmInput
+    protected AnswerSink<T> answerSink = null;
+
+    @AlgorithmInput
+    protected LabelStatistics labelStatistics = null;
+
     
     @AlgorithmOutput
     protected List<T> answers;
@@ -186,6 +195,9 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
      * @return
      */
     public Long findLessFrequentLabel(Collection<Long> allowedLabels) {
+        if (this.labelStatistics != null) {
+            return this.findLabelByStatistics(allowedLabels, true);
+        }
         TreeMap<Long, Integer> frequency = new TreeMap<>();
         Collection<Edge> kbEdges = this.graph.edgeSet();
         Long bestLabel = null;
@@ -223,6 +235,9 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
      * @return
      */
     public Long findMostFrequentLabel(Collection<Long> allowedLabels) {
+        if (this.labelStatistics != null) {
+            return this.findLabelByStatistics(allowedLabels, false);
+        }
         TreeMap<Long, Integer> frequency = new TreeMap<>();
         Collection<Edge> kbEdges = this.graph.edgeSet();
         Long bestLabel = null;
@@ -253,6 +268,27 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
         return bestLabel;
     }
 
+    /**
+     * Looks up the allowed labels in the label statistics, without scanning
+     * the knowledge base
+     *
+     * @param allowedLabels
+     * @param minimum true for the less frequent label
+     * @return the label with minimum or maximum number of edges
+     */
+    private Long findLabelByStatistics(Collection<Long> allowedLabels, boolean minimum) {
+        Long bestLabel = null;
+        long bestF = 0;
+        for (Long label : allowedLabels) {
+            long f = this.labelStatistics.edgeCount(label);
+            if (bestLabel == null || (minimum ? f <= bestF : f > bestF)) {
+                bestF = f;
+                bestLabel = label;
+            }
+        }
+        return bestLabel;
+    }
+
     /**
      * Given a query graph it return the node that is more convenient
      * to select as root.
@@ -276,8 +312,16 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
 
         Long bestLabel = 0L;
 
-        for(Edge e : this.query.edgeSet()){
-            bestLabel = e.getLabel() > bestLabel ? e.getLabel() : bestLabel;
+        if (this.labelStatistics != null) {
+            Set<Long> edgeLabels = new HashSet<>();
+            for (Edge l : this.query.edgeSet()) {
+                edgeLabels.add(l.getLabel());
+            }
+            bestLabel = minimumFrquency ? this.findLessFrequentLabel(edgeLabels) : this.findMostFrequentLabel(edgeLabels);
+        } else {
+            for(Edge e : this.query.edgeSet()){
+                bestLabel = e.getLabel() > bestLabel ? e.getLabel() : bestLabel;
+            }
         }
 
 //        if(minimumFrquency) {
@@ -401,6 +445,32 @@ public abstract class ExemplarQuerySearch<T extends ExemplarAnswer> extends Algo
     public void setWhiteList(Set<Long> whiteList) {
         this.whiteList = whiteList;
     }
+
+    public AnswerSink<T> getAnswerSink() {
+        return answerSink;
+    }
+
+    /**
+     * When set, the answers are streamed to the sink as soon as they are
+     * found and not stored
+     * @param answerSink the consumer of the answers
+     */
+    public void setAnswerSink(AnswerSink<T> answerSink) {
+        this.answerSink = answerSink;
+    }
+
+    public LabelStatistics getLabelStatistics() {
+        return labelStatistics;
+    }
+
+    /**
+     * When set, the label frequencies used to choose the root are looked up
+     * in the statistics instead of counted on the knowledge base
+     * @param labelStatistics the statistics of the labels of the graph
+     */
+    public void setLabelStatistics(LabelStatistics labelStatistics) {
+        this.labelStatistics = labelStatistics;
+    }
     
 
 
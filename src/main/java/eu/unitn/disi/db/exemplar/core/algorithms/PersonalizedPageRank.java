@@ -134,6 +134,15 @@ public class PersonalizedPageRank extends Algorithm {
      * @return map of node id to PPR value, missing nodes are zero
      */
     public Map<Long, Double> getPPRVector() {
+        return normalize(particleVector);
+    }
+
+    /**
+     * Normalizes a particle vector in the [0-1] range
+     * @param particleVector
+     * @return map of node id to PPR value, missing nodes are zero
+     */
+    public static Map<Long, Double> normalize(Map<Long, Double> particleVector) {
         Map<Long, Double> pprV = new HashMap<>();
         //Normalize popularities
         Set<Long> keys = particleVector.keySet();
@@ -146,7 +155,6 @@ public class PersonalizedPageRank extends Algorithm {
                 min = val;
             }
         }
-        debug("Max ppv %s  Min ppv %s", max, min);
         //Normalize
         for (Long n : keys) {
             pprV.put(n, (particleVector.get(n) - min) / (max - min));
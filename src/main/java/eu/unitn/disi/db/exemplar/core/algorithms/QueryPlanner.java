@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.algorithms;
+
+import eu.unitn.disi.db.command.algorithmic.Algorithm;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmInput;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmOutput;
+import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
+import eu.unitn.disi.db.exemplar.core.QueryPlan;
+import eu.unitn.disi.db.exemplar.core.storage.LabelStatistics;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import eu.unitn.disi.db.mutilities.Pair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a query into a {@link QueryPlan}.
+ *
+ * The root is the node with the most selective incident label, ties broken by
+ * degree. Then, greedily, the edges closing a cycle on matched nodes are
+ * checked first, and among the others the one with the most selective label
+ * is expanded, using the frequency of the pair with the edges already matched
+ * at the same node when available. Only the component of the root is planned,
+ * as the recursive search does.
+ * With {@link LabelStatistics} the root cost is the number of distinct nodes
+ * at the end of the label, and the cost of an edge is the average fan-out of
+ * the label from the matched node.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class QueryPlanner extends Algorithm {
+
+    @AlgorithmInput
+    private Multigraph query;
+
+    @AlgorithmInput
+    private Map<Long, Integer> labelFrequency;
+
+    @AlgorithmInput
+    private Map<Pair<Long, Long>, Integer> labelPairFrequency;
+
+    @AlgorithmInput
+    private LabelStatistics labelStatistics;
+
+    @AlgorithmOutput
+    private QueryPlan plan;
+
+    private GraphQueryEstimator estimator;
+
+    @Override
+    protected void algorithm() throws AlgorithmExecutionException {
+        if (query == null || query.numberOfEdges() == 0) {
+            throw new AlgorithmExecutionException("Cannot plan a query without edges");
+        }
+        if (labelFrequency == null && labelStatistics != null) {
+            labelFrequency = labelStatistics.toFrequencies();
+        }
+        if (labelStatistics != null && !labelStatistics.hasNodeStatistics()) {
+            labelStatistics = null;
+        }
+        estimator = new GraphQueryEstimator();
+        estimator.setLabelFrequency(labelFrequency == null ? Collections.<Long, Integer>emptyMap() : labelFrequency);
+        estimator.setLabelPairFrequency(labelPairFrequency);
+
+        Long root = chooseRoot();
+        Set<Long> bound = new HashSet<>();
+        Set<Edge> planned = new HashSet<>();
+        Map<Long, List<Long>> matchedLabels = new HashMap<>();
+        List<QueryPlan.Step> steps = new ArrayList<>(query.numberOfEdges());
+        bound.add(root);
+
+        Set<Edge> frontier = new LinkedHashSet<>();
+        addFrontier(root, planned, frontier);
+        while (!frontier.isEmpty()) {
+            Edge best = null;
+            Long bestBound = null;
+            double bestCost = Double.MAX_VALUE;
+            boolean bestClosing = false;
+            for (Edge e : frontier) {
+                boolean closing = bound.contains(e.getSource()) && bound.contains(e.getDestination());
+                // Expand from the end with the most selective matched labels
+                Long from = bound.contains(e.getSource()) ? e.getSource() : e.getDestination();
+                if (closing && cost(e, e.getDestination(), matchedLabels) < cost(e, e.getSource(), matchedLabels)) {
+                    from = e.getDestination();
+                }
+                double cost = cost(e, from, matchedLabels);
+                if (best == null
+                        || (closing && !bestClosing)
+                        || (closing == bestClosing && (cost < bestCost
+                        || (cost == bestCost && degree(other(e, from)) > degree(other(best, bestBound)))))) {
+                    best = e;
+                    bestBound = from;
+                    bestCost = cost;
+                    bestClosing = closing;
+                }
+            }
+            frontier.remove(best);
+            planned.add(best);
+            steps.add(new QueryPlan.Step(best, bestBound, bestClosing));
+            matchedLabels.computeIfAbsent(best.getSource(), k -> new ArrayList<>()).add(best.getLabel());
+            matchedLabels.computeIfAbsent(best.getDestination(), k -> new ArrayList<>()).add(best.getLabel());
+            Long next = other(best, bestBound);
+            if (bound.add(next)) {
+                addFrontier(next, planned, frontier);
+            }
+        }
+        if (steps.size() < query.numberOfEdges()) {
+            warn("Query is not connected, only %s out of %s edges are planned", steps.size(), query.numberOfEdges());
+        }
+        plan = new QueryPlan(root, steps);
+    }
+
+    private Long chooseRoot() {
+        Long root = null;
+        double rootCost = Double.MAX_VALUE;
+        for (Long node : query.vertexSet()) {
+            if (degree(node) == 0) {
+                continue;
+            }
+            double cost = Double.MAX_VALUE;
+            for (Edge e : incident(node)) {
+                cost = Math.min(cost, labelStatistics != null ? candidates(e, node) : estimator.computeProbability(e));
+            }
+            if (root == null || cost < rootCost || (cost == rootCost && degree(node) > degree(root))) {
+                root = node;
+                rootCost = cost;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Estimated number of candidates for the edge at the matched node
+     */
+    private double cost(Edge e, Long from, Map<Long, List<Long>> matchedLabels) {
+        if (labelStatistics != null) {
+            long nodes = candidates(e, from);
+            return nodes == 0 ? 0 : labelStatistics.edgeCount(e.getLabel()) / (double) nodes;
+        }
+        double cost = estimator.computeProbability(e);
+        if (labelPairFrequency != null) {
+            for (Long label : matchedLabels.getOrDefault(from, Collections.<Long>emptyList())) {
+                cost = Math.min(cost, estimator.computeProbability(label, e.getLabel()));
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Number of graph nodes with an edge with the label of e, on the side of
+     * the node
+     */
+    private long candidates(Edge e, Long node) {
+        return e.getSource().equals(node)
+                ? labelStatistics.distinctSources(e.getLabel())
+                : labelStatistics.distinctDestinations(e.getLabel());
+    }
+
+    private void addFrontier(Long node, Set<Edge> planned, Set<Edge> frontier) {
+        for (Edge e : incident(node)) {
+            if (!planned.contains(e)) {
+                frontier.add(e);
+            }
+        }
+    }
+
+    private Collection<Edge> incident(Long node) {
+        List<Edge> edges = new ArrayList<>();
+        Collection<Edge> out = query.outgoingEdgesOf(node);
+        Collection<Edge> in = query.incomingEdgesOf(node);
+        if (out != null) {
+            edges.addAll(out);
+        }
+        if (in != null) {
+            edges.addAll(in);
+        }
+        return edges;
+    }
+
+    private int degree(Long node) {
+        return query.inDegreeOf(node) + query.outDegreeOf(node);
+    }
+
+    private static Long other(Edge e, Long node) {
+        return e.getSource().equals(node) ? e.getDestination() : e.getSource();
+    }
+
+    /**
+     *
+     * @param query the query to plan
+     */
+    public void setQuery(Multigraph query) {
+        this.query = query;
+    }
+
+    /**
+     *
+     * @param labelFrequency number of edges in the graph for each label
+     */
+    public void setLabelFrequency(Map<Long, Integer> labelFrequency) {
+        this.labelFrequency = labelFrequency;
+    }
+
+    /**
+     *
+     * @param labelPairFrequency optional, number of nodes with both labels
+     * for each pair of labels, smaller label first
+     */
+    public void setLabelPairFrequency(Map<Pair<Long, Long>, Integer> labelPairFrequency) {
+        this.labelPairFrequency = labelPairFrequency;
+    }
+
+    /**
+     *
+     * @param labelStatistics optional, statistics of the labels of the graph,
+     * used instead of the frequencies when they contain the node counts
+     */
+    public void setLabelStatistics(LabelStatistics labelStatistics) {
+        this.labelStatistics = labelStatistics;
+    }
+
+    public QueryPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Plans the query with the given label frequencies
+     *
+     * @param query
+     * @param labelFrequency
+     * @return the plan
+     * @throws AlgorithmExecutionException
+     */
+    public static QueryPlan plan(Multigraph query, Map<Long, Integer> labelFrequency) throws AlgorithmExecutionException {
+        QueryPlanner planner = new QueryPlanner();
+        planner.setQuery(query);
+        planner.setLabelFrequency(labelFrequency);
+        planner.compute();
+        return planner.getPlan();
+    }
+
+    /**
+     * Plans the query with the given label statistics
+     *
+     * @param query
+     * @param labelStatistics
+     * @return the plan
+     * @throws AlgorithmExecutionException
+     */
+    public static QueryPlan plan(Multigraph query, LabelStatistics labelStatistics) throws AlgorithmExecutionException {
+        QueryPlanner planner = new QueryPlanner();
+        planner.setQuery(query);
+        planner.setLabelStatistics(labelStatistics);
+        planner.compute();
+        return planner.getPlan();
+    }
+}
@@ -17,20 +17,27 @@
  */
 package eu.unitn.disi.db.exemplar.core.algorithms;
 
+import com.koloboke.collect.map.LongDoubleCursor;
+import com.koloboke.collect.map.hash.HashLongDoubleMap;
+import com.koloboke.collect.map.hash.HashLongDoubleMaps;
+import com.koloboke.collect.set.hash.HashLongSet;
+import com.koloboke.collect.set.hash.HashLongSets;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmInput;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
-import eu.unitn.disi.db.mutilities.data.WeightedComparator;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.grava.graphs.BaseMultigraph;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.grava.graphs.Edge;
-import eu.unitn.disi.db.mutilities.data.CompoundIterator;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -38,7 +45,14 @@ import java.util.Map;
  * top-setMaxNumNodes nodes with highest PPV, biased on edges and nodes present
  * in the query
  *
- *
+ * Particles are kept in primitive long to double maps: the frontier of the
+ * current iteration and the accumulator of the next one are two buffers
+ * swapped and cleared at every iteration, so no map is allocated per
+ * iteration and no value is boxed.
+ * With more than one thread the frontier is split in ranges of about the
+ * same total degree, each thread spreads its range into its own accumulator
+ * and the accumulators are merged in range order, so the result depends only
+ * on the number of threads.
  *
  * @author Matteo Lissandri <ml@disi.unitn.eu>
  */
@@ -52,19 +66,55 @@ public class SampleExpansionRank extends PersonalizedPageRank {
     protected final double SHIFT_VALUE = 0.0;
     public static final int MAX_DEPTH = 10;
 
+    /**
+     * Frontiers with less edges than this are spread by a single thread
+     */
+    public static final int MIN_PARALLEL_EDGES = 10_000;
+
+    @AlgorithmInput
+    protected int numThreads = 1;
+
+    /**
+     * Pool shared with other computations, null to create one for this
+     * expansion
+     */
+    @AlgorithmInput
+    protected ExecutorService pool = null;
+
+    /**
+     * Labels of the query, as a primitive set
+     */
+    private HashLongSet queryLabels;
+
+    /**
+     * Nodes of the frontier that spread their particles in this iteration
+     */
+    private long[] frontierNodes = new long[1024];
+    private double[] frontierParticles = new double[1024];
+    private long[] frontierEdges = new long[1025];
+    private int frontierSize = 0;
+
+    /**
+     * Accumulators and neighborhood edges of each thread, reused at every
+     * iteration
+     */
+    private HashLongDoubleMap[] partialParticles;
+    private List<List<Edge>> partialEdges;
+
     @Override
     protected void algorithm() throws AlgorithmExecutionException {
         //DECLARATIONS
 
-        Collection<Long> graphNodes;
-        HashSet<Long> visitedNodes = new HashSet<>(VERTEX_INIT_CAPACITY);
-        Map<Long, Double> currentParticles = new HashMap<>();
-        Map<Long, Double> aux;
+        HashLongSet visitedNodes = HashLongSets.newUpdatableSet(VERTEX_INIT_CAPACITY);
+        HashLongDoubleMap currentParticles = HashLongDoubleMaps.newUpdatableMap();
+        HashLongDoubleMap aux = HashLongDoubleMaps.newUpdatableMap();
+        HashLongDoubleMap swap;
+        HashLongDoubleMap ranks = HashLongDoubleMaps.newUpdatableMap(VERTEX_INIT_CAPACITY);
 
         if (this.computeNeighborhood) {
             neighborhood = new BaseMultigraph(VERTEX_INIT_CAPACITY);
         }
-        particleVector = new HashMap<>(VERTEX_INIT_CAPACITY);
+        particleVector = ranks;
         if (hubs == null) {
             this.hubs = new HashSet<>();
         }
@@ -72,13 +122,16 @@ public class SampleExpansionRank extends PersonalizedPageRank {
         if(this.priorityLabels == null){
             this.priorityLabels = new HashSet<>();
         }
-        long destId;
+        queryLabels = HashLongSets.newUpdatableSet(this.priorityLabels.size());
+        for (Long label : this.priorityLabels) {
+            queryLabels.add(label.longValue());
+        }
         long cyclesCount = 0;
         double queryParticles = 0;
         double maxNodeParticles = 0;
         double partialCount = 0;
 
-        double nodeParticles, particles, frequency, passing;
+        double nodeParticles, particles;
 
         boolean notEmptyP = true;
 
@@ -89,6 +142,11 @@ public class SampleExpansionRank extends PersonalizedPageRank {
         if (this.computeNeighborhood) {
             toAdd = new ArrayList<>(EDGES_INIT_CAPACITY);
         }
+        ExecutorService pool = null;
+        if (numThreads > 1) {
+            pool = this.pool != null ? this.pool : Executors.newFixedThreadPool(numThreads);
+            initPartials();
+        }
         try {
             wa1.start();
 
@@ -102,8 +160,8 @@ public class SampleExpansionRank extends PersonalizedPageRank {
                 }
                 
                 //debug("Node %s has %d neighbours and popularity %f", node, kb.degreeOf(node), nodeParticles);
-                currentParticles.put(node, nodeParticles);
-                particleVector.put(node, nodeParticles);
+                currentParticles.put(node.longValue(), nodeParticles);
+                ranks.put(node.longValue(), nodeParticles);
                 queryParticles += nodeParticles;
                 maxNodeParticles = maxNodeParticles < nodeParticles ? nodeParticles : maxNodeParticles;
             }
@@ -113,70 +171,43 @@ public class SampleExpansionRank extends PersonalizedPageRank {
 
             while (notEmptyP) {
                 cyclesCount++;
-                //Accumulator
-                aux = new HashMap<>(currentParticles.size()*5/3);
-                //Concepts from the previous iteration
-                graphNodes = currentParticles.keySet();
-                for (Long node : graphNodes) {
+                //Concepts from the previous iteration that spread particles
+                frontierSize = 0;
+                LongDoubleCursor cur = currentParticles.cursor();
+                while (cur.moveNext()) {
+                    long node = cur.key();
                     // We skip the big hubs, but only if they are not part of the query and not the first time
                     if (visitedNodes.contains(node)) {
                         continue;
                     }
-                    
-
                     //Particles get diminished by the restart probability later
-                    particles = currentParticles.get(node);
+                    particles = cur.value();
                     int deg = this.kb.degreeOf(node);
                     // High degree nodes are sinks
                     if (particles < deg/2) {
                         continue;
                     }
                     visitedNodes.add(node);
-                    //Need to weight all the edges and normalize their weights                    
-                    //maxTime = wa.getElapsedTime() < maxTime ? maxTime : wa.getElapsedTimeMillis();                    
-                    Edge e;
-                    Iterator<Edge> iterableEdges;
-                    // Only certain edges can  be added if there are not enough
-                    // particles
-
-                    ArrayList<Iterator<Edge>> iters = new ArrayList<>(2);
-                    iters.add(this.kb.incomingEdgesIteratorOf(node));
-                    iters.add(this.kb.outgoingEdgesIteratorOf(node));
-                    iterableEdges = new CompoundIterator<>(iters);
-                    double damping;
-                    while (iterableEdges.hasNext()) {
-                        e = iterableEdges.next();
-                        destId = e.getSource().equals(node) ? e.getDestination() : e.getSource();
-                        if (this.computeNeighborhood) {
-                            boolean keepEdge = !this.keepOnlyQueryEdges || this.priorityLabels.contains(e.getLabel());
-                            if (keepEdge) {
-                                toAdd.add(e);
-                            }
-                        }                        
-                        if (particleVector.containsKey(destId)) {
-                            continue;
-                        }
-                        damping = this.priorityLabels.contains(e.getLabel()) ? 1 : (1 - restartProbability);
-                        passing = particles * damping / (deg);
-                        if (passing >= 1 || this.priorityLabels.contains(e.getLabel())) {
-                            passing = Math.max(passing, 1);
-                            aux.merge(destId, passing, Double::sum);
-                        }                        
-                    }
+                    addToFrontier(node, particles, deg);
+                }
+
+                //Accumulator, empty from the previous iteration
+                if (pool != null && frontierSize > 1 && frontierEdges[frontierSize] >= MIN_PARALLEL_EDGES) {
+                    spreadParallel(pool, ranks, aux, this.computeNeighborhood ? toAdd : null);
+                } else {
+                    spreadRange(0, frontierSize, ranks, aux, this.computeNeighborhood ? toAdd : null);
                 }
 
-                currentParticles.clear();
+                swap = currentParticles;
                 currentParticles = aux;
+                aux = swap;
+                aux.clear();
 
-                graphNodes = currentParticles.keySet();
                 partialCount = 0;
-                double tmp;
-                for (Long eId : graphNodes) {
-                    frequency = particleVector.getOrDefault(eId, 0.0);
-                    tmp = currentParticles.get(eId);
-                    frequency += tmp;
-                    partialCount += tmp;
-                    particleVector.put(eId, frequency);
+                cur = currentParticles.cursor();
+                while (cur.moveNext()) {
+                    ranks.addValue(cur.key(), cur.value());
+                    partialCount += cur.value();
                 }
                 notEmptyP = partialCount > MIN_PARTICLES && cyclesCount < MAX_DEPTH;
 
@@ -207,8 +238,158 @@ public class SampleExpansionRank extends PersonalizedPageRank {
             //debug("Time here %dms", wa1.getElapsedTimeMillis());
         } catch (NullPointerException | IllegalStateException ex) {
             throw new AlgorithmExecutionException(ex);
+        } finally {
+            if (pool != null && pool != this.pool) {
+                pool.shutdownNow();
+            }
+            partialParticles = null;
+            partialEdges = null;
+        }
+
+    }
+
+    private void initPartials() {
+        partialParticles = new HashLongDoubleMap[numThreads];
+        partialEdges = new ArrayList<>(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            partialParticles[t] = HashLongDoubleMaps.newUpdatableMap();
+            partialEdges.add(new ArrayList<>());
+        }
+    }
+
+    private void spreadRange(int from, int to, HashLongDoubleMap ranks, HashLongDoubleMap next, List<Edge> toAdd) {
+        for (int i = from; i < to; i++) {
+            spread(frontierNodes[i], frontierParticles[i], ranks, next, toAdd);
+        }
+    }
+
+    /**
+     * Splits the frontier in one range per thread with about the same number
+     * of edges, and merges the accumulators of the threads in range order
+     */
+    private void spreadParallel(ExecutorService pool, HashLongDoubleMap ranks, HashLongDoubleMap next, List<Edge> toAdd) throws AlgorithmExecutionException {
+        long totalEdges = frontierEdges[frontierSize];
+        List<Future<Void>> tasks = new ArrayList<>(numThreads);
+        int from = 0;
+        for (int t = 0; t < numThreads && from < frontierSize; t++) {
+            long bound = totalEdges * (t + 1) / numThreads;
+            int to = t == numThreads - 1 ? frontierSize : Math.max(from + 1, upperBound(from, bound));
+            final int start = from, end = to;
+            final HashLongDoubleMap partial = partialParticles[t];
+            final List<Edge> edges = toAdd != null ? partialEdges.get(t) : null;
+            tasks.add(pool.submit((Callable<Void>) () -> {
+                spreadRange(start, end, ranks, partial, edges);
+                return null;
+            }));
+            from = to;
+        }
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new AlgorithmExecutionException(ex);
+        }
+        for (int t = 0; t < tasks.size(); t++) {
+            LongDoubleCursor cur = partialParticles[t].cursor();
+            while (cur.moveNext()) {
+                next.addValue(cur.key(), cur.value());
+            }
+            partialParticles[t].clear();
+            if (toAdd != null) {
+                toAdd.addAll(partialEdges.get(t));
+                partialEdges.get(t).clear();
+            }
+        }
+    }
+
+    /**
+     * First frontier position after from with at least bound edges before it
+     */
+    private int upperBound(int from, long bound) {
+        int low = from;
+        int high = frontierSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (frontierEdges[mid + 1] < bound) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.min(low + 1, frontierSize);
+    }
+
+    private void addToFrontier(long node, double particles, int deg) {
+        if (frontierSize == frontierNodes.length) {
+            frontierNodes = Arrays.copyOf(frontierNodes, frontierSize * 2);
+            frontierParticles = Arrays.copyOf(frontierParticles, frontierSize * 2);
+            frontierEdges = Arrays.copyOf(frontierEdges, frontierSize * 2 + 1);
         }
+        frontierNodes[frontierSize] = node;
+        frontierParticles[frontierSize] = particles;
+        frontierEdges[frontierSize + 1] = frontierEdges[frontierSize] + deg;
+        frontierSize++;
+    }
+
+    /**
+     * Spreads the particles of a node to its neighbors not ranked yet
+     *
+     * @param node
+     * @param particles particles of the node
+     * @param ranks the particles collected so far, only read, so that it can
+     * be shared by the threads
+     * @param next accumulator of the particles of the next iteration
+     * @param toAdd the edges of the neighborhood, null if not computed
+     */
+    protected void spread(long node, double particles, HashLongDoubleMap ranks, HashLongDoubleMap next, List<Edge> toAdd) {
+        int deg = this.kb.degreeOf(node);
+        spread(node, particles, deg, this.kb.incomingEdgesIteratorOf(node), ranks, next, toAdd);
+        spread(node, particles, deg, this.kb.outgoingEdgesIteratorOf(node), ranks, next, toAdd);
+    }
+
+    private void spread(long node, double particles, int deg, Iterator<Edge> edges, HashLongDoubleMap ranks, HashLongDoubleMap next, List<Edge> toAdd) {
+        Edge e;
+        long destId, label;
+        double damping, passing;
+        while (edges.hasNext()) {
+            e = edges.next();
+            destId = e.getSource() == node ? e.getDestination() : e.getSource();
+            label = e.getLabel();
+            if (toAdd != null) {
+                boolean keepEdge = !this.keepOnlyQueryEdges || queryLabels.contains(label);
+                if (keepEdge) {
+                    toAdd.add(e);
+                }
+            }
+            if (ranks.containsKey(destId)) {
+                continue;
+            }
+            damping = queryLabels.contains(label) ? 1 : (1 - restartProbability);
+            passing = particles * damping / (deg);
+            if (passing >= 1 || queryLabels.contains(label)) {
+                passing = Math.max(passing, 1);
+                next.addValue(destId, passing);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param numThreads number of threads spreading the particles of a
+     * frontier, 1 to spread them sequentially
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
 
+    /**
+     *
+     * @param pool the pool spreading the particles, owned and shut down by
+     * the caller, null to create one for each expansion
+     */
+    public void setPool(ExecutorService pool) {
+        this.pool = pool;
     }
 
 }
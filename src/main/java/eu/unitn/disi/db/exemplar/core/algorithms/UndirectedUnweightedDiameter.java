@@ -29,74 +29,175 @@ import eu.unitn.disi.db.command.algorithmic.AlgorithmOutput;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
+import java.util.Map;
 
 /**
+ * Diameter of a graph ignoring the direction of the edges, the largest
+ * eccentricity of its connected components.
+ *
+ * The graph is copied in arrays over dense ids. Small graphs, or when the
+ * eccentricities are requested, are visited from every node; larger ones
+ * with iFUB, which visits from the nodes farthest from a central node only
+ * until the lower bound on the diameter meets the upper bound.
  *
  * @author Matteo Lissandrini <ml@disi.unitn.eu>
  */
 public class UndirectedUnweightedDiameter extends Algorithm{
 
+    /**
+     * Graphs with up to this number of nodes are visited from every node
+     */
+    public static final int EXACT_NODES = 64;
+
     @AlgorithmInput
     protected Multigraph graph;
+
+    @AlgorithmInput
+    protected boolean computeEccentricities = false;
     
     @AlgorithmOutput
     protected int diameter;
+
+    @AlgorithmOutput
+    protected Map<Long, Integer> eccentricities;
+
+    private long[] nodes;
+    private int[] offsets;
+    private int[] neighbors;
+    private int[] distances;
+    private int[] queue;
+    private int reached;
     
     
     @Override
     protected void algorithm() throws AlgorithmExecutionException {
         diameter = 0;
-        int max = 0;        
-        int numNodes = graph.numberOfNodes();
-        final long DELIM =-1l;
-        for(Long current: graph.vertexSet()){
-            Queue<Long> toVisit = new LinkedList<>();
-            toVisit.add(current);
-            
-            
-            Set<Long> visited = new HashSet<>(numNodes*4/3);
-            visited.add(current);
-            
-            long node, next;
-            Iterator<Edge> aEdges;
-            Edge e;
-            
-            toVisit.add(DELIM);
-            int localDim = -1;
-            while(!toVisit.isEmpty()){
-                node = toVisit.poll();
-                if(node==DELIM){
-                    localDim++;
-                    if(!toVisit.isEmpty()){
-                        toVisit.add(DELIM);
-                    }                    
-                    continue;
+        eccentricities = null;
+        int n = graph.numberOfNodes();
+        buildAdjacency(n);
+        distances = new int[n];
+        queue = new int[n];
+
+        if (n <= EXACT_NODES || computeEccentricities) {
+            eccentricities = new HashMap<>(n * 4 / 3 + 1);
+            for (int u = 0; u < n; u++) {
+                int eccentricity = visit(u);
+                eccentricities.put(nodes[u], eccentricity);
+                diameter = Math.max(diameter, eccentricity);
+            }
+            return;
+        }
+
+        // iFUB on each connected component
+        boolean[] done = new boolean[n];
+        for (int start = 0; start < n; start++) {
+            if (done[start]) {
+                continue;
+            }
+            visit(start);
+            // The node with the highest degree is usually central
+            int center = start;
+            for (int i = 0; i < reached; i++) {
+                int u = queue[i];
+                done[u] = true;
+                if (degree(u) > degree(center)) {
+                    center = u;
+                }
+            }
+            diameter = Math.max(diameter, ifub(center));
+        }
+    }
+
+    private int degree(int u) {
+        return offsets[u + 1] - offsets[u];
+    }
+
+    /**
+     * Diameter of the component of the center, visiting the farthest nodes
+     * first and stopping when no node closer to the center can be the end of
+     * a longer path
+     */
+    private int ifub(int center) {
+        int eccentricity = visit(center);
+        int size = reached;
+        int[] order = Arrays.copyOf(queue, size);
+        int[] levels = new int[size];
+        for (int i = 0; i < size; i++) {
+            levels[i] = distances[order[i]];
+        }
+        int lower = eccentricity;
+        // The visit order is by increasing level, scan it backwards
+        int i = size - 1;
+        // Pairs of nodes within level hops from the center are at most 2 * level apart
+        for (int level = eccentricity; level > 0 && lower < 2 * level; level--) {
+            int levelMax = 0;
+            for (; i >= 0 && levels[i] == level; i--) {
+                levelMax = Math.max(levelMax, visit(order[i]));
+            }
+            lower = Math.max(lower, levelMax);
+        }
+        return lower;
+    }
+
+    /**
+     * Breadth first visit, the nodes reached are the first in the queue, by
+     * distance
+     *
+     * @return the eccentricity of the source
+     */
+    private int visit(int source) {
+        Arrays.fill(distances, -1);
+        int head = 0, tail = 0;
+        distances[source] = 0;
+        queue[tail++] = source;
+        int eccentricity = 0;
+        while (head < tail) {
+            int u = queue[head++];
+            eccentricity = distances[u];
+            for (int i = offsets[u]; i < offsets[u + 1]; i++) {
+                int v = neighbors[i];
+                if (distances[v] < 0) {
+                    distances[v] = distances[u] + 1;
+                    queue[tail++] = v;
                 }
-                for (int i = 0; i < 2; i++) {
-                    aEdges = i == 0 ? graph.incomingEdgesIteratorOf(node) : graph.outgoingEdgesIteratorOf(node);
-                    while (aEdges.hasNext()) {
-                        e = aEdges.next();
-                        next = i == 0 ? e.getSource() : e.getDestination();
-                        if(!visited.contains(next)){
-                           toVisit.add(next);
-                           visited.add(next);
-                        }
-                    }
-                }                
-            }          
-            if(localDim > diameter){
-              diameter = localDim;  
             }
         }
-        
-        
-        
-        
+        reached = tail;
+        return eccentricity;
+    }
+
+    private void buildAdjacency(int n) {
+        nodes = new long[n];
+        Map<Long, Integer> ids = new HashMap<>(n * 4 / 3 + 1);
+        for (Long node : graph.vertexSet()) {
+            nodes[ids.size()] = node;
+            ids.put(node, ids.size());
+        }
+        offsets = new int[n + 1];
+        Iterator<Edge> edges = graph.edgesIterator();
+        int m = 0;
+        while (edges.hasNext()) {
+            Edge e = edges.next();
+            offsets[ids.get(e.getSource()) + 1]++;
+            offsets[ids.get(e.getDestination()) + 1]++;
+            m++;
+        }
+        for (int u = 0; u < n; u++) {
+            offsets[u + 1] += offsets[u];
+        }
+        neighbors = new int[2 * m];
+        int[] fill = Arrays.copyOf(offsets, n);
+        edges = graph.edgesIterator();
+        while (edges.hasNext()) {
+            Edge e = edges.next();
+            int src = ids.get(e.getSource());
+            int dst = ids.get(e.getDestination());
+            neighbors[fill[src]++] = dst;
+            neighbors[fill[dst]++] = src;
+        }
     }
 
 
@@ -104,10 +205,26 @@ public class UndirectedUnweightedDiameter extends Algorithm{
         this.graph = graph;
     }
 
+    /**
+     *
+     * @param computeEccentricities true to compute the eccentricity of every
+     * node, visiting from all of them
+     */
+    public void setComputeEccentricities(boolean computeEccentricities) {
+        this.computeEccentricities = computeEccentricities;
+    }
+
     public int getDiameter() {
         return diameter;
     }
 
-    
+    /**
+     *
+     * @return the eccentricity of each node, null if the graph has been
+     * visited with iFUB
+     */
+    public Map<Long, Integer> getEccentricities() {
+        return eccentricities;
+    }
     
 }
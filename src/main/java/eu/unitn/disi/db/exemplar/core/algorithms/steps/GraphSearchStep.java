@@ -24,6 +24,7 @@
 package eu.unitn.disi.db.exemplar.core.algorithms.steps;
 
 import eu.unitn.disi.db.mutilities.LoggableObject;
+import eu.unitn.disi.db.exemplar.core.AnswerSink;
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import java.util.Collection;
@@ -43,8 +44,9 @@ public abstract class GraphSearchStep<T  extends ExemplarAnswer> extends Loggabl
     protected final int limitComputation;
     protected final boolean skipSave;
     protected int memoryLimit = -1; 
-    protected boolean memoryExhausted = false; 
+    protected volatile boolean memoryExhausted = false; 
     protected final Set<Long> whiteList;
+    protected AnswerSink<T> answerSink = null;
 
 
     public GraphSearchStep(int threadNumber, Iterator<Long> kbConcepts, Multigraph query, Multigraph targetSubgraph, int limitComputation, boolean skipSave, Set<Long> whiteList, int memoryLimit) {
@@ -67,6 +69,15 @@ public abstract class GraphSearchStep<T  extends ExemplarAnswer> extends Loggabl
     public boolean isMemoryExhausted() {
         return memoryExhausted;
     }
+
+    /**
+     * When set, the answers are pushed to the sink as soon as they are
+     * complete and not returned
+     * @param answerSink
+     */
+    public void setAnswerSink(AnswerSink<T> answerSink) {
+        this.answerSink = answerSink;
+    }
     
 
 
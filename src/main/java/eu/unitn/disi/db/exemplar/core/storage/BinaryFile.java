@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Little-endian binary files of the storage layer, starting with a header of
+ * longs [magic, version, ...].
+ *
+ * A file is written through a {@link Writer} into a temporary file next to
+ * it, which replaces the file with an atomic move once complete: a file
+ * mapped by a reader is never truncated under it, and a reader never maps a
+ * half-written file.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class BinaryFile {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private BinaryFile() {
+    }
+
+    /**
+     * Maps the header of a file and checks its magic and version
+     *
+     * @param channel the open file
+     * @param path the path of the file, for the errors
+     * @param kind what the file should contain, for the errors
+     * @param magic
+     * @param version
+     * @param size number of longs of the header, magic and version included
+     * @return the header
+     * @throws IOException if the file is too short or has another magic or
+     * version
+     */
+    public static MappedLongArray readHeader(FileChannel channel, String path, String kind, long magic, long version, int size) throws IOException {
+        if (channel.size() < (long) size * Long.BYTES) {
+            throw new IOException("File " + path + " is not a " + kind);
+        }
+        MappedLongArray header = new MappedLongArray(channel, 0, size);
+        if (header.get(0) != magic) {
+            throw new IOException("File " + path + " is not a " + kind);
+        }
+        if (header.get(1) != version) {
+            throw new IOException("File " + path + " is a " + kind + " of version " + header.get(1) + " instead of " + version);
+        }
+        return header;
+    }
+
+    /**
+     * Writes a file sequentially, or in sections at given positions, and
+     * replaces the target on {@link #commit()}. Closing a writer that has not
+     * been committed discards what has been written.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path target;
+        private final Path tmp;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Section main;
+        private boolean committed = false;
+
+        /**
+         *
+         * @param path the file to write
+         * @throws IOException
+         */
+        public Writer(String path) throws IOException {
+            this.target = Paths.get(path).toAbsolutePath();
+            this.tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            this.file = new RandomAccessFile(tmp.toFile(), "rw");
+            this.channel = file.getChannel();
+            this.main = new Section(0);
+        }
+
+        /**
+         * Writes the header at the current position, usually the start
+         *
+         * @param magic
+         * @param version
+         * @param fields the other longs of the header
+         * @return this writer
+         * @throws IOException
+         */
+        public Writer putHeader(long magic, long version, long... fields) throws IOException {
+            main.putLong(magic);
+            main.putLong(version);
+            for (long field : fields) {
+                main.putLong(field);
+            }
+            return this;
+        }
+
+        public Writer putLong(long value) throws IOException {
+            main.putLong(value);
+            return this;
+        }
+
+        public Writer putInt(int value) throws IOException {
+            main.putInt(value);
+            return this;
+        }
+
+        /**
+         * A section written independently from the others, flush it before
+         * the commit
+         *
+         * @param position the byte position of the first value
+         * @return the section
+         */
+        public Section section(long position) {
+            return new Section(position);
+        }
+
+        /**
+         * Flushes the sequential writes and moves the file in place
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            main.flush();
+            channel.force(false);
+            file.close();
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                file.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /**
+         * Buffered writes from a position of the file
+         */
+        public final class Section {
+
+            private final ByteBuffer buffer;
+            private long position;
+
+            private Section(long position) {
+                this.position = position;
+                this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            public void putLong(long value) throws IOException {
+                if (buffer.remaining() < Long.BYTES) {
+                    flush();
+                }
+                buffer.putLong(value);
+            }
+
+            public void putInt(int value) throws IOException {
+                if (buffer.remaining() < Integer.BYTES) {
+                    flush();
+                }
+                buffer.putInt(value);
+            }
+
+            public void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+            }
+        }
+    }
+}
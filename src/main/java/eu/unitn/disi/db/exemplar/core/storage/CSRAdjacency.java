@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable compressed sparse row snapshot of a multigraph.
+ *
+ * The incoming and outgoing edges of each node are stored in a contiguous run
+ * sorted by label, so the edges with a given label are found with a binary
+ * search and returned as a slice of the run, without copying.
+ * The snapshot shares the edge objects with the graph it is built from and
+ * can be shared among threads.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class CSRAdjacency implements LabeledAdjacency {
+
+    private static final Comparator<Edge> LABEL_ORDER = (Edge e1, Edge e2) -> e1.getLabel().compareTo(e2.getLabel());
+
+    private final HashLongIntMap nodeIndex;
+
+    private final int[] outOffsets;
+    private final Edge[] outEdges;
+    private final long[] outLabels;
+    private final List<Edge> outList;
+
+    private final int[] inOffsets;
+    private final Edge[] inEdges;
+    private final long[] inLabels;
+    private final List<Edge> inList;
+
+    /**
+     * Builds the snapshot of the current content of the graph
+     *
+     * @param graph
+     */
+    public CSRAdjacency(Multigraph graph) {
+        long[] nodes = new long[graph.numberOfNodes()];
+        int n = 0;
+        for (Long node : graph) {
+            nodes[n++] = node;
+        }
+        nodeIndex = HashLongIntMaps.newUpdatableMap(n);
+
+        outOffsets = new int[n + 1];
+        inOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            nodeIndex.put(nodes[i], i);
+            outOffsets[i + 1] = outOffsets[i] + graph.outDegreeOf(nodes[i]);
+            inOffsets[i + 1] = inOffsets[i] + graph.inDegreeOf(nodes[i]);
+        }
+
+        outEdges = new Edge[outOffsets[n]];
+        outLabels = new long[outOffsets[n]];
+        inEdges = new Edge[inOffsets[n]];
+        inLabels = new long[inOffsets[n]];
+        for (int i = 0; i < n; i++) {
+            fill(nodes[i], graph.outgoingEdgesOf(nodes[i]), outEdges, outLabels, outOffsets[i], outOffsets[i + 1]);
+            fill(nodes[i], graph.incomingEdgesOf(nodes[i]), inEdges, inLabels, inOffsets[i], inOffsets[i + 1]);
+        }
+        outList = Arrays.asList(outEdges);
+        inList = Arrays.asList(inEdges);
+    }
+
+    private static void fill(long node, Collection<Edge> edges, Edge[] run, long[] labels, int from, int to) {
+        int pos = from;
+        if (edges != null) {
+            for (Edge edge : edges) {
+                if (pos == to) {
+                    break;
+                }
+                run[pos++] = edge;
+            }
+        }
+        if (pos != to || (edges != null && edges.size() != to - from)) {
+            throw new IllegalStateException("Degree and number of edges differ for node " + node);
+        }
+        Arrays.sort(run, from, to, LABEL_ORDER);
+        for (int i = from; i < to; i++) {
+            labels[i] = run[i].getLabel();
+        }
+    }
+
+    /**
+     * First position in [from, to) with a label not smaller than the key
+     */
+    private static int lowerBound(long[] labels, int from, int to, long key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (labels[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static List<Edge> slice(List<Edge> edges, long[] labels, int start, int end, long label) {
+        if (label == Edge.GENERIC_EDGE_LABEL) {
+            return edges.subList(start, end);
+        }
+        int from = lowerBound(labels, start, end, label);
+        if (from == end || labels[from] != label) {
+            return Collections.emptyList();
+        }
+        int to = label == Long.MAX_VALUE ? end : lowerBound(labels, from, end, label + 1);
+        return edges.subList(from, to);
+    }
+
+    @Override
+    public Collection<Edge> outgoingEdgesOf(Long vertex, Long label) {
+        int pos = nodeIndex.getOrDefault(vertex.longValue(), -1);
+        if (pos < 0) {
+            return Collections.emptyList();
+        }
+        return slice(outList, outLabels, outOffsets[pos], outOffsets[pos + 1], label);
+    }
+
+    @Override
+    public Collection<Edge> incomingEdgesOf(Long vertex, Long label) {
+        int pos = nodeIndex.getOrDefault(vertex.longValue(), -1);
+        if (pos < 0) {
+            return Collections.emptyList();
+        }
+        return slice(inList, inLabels, inOffsets[pos], inOffsets[pos + 1], label);
+    }
+
+    @Override
+    public int outDegreeOf(Long vertex) {
+        int pos = nodeIndex.getOrDefault(vertex.longValue(), -1);
+        return pos < 0 ? 0 : outOffsets[pos + 1] - outOffsets[pos];
+    }
+
+    @Override
+    public int inDegreeOf(Long vertex) {
+        int pos = nodeIndex.getOrDefault(vertex.longValue(), -1);
+        return pos < 0 ? 0 : inOffsets[pos + 1] - inOffsets[pos];
+    }
+
+    /**
+     *
+     * @return number of nodes in the snapshot
+     */
+    public int numberOfNodes() {
+        return outOffsets.length - 1;
+    }
+
+    /**
+     *
+     * @return number of edges in the snapshot
+     */
+    public int numberOfEdges() {
+        return outEdges.length;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Catalog of statistics about the edge labels of a graph: number of edges,
+ * distinct sources and destinations, and maximum fan-out and fan-in of a node
+ * on the label.
+ *
+ * It is computed once in a pass over the graph, or read from the label
+ * frequencies file, in which case only the number of edges is known and the
+ * other statistics are -1.
+ * The labels are kept sorted in arrays, a lookup is a binary search.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class LabelStatistics {
+
+    public static final String FILE_SUFFIX = "-label-statistics.csv";
+
+    private final long[] labels;
+    private final long[] edges;
+    private final long[] sources;
+    private final long[] destinations;
+    private final long[] maxFanOut;
+    private final long[] maxFanIn;
+
+    private LabelStatistics(int size) {
+        labels = new long[size];
+        edges = new long[size];
+        sources = new long[size];
+        destinations = new long[size];
+        maxFanOut = new long[size];
+        maxFanIn = new long[size];
+    }
+
+    /**
+     * Builds the catalog from the per label columns, in any order of labels
+     */
+    private static LabelStatistics of(long[][] columns, int size) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (Integer i1, Integer i2) -> Long.compare(columns[0][i1], columns[0][i2]));
+        LabelStatistics stats = new LabelStatistics(size);
+        long[][] target = {stats.labels, stats.edges, stats.sources, stats.destinations, stats.maxFanOut, stats.maxFanIn};
+        for (int i = 0; i < size; i++) {
+            for (int c = 0; c < target.length; c++) {
+                target[c][i] = columns[c][order[i]];
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Computes the statistics in one pass over the nodes of the graph
+     *
+     * @param graph
+     * @return the statistics of the labels of the graph
+     */
+    public static LabelStatistics compute(Multigraph graph) {
+        HashLongIntMap index = HashLongIntMaps.newUpdatableMap();
+        long[][] columns = new long[6][64];
+        int[] size = {0};
+        HashLongIntMap perNode = HashLongIntMaps.newUpdatableMap();
+
+        for (Long node : graph) {
+            for (int direction = 0; direction < 2; direction++) {
+                Collection<Edge> nodeEdges = direction == 0 ? graph.outgoingEdgesOf(node) : graph.incomingEdgesOf(node);
+                if (nodeEdges == null || nodeEdges.isEmpty()) {
+                    continue;
+                }
+                perNode.clear();
+                for (Edge e : nodeEdges) {
+                    perNode.addValue(e.getLabel(), 1);
+                }
+                final boolean out = direction == 0;
+                perNode.forEach((long label, int count) -> {
+                    int i = index.getOrDefault(label, -1);
+                    if (i < 0) {
+                        i = size[0]++;
+                        index.put(label, i);
+                        if (i == columns[0].length) {
+                            for (int c = 0; c < columns.length; c++) {
+                                columns[c] = Arrays.copyOf(columns[c], i * 2);
+                            }
+                        }
+                        columns[0][i] = label;
+                    }
+                    if (out) {
+                        columns[1][i] += count;
+                        columns[2][i]++;
+                        columns[4][i] = Math.max(columns[4][i], count);
+                    } else {
+                        columns[3][i]++;
+                        columns[5][i] = Math.max(columns[5][i], count);
+                    }
+                });
+            }
+        }
+        return of(columns, size[0]);
+    }
+
+    /**
+     * Only the number of edges for each label, the other statistics are -1
+     *
+     * @param labelFrequencies number of edges for each label
+     * @return the statistics
+     */
+    public static LabelStatistics fromFrequencies(Map<Long, Integer> labelFrequencies) {
+        int size = labelFrequencies.size();
+        long[][] columns = new long[6][size];
+        int i = 0;
+        for (Map.Entry<Long, Integer> e : labelFrequencies.entrySet()) {
+            columns[0][i] = e.getKey();
+            columns[1][i] = e.getValue();
+            for (int c = 2; c < columns.length; c++) {
+                columns[c][i] = -1;
+            }
+            i++;
+        }
+        return of(columns, size);
+    }
+
+    /**
+     *
+     * @param kbPath the knowledgebase prefix
+     * @return the path of the statistics of the knowledgebase
+     */
+    public static String statisticsPath(String kbPath) {
+        return kbPath + FILE_SUFFIX;
+    }
+
+    /**
+     *
+     * @param kbPath the knowledgebase prefix
+     * @return true if the statistics of the knowledgebase have been stored
+     */
+    public static boolean isStored(String kbPath) {
+        return new File(statisticsPath(kbPath)).isFile();
+    }
+
+    /**
+     * Stores the statistics, one label per line with space separated
+     * label, edges, sources, destinations, max fan-out and max fan-in
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void store(String path) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(path))) {
+            for (int i = 0; i < labels.length; i++) {
+                out.write(labels[i] + " " + edges[i] + " " + sources[i] + " " + destinations[i] + " " + maxFanOut[i] + " " + maxFanIn[i]);
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Loads statistics written by {@link #store(String)}
+     *
+     * @param path
+     * @return the statistics
+     * @throws IOException
+     */
+    public static LabelStatistics load(String path) throws IOException {
+        long[][] columns = new long[6][64];
+        int size = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                if (fields.length != columns.length) {
+                    throw new IOException("Malformed label statistics line: " + line);
+                }
+                if (size == columns[0].length) {
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = Arrays.copyOf(columns[c], size * 2);
+                    }
+                }
+                try {
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c][size] = Long.parseLong(fields[c]);
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed label statistics line: " + line, ex);
+                }
+                size++;
+            }
+        }
+        return of(columns, size);
+    }
+
+    private int indexOf(long label) {
+        return Arrays.binarySearch(labels, label);
+    }
+
+    private long valueOf(long[] column, long label, long missing) {
+        int i = indexOf(label);
+        return i < 0 ? missing : column[i];
+    }
+
+    /**
+     *
+     * @param label
+     * @return true if the label is in the catalog
+     */
+    public boolean contains(long label) {
+        return indexOf(label) >= 0;
+    }
+
+    /**
+     *
+     * @param label
+     * @return number of edges with the label, 0 if unknown
+     */
+    public long edgeCount(long label) {
+        return valueOf(edges, label, 0);
+    }
+
+    /**
+     *
+     * @param label
+     * @return number of nodes with an outgoing edge with the label, 0 if the
+     * label is unknown, -1 if not computed
+     */
+    public long distinctSources(long label) {
+        return valueOf(sources, label, 0);
+    }
+
+    /**
+     *
+     * @param label
+     * @return number of nodes with an incoming edge with the label, 0 if the
+     * label is unknown, -1 if not computed
+     */
+    public long distinctDestinations(long label) {
+        return valueOf(destinations, label, 0);
+    }
+
+    /**
+     *
+     * @param label
+     * @return the maximum number of outgoing edges with the label of a node,
+     * 0 if the label is unknown, -1 if not computed
+     */
+    public long maxFanOut(long label) {
+        return valueOf(maxFanOut, label, 0);
+    }
+
+    /**
+     *
+     * @param label
+     * @return the maximum number of incoming edges with the label of a node,
+     * 0 if the label is unknown, -1 if not computed
+     */
+    public long maxFanIn(long label) {
+        return valueOf(maxFanIn, label, 0);
+    }
+
+    /**
+     *
+     * @return true if more than the edge counts are known
+     */
+    public boolean hasNodeStatistics() {
+        return labels.length == 0 || sources[0] >= 0;
+    }
+
+    /**
+     *
+     * @return number of labels
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     *
+     * @return number of edges for each label
+     */
+    public Map<Long, Integer> toFrequencies() {
+        Map<Long, Integer> frequencies = new HashMap<>(labels.length * 4 / 3 + 1);
+        for (int i = 0; i < labels.length; i++) {
+            frequencies.put(labels[i], (int) Math.min(edges[i], Integer.MAX_VALUE));
+        }
+        return frequencies;
+    }
+}
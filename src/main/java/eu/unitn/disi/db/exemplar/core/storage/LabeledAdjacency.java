@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import eu.unitn.disi.db.grava.graphs.Edge;
+import java.util.Collection;
+
+/**
+ * Adjacency of a graph in which the edges of a node can be retrieved by label
+ * without scanning all the edges of the node
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public interface LabeledAdjacency {
+
+    /**
+     *
+     * @param vertex
+     * @param label the label, {@link Edge#GENERIC_EDGE_LABEL} for any label
+     * @return the outgoing edges of the vertex with the label, do not modify
+     */
+    Collection<Edge> outgoingEdgesOf(Long vertex, Long label);
+
+    /**
+     *
+     * @param vertex
+     * @param label the label, {@link Edge#GENERIC_EDGE_LABEL} for any label
+     * @return the incoming edges of the vertex with the label, do not modify
+     */
+    Collection<Edge> incomingEdgesOf(Long vertex, Long label);
+
+    /**
+     *
+     * @param vertex
+     * @return number of outgoing edges, 0 if the vertex is missing
+     */
+    int outDegreeOf(Long vertex);
+
+    /**
+     *
+     * @param vertex
+     * @return number of incoming edges, 0 if the vertex is missing
+     */
+    int inDegreeOf(Long vertex);
+}
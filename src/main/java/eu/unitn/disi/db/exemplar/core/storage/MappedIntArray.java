@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only array of ints memory mapped from a file, split in chunks of
+ * {@link #CHUNK_SIZE} ints as {@link MappedLongArray}.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class MappedIntArray {
+
+    private static final int CHUNK_SHIFT = 28;
+    public static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final IntBuffer[] chunks;
+    private final long length;
+
+    /**
+     * Maps {@code length} ints starting at byte {@code offset} of the channel
+     *
+     * @param channel the file to map
+     * @param offset position in bytes of the first element
+     * @param length number of ints
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedIntArray(FileChannel channel, long offset, long length) throws IOException {
+        this.length = length;
+        int numChunks = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        this.chunks = new IntBuffer[numChunks];
+        long position = offset;
+        for (int i = 0; i < numChunks; i++) {
+            long size = Math.min(CHUNK_SIZE, length - ((long) i << CHUNK_SHIFT));
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size * Integer.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            position += size * Integer.BYTES;
+        }
+    }
+
+    /**
+     *
+     * @param index
+     * @return the int at the given index
+     */
+    public int get(long index) {
+        return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    }
+
+    /**
+     *
+     * @return number of elements in the array
+     */
+    public long length() {
+        return length;
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only multigraph backed by a memory mapped binary image.
+ *
+ * The image is columnar and little-endian, all the sections are arrays of
+ * longs:
+ * <pre>
+ * header      MAGIC, VERSION, numNodes, numEdges
+ * nodes       [numNodes]     sorted node ids
+ * outOffsets  [numNodes + 1] first outgoing edge of each node
+ * outDest     [numEdges]     destinations, per source sorted by (label, destination)
+ * outLabels   [numEdges]
+ * inOffsets   [numNodes + 1] first incoming edge of each node
+ * inSource    [numEdges]     sources, per destination sorted by (label, source)
+ * inLabels    [numEdges]
+ * </pre>
+ * The pages are loaded lazily by the OS and shared through the page cache
+ * among all the processes mapping the same image.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class MappedMultigraph implements Multigraph, LabeledAdjacency {
+
+    public static final long MAGIC = 0x4558514752415048L; // "EXQGRAPH"
+    public static final long VERSION = 1;
+    public static final String IMAGE_SUFFIX = "-graph.bin";
+
+    private static final int HEADER_SIZE = 4;
+
+    private static final Comparator<Edge> OUT_ORDER = (Edge e1, Edge e2) -> {
+        int cmp = e1.getLabel().compareTo(e2.getLabel());
+        return cmp != 0 ? cmp : e1.getDestination().compareTo(e2.getDestination());
+    };
+
+    private static final Comparator<Edge> IN_ORDER = (Edge e1, Edge e2) -> {
+        int cmp = e1.getLabel().compareTo(e2.getLabel());
+        return cmp != 0 ? cmp : e1.getSource().compareTo(e2.getSource());
+    };
+
+    private final long numNodes;
+    private final long numEdges;
+
+    private final MappedLongArray nodes;
+    private final MappedLongArray outOffsets;
+    private final MappedLongArray outDest;
+    private final MappedLongArray outLabels;
+    private final MappedLongArray inOffsets;
+    private final MappedLongArray inSource;
+    private final MappedLongArray inLabels;
+
+    private Set<Long> labels;
+
+    /**
+     * Maps the binary image of a graph
+     *
+     * @param imagePath the file written by {@link #store(Multigraph, String)}
+     * @throws IOException if the file is not a valid graph image
+     */
+    public MappedMultigraph(String imagePath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(imagePath, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedLongArray header = BinaryFile.readHeader(channel, imagePath, "graph image", MAGIC, VERSION, HEADER_SIZE);
+            this.numNodes = header.get(2);
+            this.numEdges = header.get(3);
+            if (channel.size() != imageSize(numNodes, numEdges) * Long.BYTES) {
+                throw new IOException("Graph image " + imagePath + " is truncated");
+            }
+
+            long position = HEADER_SIZE * Long.BYTES;
+            nodes = new MappedLongArray(channel, position, numNodes);
+            position += numNodes * Long.BYTES;
+            outOffsets = new MappedLongArray(channel, position, numNodes + 1);
+            position += (numNodes + 1) * Long.BYTES;
+            outDest = new MappedLongArray(channel, position, numEdges);
+            position += numEdges * Long.BYTES;
+            outLabels = new MappedLongArray(channel, position, numEdges);
+            position += numEdges * Long.BYTES;
+            inOffsets = new MappedLongArray(channel, position, numNodes + 1);
+            position += (numNodes + 1) * Long.BYTES;
+            inSource = new MappedLongArray(channel, position, numEdges);
+            position += numEdges * Long.BYTES;
+            inLabels = new MappedLongArray(channel, position, numEdges);
+        }
+    }
+
+    /**
+     *
+     * @param kbPath path to the knowledgebase files, up to the prefix
+     * @return the path of the binary image of the knowledgebase
+     */
+    public static String imagePath(String kbPath) {
+        return kbPath + IMAGE_SUFFIX;
+    }
+
+    /**
+     *
+     * @param kbPath path to the knowledgebase files, up to the prefix
+     * @return true if a binary image of the knowledgebase exists
+     */
+    public static boolean isStored(String kbPath) {
+        return new File(imagePath(kbPath)).isFile();
+    }
+
+    private static long imageSize(long numNodes, long numEdges) {
+        return HEADER_SIZE + numNodes + 2 * (numNodes + 1) + 4 * numEdges;
+    }
+
+    /**
+     * Writes the binary image of a graph, the image can then be mapped with
+     * {@link #MappedMultigraph(String)}
+     *
+     * @param graph the graph to convert
+     * @param imagePath the output file
+     * @throws IOException
+     */
+    public static void store(Multigraph graph, String imagePath) throws IOException {
+        long[] sortedNodes = new long[graph.numberOfNodes()];
+        int idx = 0;
+        for (Long node : graph) {
+            sortedNodes[idx++] = node;
+        }
+        Arrays.sort(sortedNodes);
+
+        long n = sortedNodes.length;
+        long e = 0;
+        for (long node : sortedNodes) {
+            e += graph.outDegreeOf(node);
+        }
+
+        long outOffsetsStart = HEADER_SIZE + n;
+        long outDestStart = outOffsetsStart + n + 1;
+        long outLabelsStart = outDestStart + e;
+        long inOffsetsStart = outLabelsStart + e;
+        long inSourceStart = inOffsetsStart + n + 1;
+        long inLabelsStart = inSourceStart + e;
+
+        try (BinaryFile.Writer out = new BinaryFile.Writer(imagePath)) {
+            out.putHeader(MAGIC, VERSION, n, e);
+            for (long node : sortedNodes) {
+                out.putLong(node);
+            }
+
+            BinaryFile.Writer.Section offsets = out.section(outOffsetsStart * Long.BYTES);
+            BinaryFile.Writer.Section ends = out.section(outDestStart * Long.BYTES);
+            BinaryFile.Writer.Section labels = out.section(outLabelsStart * Long.BYTES);
+            long offset = 0;
+            List<Edge> run = new ArrayList<>();
+            for (long node : sortedNodes) {
+                offsets.putLong(offset);
+                run.clear();
+                run.addAll(graph.outgoingEdgesOf(node));
+                run.sort(OUT_ORDER);
+                for (Edge edge : run) {
+                    ends.putLong(edge.getDestination());
+                    labels.putLong(edge.getLabel());
+                }
+                offset += run.size();
+            }
+            offsets.putLong(offset);
+            offsets.flush();
+            ends.flush();
+            labels.flush();
+
+            offsets = out.section(inOffsetsStart * Long.BYTES);
+            ends = out.section(inSourceStart * Long.BYTES);
+            labels = out.section(inLabelsStart * Long.BYTES);
+            offset = 0;
+            for (long node : sortedNodes) {
+                offsets.putLong(offset);
+                run.clear();
+                run.addAll(graph.incomingEdgesOf(node));
+                run.sort(IN_ORDER);
+                for (Edge edge : run) {
+                    ends.putLong(edge.getSource());
+                    labels.putLong(edge.getLabel());
+                }
+                offset += run.size();
+            }
+            offsets.putLong(offset);
+            offsets.flush();
+            ends.flush();
+            labels.flush();
+
+            if (offset != e) {
+                throw new IOException("Incoming and outgoing edges differ: " + offset + " vs " + e);
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     *
+     * @param node
+     * @return the position of the node in the image, -1 if missing
+     */
+    private long indexOf(long node) {
+        long pos = nodes.binarySearch(0, numNodes, node);
+        return pos < 0 ? -1 : pos;
+    }
+
+    @Override
+    public void addVertex(Long id) {
+        throw new UnsupportedOperationException("Mapped graphs are read-only");
+    }
+
+    @Override
+    public void addEdge(Long src, Long dest, Long label) {
+        throw new UnsupportedOperationException("Mapped graphs are read-only");
+    }
+
+    @Override
+    public void addEdge(Edge edge) {
+        throw new UnsupportedOperationException("Mapped graphs are read-only");
+    }
+
+    @Override
+    public Collection<Long> vertexSet() {
+        return new AbstractCollection<Long>() {
+            @Override
+            public Iterator<Long> iterator() {
+                return MappedMultigraph.this.iterator();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Long && containsVertex((Long) o);
+            }
+
+            @Override
+            public int size() {
+                return numberOfNodes();
+            }
+        };
+    }
+
+    @Override
+    public Collection<Edge> edgeSet() {
+        return new AbstractCollection<Edge>() {
+            @Override
+            public Iterator<Edge> iterator() {
+                return edgesIterator();
+            }
+
+            @Override
+            public int size() {
+                return numberOfEdges();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Edge> edgesIterator() {
+        return new OutEdgeIterator(0, 0, numEdges);
+    }
+
+    @Override
+    public Collection<Edge> incomingEdgesOf(Long vertex) {
+        return collect(incomingEdgesIteratorOf(vertex), inDegreeOf(vertex));
+    }
+
+    @Override
+    public Collection<Edge> outgoingEdgesOf(Long vertex) {
+        return collect(outgoingEdgesIteratorOf(vertex), outDegreeOf(vertex));
+    }
+
+    @Override
+    public Iterator<Edge> incomingEdgesIteratorOf(Long vertex) {
+        long pos = indexOf(vertex);
+        if (pos < 0) {
+            return Collections.emptyIterator();
+        }
+        return new InEdgeIterator(pos, inOffsets.get(pos), inOffsets.get(pos + 1));
+    }
+
+    @Override
+    public Iterator<Edge> outgoingEdgesIteratorOf(Long vertex) {
+        long pos = indexOf(vertex);
+        if (pos < 0) {
+            return Collections.emptyIterator();
+        }
+        return new OutEdgeIterator(pos, outOffsets.get(pos), outOffsets.get(pos + 1));
+    }
+
+    /**
+     * Outgoing edges of a node with a specific label, found with a binary
+     * search in the run of the node
+     *
+     * @param vertex
+     * @param label the label, {@link Edge#GENERIC_EDGE_LABEL} for any label
+     * @return the outgoing edges with the label
+     */
+    @Override
+    public Collection<Edge> outgoingEdgesOf(Long vertex, Long label) {
+        long pos = indexOf(vertex);
+        if (pos < 0) {
+            return Collections.emptyList();
+        }
+        long start = outOffsets.get(pos);
+        long end = outOffsets.get(pos + 1);
+        long from = start;
+        long to = end;
+        if (label != Edge.GENERIC_EDGE_LABEL) {
+            from = outLabels.lowerBound(start, end, label);
+            to = label == Long.MAX_VALUE ? end : outLabels.lowerBound(from, end, label + 1);
+        }
+        return collect(new OutEdgeIterator(pos, from, to), (int) (to - from));
+    }
+
+    /**
+     * Incoming edges of a node with a specific label, found with a binary
+     * search in the run of the node
+     *
+     * @param vertex
+     * @param label the label, {@link Edge#GENERIC_EDGE_LABEL} for any label
+     * @return the incoming edges with the label
+     */
+    @Override
+    public Collection<Edge> incomingEdgesOf(Long vertex, Long label) {
+        long pos = indexOf(vertex);
+        if (pos < 0) {
+            return Collections.emptyList();
+        }
+        long start = inOffsets.get(pos);
+        long end = inOffsets.get(pos + 1);
+        long from = start;
+        long to = end;
+        if (label != Edge.GENERIC_EDGE_LABEL) {
+            from = inLabels.lowerBound(start, end, label);
+            to = label == Long.MAX_VALUE ? end : inLabels.lowerBound(from, end, label + 1);
+        }
+        return collect(new InEdgeIterator(pos, from, to), (int) (to - from));
+    }
+
+    @Override
+    public Collection<Edge> edgesOf(Long vertex) {
+        List<Edge> edges = new ArrayList<>(degreeOf(vertex));
+        outgoingEdgesIteratorOf(vertex).forEachRemaining(edges::add);
+        incomingEdgesIteratorOf(vertex).forEachRemaining(edges::add);
+        return edges;
+    }
+
+    @Override
+    public int inDegreeOf(Long vertex) {
+        long pos = indexOf(vertex);
+        return pos < 0 ? 0 : (int) (inOffsets.get(pos + 1) - inOffsets.get(pos));
+    }
+
+    @Override
+    public int outDegreeOf(Long vertex) {
+        long pos = indexOf(vertex);
+        return pos < 0 ? 0 : (int) (outOffsets.get(pos + 1) - outOffsets.get(pos));
+    }
+
+    @Override
+    public int degreeOf(Long vertex) {
+        return inDegreeOf(vertex) + outDegreeOf(vertex);
+    }
+
+    @Override
+    public boolean containsVertex(Long vertex) {
+        return indexOf(vertex) >= 0;
+    }
+
+    @Override
+    public boolean containsEdge(Long src, Long dest) {
+        long pos = indexOf(src);
+        if (pos < 0) {
+            return false;
+        }
+        for (long i = outOffsets.get(pos), end = outOffsets.get(pos + 1); i < end; i++) {
+            if (outDest.get(i) == dest) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<Edge> getEdge(Long src, Long dest) {
+        List<Edge> edges = new ArrayList<>();
+        long pos = indexOf(src);
+        if (pos < 0) {
+            return edges;
+        }
+        for (long i = outOffsets.get(pos), end = outOffsets.get(pos + 1); i < end; i++) {
+            if (outDest.get(i) == dest) {
+                edges.add(new Edge(src, dest, outLabels.get(i)));
+            }
+        }
+        return edges;
+    }
+
+    @Override
+    public int numberOfNodes() {
+        return (int) numNodes;
+    }
+
+    @Override
+    public int numberOfEdges() {
+        return (int) numEdges;
+    }
+
+    @Override
+    public synchronized Set<Long> labelSet() {
+        if (labels == null) {
+            labels = new HashSet<>();
+            for (long i = 0; i < numEdges; i++) {
+                labels.add(outLabels.get(i));
+            }
+        }
+        return labels;
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private long position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < numNodes;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return nodes.get(position++);
+            }
+        };
+    }
+
+    private static Collection<Edge> collect(Iterator<Edge> it, int size) {
+        List<Edge> edges = new ArrayList<>(size);
+        it.forEachRemaining(edges::add);
+        return edges;
+    }
+
+    /**
+     * Iterates the outgoing edges in a range of the out section, the source
+     * moves forward with the offsets
+     */
+    private final class OutEdgeIterator implements Iterator<Edge> {
+
+        private long source;
+        private long position;
+        private final long end;
+
+        OutEdgeIterator(long source, long from, long to) {
+            this.source = source;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < end;
+        }
+
+        @Override
+        public Edge next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            while (outOffsets.get(source + 1) <= position) {
+                source++;
+            }
+            Edge edge = new Edge(nodes.get(source), outDest.get(position), outLabels.get(position));
+            position++;
+            return edge;
+        }
+    }
+
+    /**
+     * Iterates the incoming edges of a single destination
+     */
+    private final class InEdgeIterator implements Iterator<Edge> {
+
+        private final long destination;
+        private long position;
+        private final long end;
+
+        InEdgeIterator(long destination, long from, long to) {
+            this.destination = nodes.get(destination);
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < end;
+        }
+
+        @Override
+        public Edge next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Edge edge = new Edge(inSource.get(position), destination, inLabels.get(position));
+            position++;
+            return edge;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import com.koloboke.collect.set.hash.HashLongSets;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import eu.unitn.disi.db.mutilities.LoggableObject;
+import eu.unitn.disi.db.mutilities.StopWatch;
+import eu.unitn.disi.db.mutilities.data.CompoundSet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the label signatures of the graph nodes.
+ *
+ * The signature of a node is the set of positions of the labels of its
+ * outgoing edges, followed by the positions of the labels of its incoming
+ * edges shifted by the number of labels. Nodes with the same signature share
+ * the same signature id. The signatures are kept in a memory mapped
+ * {@link SignatureStore}, and the index keeps, for each position, the sorted
+ * list of the signatures containing it, so the signatures containing all the
+ * positions of a query node are found checking only the signatures in the
+ * shortest list.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class NodeSignatureIndex extends LoggableObject {
+
+    /**
+     * Signatures serialized as an ArrayList of sets by older versions
+     */
+    public static final String LEGACY_SIGNATURES_FILE = "bitsets-l1.array";
+    public static final String NODES_TABLE = "node-hashing-id-l1";
+    public static final String SIGNATURES_TABLE = "node-hashing-values-l1";
+    /**
+     * Version of the node tables written by {@link #storeNodes(String)}, when
+     * missing the tables are the ones written by ComputeBitsetLvl1
+     */
+    public static final String MANIFEST_FILE = "node-hashing-l1.version";
+    public static final long MANIFEST_MAGIC = 0x4558514e4f444556L; // "EXQNODEV"
+    public static final long MANIFEST_VERSION = 1;
+
+    private SignatureStore signatures;
+    private final Map<Long, Integer> nodeSignatures;
+    private final List<Set<Long>> signatureNodes;
+
+    /**
+     * Signatures containing each position, in postings[offsets[p],
+     * offsets[p+1])
+     */
+    private int[] offsets;
+    private int[] postings;
+
+    /**
+     *
+     * @param signatures the distinct signatures, by id
+     * @param nodeSignatures the signature id of each node, when it is a
+     * {@link SortedNodeTable} the nodes of each signature are taken from it
+     * and the index cannot be updated
+     */
+    public NodeSignatureIndex(SignatureStore signatures, Map<Long, Integer> nodeSignatures) {
+        this.signatures = signatures;
+        this.nodeSignatures = nodeSignatures;
+        this.signatureNodes = new ArrayList<>(signatures.size());
+        if (nodeSignatures instanceof SortedNodeTable) {
+            SortedNodeTable table = (SortedNodeTable) nodeSignatures;
+            for (int i = 0; i < signatures.size(); i++) {
+                this.signatureNodes.add(i < table.numberOfClusters() ? table.nodesOf(i) : Collections.emptySet());
+            }
+        } else {
+            for (int i = 0; i < signatures.size(); i++) {
+                this.signatureNodes.add(HashLongSets.newUpdatableSet());
+            }
+            for (Map.Entry<Long, Integer> e : nodeSignatures.entrySet()) {
+                this.signatureNodes.get(e.getValue()).add(e.getKey());
+            }
+        }
+        indexPositions();
+    }
+
+    private void indexPositions() {
+        int positions = 0;
+        for (int id = 0; id < signatures.size(); id++) {
+            for (int p : signatures.positionsOf(id)) {
+                positions = Math.max(positions, p + 1);
+            }
+        }
+        offsets = new int[positions + 1];
+        for (int id = 0; id < signatures.size(); id++) {
+            for (int p : signatures.positionsOf(id)) {
+                offsets[p + 1]++;
+            }
+        }
+        for (int p = 0; p < positions; p++) {
+            offsets[p + 1] += offsets[p];
+        }
+        postings = new int[offsets[positions]];
+        int[] fill = Arrays.copyOf(offsets, positions);
+        // Signatures are visited by id, so every list is sorted
+        for (int id = 0; id < signatures.size(); id++) {
+            for (int p : signatures.positionsOf(id)) {
+                postings[fill[p]++] = id;
+            }
+        }
+    }
+
+    /**
+     * Loads the signatures computed by ComputeBitsetLvl1, see
+     * {@link #load(String, Map, boolean)}
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @param nodeSignatures the signature id of each node, if already
+     * loaded, null to load it
+     * @return the index
+     * @throws IOException
+     */
+    public static NodeSignatureIndex load(String nodeHashPath, Map<Long, Integer> nodeSignatures) throws IOException {
+        return load(nodeHashPath, nodeSignatures, false);
+    }
+
+    /**
+     * Loads the signatures computed by ComputeBitsetLvl1. Signatures
+     * serialized by older versions are converted at every load into a
+     * private temporary {@link SignatureStore}, without writing in the
+     * directory: convert them once with {@link #convertLegacy(String)}.
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @param nodeSignatures the signature id of each node, if already
+     * loaded, null to load it
+     * @param sorted load the signature ids in a read-only
+     * {@link SortedNodeTable} instead of hash tables
+     * @return the index
+     * @throws IOException
+     */
+    public static NodeSignatureIndex load(String nodeHashPath, Map<Long, Integer> nodeSignatures, boolean sorted) throws IOException {
+        String storePath = nodeHashPath + File.separator + SignatureStore.FILE_NAME;
+        if (!SignatureStore.isStored(nodeHashPath)) {
+            // The directory may be read-only or shared with other processes
+            File tmp = File.createTempFile("signatures-l1", ".bin");
+            tmp.deleteOnExit();
+            storePath = tmp.getPath();
+            SignatureStore.store(readLegacy(nodeHashPath), storePath);
+        }
+        SignatureStore signatures = new SignatureStore(storePath);
+        if (nodeSignatures == null) {
+            long version = tablesVersion(nodeHashPath);
+            StorableTable stp = new StorableTable(nodeHashPath, tableName(NODES_TABLE, version), tableName(SIGNATURES_TABLE, version));
+            stp.load();
+            if (sorted) {
+                nodeSignatures = SortedNodeTable.load(stp);
+            } else {
+                nodeSignatures = HashLongIntMaps.newUpdatableMap(stp.size());
+                StorableTable.Cursor cur = stp.cursor();
+                while (cur.moveNext()) {
+                    nodeSignatures.put(cur.key(), cur.value());
+                }
+            }
+            stp.clear();
+        }
+        return new NodeSignatureIndex(signatures, nodeSignatures);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Set<Integer>> readLegacy(String nodeHashPath) throws IOException {
+        try (ObjectInputStream iis = new ObjectInputStream(new FileInputStream(nodeHashPath + File.separator + LEGACY_SIGNATURES_FILE))) {
+            return (List<Set<Integer>>) iis.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Cannot deserialize signatures", ex);
+        }
+    }
+
+    /**
+     * Converts the signatures serialized by older versions into the
+     * {@link SignatureStore} of the directory
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @return false if there is nothing to convert
+     * @throws IOException
+     */
+    public static boolean convertLegacy(String nodeHashPath) throws IOException {
+        if (SignatureStore.isStored(nodeHashPath) || !new File(nodeHashPath, LEGACY_SIGNATURES_FILE).isFile()) {
+            return false;
+        }
+        SignatureStore.store(readLegacy(nodeHashPath), nodeHashPath + File.separator + SignatureStore.FILE_NAME);
+        return true;
+    }
+
+    /**
+     * Changes the signatures of the given nodes. Signatures not in the index
+     * get the next ids and the store in the directory is rewritten with them,
+     * the ids of the existing signatures do not change. Do not call it while
+     * a search is using the index, nor on an index of a
+     * {@link SortedNodeTable}.
+     *
+     * @param changed the new signature of each node, encoded by
+     * {@link SignatureStore#encode(int[])}, null for a node removed from the
+     * graph
+     * @param nodeHashPath the directory of the node hash tables
+     * @return the number of new signatures
+     * @throws IOException
+     */
+    public int update(Map<Long, long[]> changed, String nodeHashPath) throws IOException {
+        SignatureBuilder.Dictionary dictionary = new SignatureBuilder.Dictionary(signatures);
+        int known = dictionary.size();
+        for (Map.Entry<Long, long[]> e : changed.entrySet()) {
+            Long node = e.getKey();
+            Integer old = nodeSignatures.remove(node);
+            if (old != null) {
+                signatureNodes.get(old).remove(node);
+            }
+            if (e.getValue() == null) {
+                continue;
+            }
+            int id = dictionary.idOf(e.getValue());
+            while (signatureNodes.size() <= id) {
+                signatureNodes.add(HashLongSets.newUpdatableSet());
+            }
+            signatureNodes.get(id).add(node);
+            nodeSignatures.put(node, id);
+        }
+        if (dictionary.size() > known) {
+            String storePath = nodeHashPath + File.separator + SignatureStore.FILE_NAME;
+            // The file is replaced, the current mapping stays valid
+            SignatureStore.storeEncoded(dictionary.getSignatures(), storePath);
+            signatures = new SignatureStore(storePath);
+            indexPositions();
+        }
+        return dictionary.size() - known;
+    }
+
+    /**
+     * Writes the signature id of each node in a new version of the tables,
+     * then points the manifest of the directory to it, so that
+     * {@link #load(String, Map)} reads either the old or the new tables, never
+     * one of each. The tables of the previous version are kept for the
+     * readers that have just read the manifest, the older ones are deleted.
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @return the version of the tables
+     * @throws IOException
+     */
+    public long storeNodes(String nodeHashPath) throws IOException {
+        long previous = tablesVersion(nodeHashPath);
+        long version = previous + 1;
+        StorableTable stp = new StorableTable(nodeHashPath, tableName(NODES_TABLE, version), tableName(SIGNATURES_TABLE, version), nodeSignatures.size());
+        stp.putAll(nodeSignatures);
+        stp.save();
+        stp.clear();
+        try (BinaryFile.Writer out = new BinaryFile.Writer(nodeHashPath + File.separator + MANIFEST_FILE)) {
+            out.putHeader(MANIFEST_MAGIC, MANIFEST_VERSION, version);
+            out.commit();
+        }
+        if (previous > 1) {
+            for (String table : new String[]{NODES_TABLE, SIGNATURES_TABLE}) {
+                Files.deleteIfExists(Paths.get(nodeHashPath, tableName(table, previous - 1) + ".tbl"));
+            }
+        }
+        return version;
+    }
+
+    /**
+     *
+     * @param nodeHashPath the directory of the node hash tables
+     * @return the version of the node tables in the manifest, 0 for the
+     * tables written by ComputeBitsetLvl1
+     * @throws IOException if the manifest is not valid
+     */
+    public static long tablesVersion(String nodeHashPath) throws IOException {
+        File manifest = new File(nodeHashPath, MANIFEST_FILE);
+        if (!manifest.isFile()) {
+            return 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(manifest, "r");
+                FileChannel channel = file.getChannel()) {
+            return BinaryFile.readHeader(channel, manifest.getPath(), "node tables manifest", MANIFEST_MAGIC, MANIFEST_VERSION, 3).get(2);
+        }
+    }
+
+    private static String tableName(String table, long version) {
+        return version == 0 ? table : table + "-v" + version;
+    }
+
+    /**
+     *
+     * @return number of distinct signatures
+     */
+    public int size() {
+        return signatures.size();
+    }
+
+    /**
+     *
+     * @param node
+     * @return the signature id of the node, -1 if the node is unknown
+     */
+    public int signatureOf(long node) {
+        Integer id = nodeSignatures.get(node);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     *
+     * @param id
+     * @return the sorted positions in the signature
+     */
+    public int[] getSignature(int id) {
+        return signatures.positionsOf(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return the nodes with the signature, do not modify
+     */
+    public Set<Long> nodesOf(int id) {
+        return signatureNodes.get(id);
+    }
+
+    /**
+     *
+     * @return the signature id of each node, do not modify
+     */
+    public Map<Long, Integer> getNodeSignatures() {
+        return nodeSignatures;
+    }
+
+    private int postingSize(int p) {
+        return p < 0 || p + 1 >= offsets.length ? 0 : offsets[p + 1] - offsets[p];
+    }
+
+    /**
+     * Finds the signatures containing all the given positions
+     *
+     * @param positions
+     * @return the sorted ids of the signatures
+     */
+    public int[] superSetsOf(int[] positions) {
+        if (positions.length == 0) {
+            int[] all = new int[signatures.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int shortest = positions[0];
+        for (int p : positions) {
+            if (postingSize(p) < postingSize(shortest)) {
+                shortest = p;
+            }
+        }
+        if (postingSize(shortest) == 0) {
+            return new int[0];
+        }
+        int[] result = Arrays.copyOfRange(postings, offsets[shortest], offsets[shortest + 1]);
+        if (positions.length == 1) {
+            return result;
+        }
+        long[] query = SignatureStore.encode(positions);
+        int size = 0;
+        for (int id : result) {
+            if (signatures.containsAll(id, query)) {
+                result[size++] = id;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     *
+     * @param query
+     * @param node a node of the query
+     * @param labelsOrder the position of each label
+     * @return the signature of the query node, null if a label has no
+     * position
+     */
+    public static int[] signatureOf(Multigraph query, Long node, Map<Long, Integer> labelsOrder) {
+        int numLabels = labelsOrder.size();
+        List<Integer> positions = new ArrayList<>();
+        Iterator<Edge> it;
+        for (int i = 0; i < 2; i++) {
+            it = (i == 0 ? query.outgoingEdgesIteratorOf(node) : query.incomingEdgesIteratorOf(node));
+            while (it.hasNext()) {
+                Integer pos = labelsOrder.get(it.next().getLabel());
+                if (pos == null) {
+                    return null;
+                }
+                positions.add(i * numLabels + pos);
+            }
+        }
+        int[] signature = new int[positions.size()];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = positions.get(i);
+        }
+        Arrays.sort(signature);
+        int size = 0;
+        for (int i = 0; i < signature.length; i++) {
+            if (size == 0 || signature[size - 1] != signature[i]) {
+                signature[size++] = signature[i];
+            }
+        }
+        return Arrays.copyOf(signature, size);
+    }
+
+    /**
+     * Maps each node of the query to the graph nodes whose signature contains
+     * the signature of the query node
+     *
+     * @param query
+     * @param labelsOrder the position of each label
+     * @return map from each node in the query to all nodes in the graph that
+     * can match it
+     */
+    public Map<Long, Set<Long>> candidates(Multigraph query, Map<Long, Integer> labelsOrder) {
+        Map<Long, Set<Long>> queryGraphMap = new HashMap<>();
+        StopWatch wa = new StopWatch();
+        wa.start();
+        int matched = 0;
+        List<Integer> matches = new ArrayList<>();
+        for (Long node : query) {
+            CompoundSet<Long> nodes = new CompoundSet<>();
+            int[] signature = signatureOf(query, node, labelsOrder);
+            if (signature != null) {
+                for (int id : superSetsOf(signature)) {
+                    nodes.addAll(signatureNodes.get(id));
+                    matched++;
+                }
+            }
+            queryGraphMap.put(node, nodes);
+            matches.add(nodes.size());
+        }
+        wa.stop();
+        debug("Loaded index for %s nodes in %s ms matching %s maps with %s size", queryGraphMap.size(), wa.getElapsedTimeMillis(), matched, matches);
+        return queryGraphMap;
+    }
+}
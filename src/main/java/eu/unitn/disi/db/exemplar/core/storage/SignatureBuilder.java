@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the label signatures of the graph nodes, encoded as in
+ * {@link SignatureStore}.
+ *
+ * The nodes are processed in shards, each one with its own dictionary of
+ * signatures numbered in order of first occurrence. Merging the shards in
+ * order into a {@link Dictionary} gives the same ids of a sequential scan of
+ * all the nodes. A shard can be spilled to disk until it is merged.
+ * A builder is not thread safe, use one per thread.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class SignatureBuilder {
+
+    private final Multigraph graph;
+    private final Map<Long, Integer> positions;
+    private final int numLabels;
+    private int[] buffer = new int[64];
+
+    /**
+     *
+     * @param graph
+     * @param positions the position of each label
+     */
+    public SignatureBuilder(Multigraph graph, Map<Long, Integer> positions) {
+        this.graph = graph;
+        this.positions = positions;
+        this.numLabels = positions.size();
+    }
+
+    /**
+     *
+     * @param labels all the labels of the graph
+     * @return the position of each label, in label order
+     */
+    public static Map<Long, Integer> labelPositions(Collection<Long> labels) {
+        List<Long> sorted = new ArrayList<>(labels);
+        Collections.sort(sorted);
+        Map<Long, Integer> positions = new HashMap<>(sorted.size() * 4 / 3 + 1);
+        for (Long l : sorted) {
+            positions.put(l, positions.size());
+        }
+        return positions;
+    }
+
+    /**
+     *
+     * @param node
+     * @return the encoded signature of the node
+     */
+    public long[] signatureOf(long node) {
+        int size = 0;
+        for (int i = 0; i < 2; i++) {
+            Iterator<Edge> it = i == 0 ? graph.outgoingEdgesIteratorOf(node) : graph.incomingEdgesIteratorOf(node);
+            if (it == null) {
+                continue;
+            }
+            long lastLb = -1;
+            while (it.hasNext()) {
+                long lbl = it.next().getLabel();
+                if (lbl == lastLb) {
+                    continue;
+                }
+                lastLb = lbl;
+                Integer pos = positions.get(lbl);
+                if (pos == null) {
+                    throw new IllegalStateException("Label " + lbl + " has no position in the signatures");
+                }
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, size * 2);
+                }
+                buffer[size++] = i * numLabels + pos;
+            }
+        }
+        return SignatureStore.encode(Arrays.copyOf(buffer, size));
+    }
+
+    /**
+     * Computes the signatures of nodes[from, to)
+     *
+     * @param nodes
+     * @param from
+     * @param to
+     * @return the shard
+     */
+    public Shard build(long[] nodes, int from, int to) {
+        Dictionary local = new Dictionary();
+        int[] clusters = new int[to - from];
+        for (int i = from; i < to; i++) {
+            clusters[i - from] = local.idOf(signatureOf(nodes[i]));
+        }
+        return new Shard(local.getSignatures(), clusters);
+    }
+
+    /**
+     * Encoded signature usable as a key
+     */
+    private static final class Key {
+
+        private final long[] words;
+        private final int hash;
+
+        Key(long[] words) {
+            this.words = words;
+            this.hash = Arrays.hashCode(words);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(words, ((Key) obj).words);
+        }
+    }
+
+    /**
+     * Distinct signatures numbered in order of insertion
+     */
+    public static class Dictionary {
+
+        private final Map<Key, Integer> ids = new HashMap<>();
+        private final List<long[]> signatures = new ArrayList<>();
+
+        public Dictionary() {
+        }
+
+        /**
+         *
+         * @param signatures the signatures of an existing store, by id
+         */
+        public Dictionary(SignatureStore signatures) {
+            for (int id = 0; id < signatures.size(); id++) {
+                idOf(SignatureStore.encode(signatures.positionsOf(id)));
+            }
+        }
+
+        /**
+         *
+         * @param signature an encoded signature
+         * @return the id of the signature, a new one if not seen before
+         */
+        public int idOf(long[] signature) {
+            Key key = new Key(signature);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = signatures.size();
+                ids.put(key, id);
+                signatures.add(signature);
+            }
+            return id;
+        }
+
+        /**
+         * Adds the signatures of the shard and maps its node clusters to the
+         * ids of the dictionary
+         *
+         * @param shard
+         * @param clusters the clusters of all the nodes
+         * @param from position of the first node of the shard
+         */
+        public void merge(Shard shard, int[] clusters, int from) {
+            int[] remap = new int[shard.signatures.size()];
+            for (int i = 0; i < remap.length; i++) {
+                remap[i] = idOf(shard.signatures.get(i));
+            }
+            for (int i = 0; i < shard.clusters.length; i++) {
+                clusters[from + i] = remap[shard.clusters[i]];
+            }
+        }
+
+        /**
+         *
+         * @return the signatures, by id
+         */
+        public List<long[]> getSignatures() {
+            return signatures;
+        }
+
+        public int size() {
+            return signatures.size();
+        }
+    }
+
+    /**
+     * The local signatures of a range of nodes and the local id of each node
+     */
+    public static final class Shard {
+
+        private final List<long[]> signatures;
+        private final int[] clusters;
+
+        Shard(List<long[]> signatures, int[] clusters) {
+            this.signatures = signatures;
+            this.clusters = clusters;
+        }
+
+        /**
+         *
+         * @return number of distinct signatures in the shard
+         */
+        public int size() {
+            return signatures.size();
+        }
+
+        /**
+         * Writes the shard to a file
+         *
+         * @param file
+         * @throws IOException
+         */
+        public void spill(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                out.writeInt(signatures.size());
+                for (long[] signature : signatures) {
+                    out.writeInt(signature.length);
+                    for (long word : signature) {
+                        out.writeLong(word);
+                    }
+                }
+                out.writeInt(clusters.length);
+                for (int cluster : clusters) {
+                    out.writeInt(cluster);
+                }
+            }
+        }
+
+        /**
+         * Reads a shard written by {@link #spill(File)}
+         *
+         * @param file
+         * @return the shard
+         * @throws IOException
+         */
+        public static Shard read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                int n = in.readInt();
+                List<long[]> signatures = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    long[] signature = new long[in.readInt()];
+                    for (int j = 0; j < signature.length; j++) {
+                        signature[j] = in.readLong();
+                    }
+                    signatures.add(signature);
+                }
+                int[] clusters = new int[in.readInt()];
+                for (int i = 0; i < clusters.length; i++) {
+                    clusters[i] = in.readInt();
+                }
+                return new Shard(signatures, clusters);
+            }
+        }
+    }
+}
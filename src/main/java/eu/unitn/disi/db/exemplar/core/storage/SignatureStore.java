@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The distinct label signatures of the graph nodes, stored as sparse bitsets
+ * in a flat little-endian file that is memory mapped when loaded.
+ *
+ * Each signature is the sorted list of its non-zero 64 bit words, as pairs of
+ * word index and word, so small signatures take a few longs and large ones
+ * become plain bitsets. A subset check is a merge of the words of the two
+ * signatures with an ANDNOT on each word.
+ *
+ * The file is a header (magic, version, number of signatures, number of
+ * longs of the words), the offsets of the signatures, and the words.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class SignatureStore {
+
+    public static final long MAGIC = 0x4558515349474e53L; // "EXQSIGNS"
+    public static final long VERSION = 1;
+    public static final String FILE_NAME = "signatures-l1.bin";
+
+    private static final int HEADER_SIZE = 4;
+
+    private final MappedLongArray offsets;
+    private final MappedLongArray words;
+    private final int size;
+
+    /**
+     * Maps a stored set of signatures
+     *
+     * @param path the file written by {@link #store(List, String)}
+     * @throws IOException if the file is not a valid signature store
+     */
+    public SignatureStore(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedLongArray header = BinaryFile.readHeader(channel, path, "signature store", MAGIC, VERSION, HEADER_SIZE);
+            long n = header.get(2);
+            long length = header.get(3);
+            if (n > Integer.MAX_VALUE || n < 0 || length < 0
+                    || channel.size() != (HEADER_SIZE + n + 1 + length) * Long.BYTES) {
+                throw new IOException("Signature store " + path + " is corrupt");
+            }
+            this.size = (int) n;
+            this.offsets = new MappedLongArray(channel, HEADER_SIZE * Long.BYTES, n + 1);
+            this.words = new MappedLongArray(channel, (HEADER_SIZE + n + 1) * Long.BYTES, length);
+        }
+    }
+
+    /**
+     *
+     * @param dirPath directory containing the signatures
+     * @return true if the directory contains a signature store
+     */
+    public static boolean isStored(String dirPath) {
+        return new File(dirPath, FILE_NAME).isFile();
+    }
+
+    /**
+     * Encodes the positions as pairs of word index and word
+     *
+     * @param positions the positions in the signature, in any order
+     * @return the sparse words of the signature
+     */
+    public static long[] encode(int[] positions) {
+        int[] sorted = positions.clone();
+        Arrays.sort(sorted);
+        long[] encoded = new long[sorted.length * 2];
+        int length = 0;
+        for (int p : sorted) {
+            if (p < 0) {
+                throw new IllegalArgumentException("Negative position " + p + " in signature");
+            }
+            long index = p >>> 6;
+            if (length == 0 || encoded[length - 2] != index) {
+                encoded[length++] = index;
+                length++;
+            }
+            encoded[length - 1] |= 1L << p;
+        }
+        return Arrays.copyOf(encoded, length);
+    }
+
+    private static int[] toArray(Collection<Integer> signature) {
+        int[] positions = new int[signature.size()];
+        int i = 0;
+        for (int p : signature) {
+            positions[i++] = p;
+        }
+        return positions;
+    }
+
+    /**
+     * Stores the signatures, the id of a signature is its position in the
+     * list
+     *
+     * @param signatures
+     * @param path output file
+     * @throws IOException
+     */
+    public static void store(List<? extends Collection<Integer>> signatures, String path) throws IOException {
+        List<long[]> encoded = new ArrayList<>(signatures.size());
+        for (Collection<Integer> signature : signatures) {
+            encoded.add(encode(toArray(signature)));
+        }
+        storeEncoded(encoded, path);
+    }
+
+    /**
+     * Stores signatures already encoded by {@link #encode(int[])}, the id of a
+     * signature is its position in the list
+     *
+     * @param encoded
+     * @param path output file
+     * @throws IOException
+     */
+    public static void storeEncoded(List<long[]> encoded, String path) throws IOException {
+        long length = 0;
+        for (long[] signature : encoded) {
+            length += signature.length;
+        }
+        try (BinaryFile.Writer out = new BinaryFile.Writer(path)) {
+            out.putHeader(MAGIC, VERSION, encoded.size(), length);
+            long offset = 0;
+            out.putLong(offset);
+            for (long[] signature : encoded) {
+                offset += signature.length;
+                out.putLong(offset);
+            }
+            for (long[] signature : encoded) {
+                for (long word : signature) {
+                    out.putLong(word);
+                }
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     *
+     * @return number of signatures
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param id
+     * @return the sorted positions in the signature
+     */
+    public int[] positionsOf(int id) {
+        long from = offsets.get(id);
+        long to = offsets.get(id + 1);
+        int count = 0;
+        for (long i = from; i < to; i += 2) {
+            count += Long.bitCount(words.get(i + 1));
+        }
+        int[] positions = new int[count];
+        int pos = 0;
+        for (long i = from; i < to; i += 2) {
+            long base = words.get(i) << 6;
+            long word = words.get(i + 1);
+            while (word != 0) {
+                positions[pos++] = (int) (base + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     *
+     * @param id
+     * @param query a signature encoded by {@link #encode(int[])}
+     * @return true if the signature contains all the positions of the query
+     */
+    public boolean containsAll(int id, long[] query) {
+        long pos = offsets.get(id);
+        long to = offsets.get(id + 1);
+        for (int q = 0; q < query.length; q += 2) {
+            while (pos < to && words.get(pos) < query[q]) {
+                pos += 2;
+            }
+            if (pos == to || words.get(pos) != query[q] || (query[q + 1] & ~words.get(pos + 1)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map from the graph nodes to their signature ids, kept as a sorted
+ * array of node ids with a parallel array of ids.
+ *
+ * A lookup is a binary search on the nodes. The nodes of each signature are
+ * the positions in members[offsets[s], offsets[s+1]), in node order, so they
+ * are exposed as sets without copying. It takes about 16 bytes per node,
+ * instead of a hash map entry and a hash set entry per node.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class SortedNodeTable extends AbstractMap<Long, Integer> {
+
+    private static final int INSERTION_SORT_SIZE = 16;
+
+    private final long[] nodes;
+    private final int[] clusters;
+    private final int[] offsets;
+    private final int[] members;
+
+    /**
+     *
+     * @param nodes the node ids, sorted in place
+     * @param clusters the signature id of each node, permuted with the nodes
+     */
+    public SortedNodeTable(long[] nodes, int[] clusters) {
+        if (nodes.length != clusters.length) {
+            throw new IllegalArgumentException("Nodes and signature ids differ in size");
+        }
+        this.nodes = nodes;
+        this.clusters = clusters;
+        if (!isSorted(nodes)) {
+            sort(nodes, clusters, 0, nodes.length - 1);
+        }
+        int numClusters = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (i > 0 && nodes[i] == nodes[i - 1]) {
+                throw new IllegalArgumentException("Duplicate node " + nodes[i] + " in table");
+            }
+            if (clusters[i] < 0) {
+                throw new IllegalArgumentException("Negative signature id for node " + nodes[i]);
+            }
+            numClusters = Math.max(numClusters, clusters[i] + 1);
+        }
+        offsets = new int[numClusters + 1];
+        for (int c : clusters) {
+            offsets[c + 1]++;
+        }
+        for (int c = 0; c < numClusters; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        members = new int[nodes.length];
+        int[] fill = new int[numClusters];
+        System.arraycopy(offsets, 0, fill, 0, numClusters);
+        for (int i = 0; i < nodes.length; i++) {
+            members[fill[clusters[i]]++] = i;
+        }
+    }
+
+    /**
+     *
+     * @param table the node tables written by ComputeBitsetLvl1, already
+     * loaded
+     * @return the sorted table
+     */
+    public static SortedNodeTable load(StorableTable table) {
+        long[] nodes = new long[table.size()];
+        int[] clusters = new int[nodes.length];
+        StorableTable.Cursor cur = table.cursor();
+        int i = 0;
+        while (cur.moveNext()) {
+            nodes[i] = cur.key();
+            clusters[i] = cur.value();
+            i++;
+        }
+        return new SortedNodeTable(nodes, clusters);
+    }
+
+    private static boolean isSorted(long[] nodes) {
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodes[i] < nodes[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        int v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+
+    /**
+     * Quicksort of keys[low, high] moving the values along
+     */
+    private static void sort(long[] keys, int[] values, int low, int high) {
+        while (high - low >= INSERTION_SORT_SIZE) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < keys[low]) {
+                swap(keys, values, mid, low);
+            }
+            if (keys[high] < keys[low]) {
+                swap(keys, values, high, low);
+            }
+            if (keys[high] < keys[mid]) {
+                swap(keys, values, high, mid);
+            }
+            long pivot = keys[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // Recurse on the smaller side to bound the stack
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && keys[j] < keys[j - 1]; j--) {
+                swap(keys, values, j, j - 1);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param node
+     * @return the position of the node, -1 if the node is unknown
+     */
+    private int positionOf(long node) {
+        int low = 0;
+        int high = nodes.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (nodes[mid] < node) {
+                low = mid + 1;
+            } else if (nodes[mid] > node) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param node
+     * @return the signature id of the node, -1 if the node is unknown
+     */
+    public int clusterOf(long node) {
+        int pos = positionOf(node);
+        return pos < 0 ? -1 : clusters[pos];
+    }
+
+    /**
+     *
+     * @return number of signature ids, the largest id plus one
+     */
+    public int numberOfClusters() {
+        return offsets.length - 1;
+    }
+
+    /**
+     *
+     * @param cluster
+     * @return the nodes with the signature id, read-only
+     */
+    public Set<Long> nodesOf(int cluster) {
+        return new ClusterNodes(offsets[cluster], offsets[cluster + 1]);
+    }
+
+    @Override
+    public Integer get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int pos = positionOf((Long) key);
+        return pos < 0 ? null : clusters[pos];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && positionOf((Long) key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    @Override
+    public Set<Entry<Long, Integer>> entrySet() {
+        return new AbstractSet<Entry<Long, Integer>>() {
+            @Override
+            public Iterator<Entry<Long, Integer>> iterator() {
+                return new Iterator<Entry<Long, Integer>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < nodes.length;
+                    }
+
+                    @Override
+                    public Entry<Long, Integer> next() {
+                        if (next >= nodes.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Long, Integer> e = new SimpleImmutableEntry<>(nodes[next], clusters[next]);
+                        next++;
+                        return e;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return nodes.length;
+            }
+        };
+    }
+
+    /**
+     * The nodes in members[from, to)
+     */
+    private final class ClusterNodes extends AbstractSet<Long> {
+
+        private final int from;
+        private final int to;
+
+        ClusterNodes(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Long)) {
+                return false;
+            }
+            long node = (Long) o;
+            int low = from;
+            int high = to - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = nodes[members[mid]];
+                if (value < node) {
+                    low = mid + 1;
+                } else if (value > node) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                private int next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < to;
+                }
+
+                @Override
+                public Long next() {
+                    if (next >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return nodes[members[next++]];
+                }
+            };
+        }
+    }
+}
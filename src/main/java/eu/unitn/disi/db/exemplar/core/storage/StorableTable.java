@@ -17,29 +17,25 @@
  */
 package eu.unitn.disi.db.exemplar.core.storage;
 
-import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
 import eu.unitn.disi.db.mutilities.LoggableObject;
 import eu.unitn.disi.db.mutilities.Pair;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 /**
+ * Table of node ids and int values, stored as two {@link TableFile}s.
+ *
+ * The loaded files are memory mapped in chunks, so they can exceed 2GB, use
+ * {@link #cursor()} to scan them without allocating. A loaded table is copied
+ * on the heap only when it is extended. Files serialized by
+ * older versions are still loaded, copying them on the heap.
  *
  * @author Matteo Lissandrini
  */
@@ -56,12 +52,21 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
     /**
      * Nodes IDS
      */
-    private ArrayList<Long> nodes;
+    private LongBuffer nodes;
 
     /**
      * Nodes Cardinality
      */
-    private ArrayList<Integer> cady;
+    private IntBuffer cady;
+
+    /**
+     * The tables mapped by {@link #load()}, null while the table is on the
+     * heap
+     */
+    private MappedLongArray mappedNodes;
+    private MappedIntArray mappedCady;
+
+    private int size;
 
     
     
@@ -99,8 +104,9 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
             throw new IOException("Illegal directory path: '"+dirPath + "'  "+cause);        
          
         }
-        this.nodes = new ArrayList<>(initialSize);
-        this.cady = new ArrayList<>(initialSize);
+        this.nodes = LongBuffer.allocate(Math.max(1, initialSize));
+        this.cady = IntBuffer.allocate(Math.max(1, initialSize));
+        this.size = 0;
 
     }
     
@@ -122,18 +128,20 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
      * @return current number of elements
      */
     public int put(long node, int cd) {
-        nodes.add(node);
-        cady.add(cd);
-        return nodes.size();
+        unmap();
+        nodes = TableFile.ensureCapacity(nodes, size, size + 1);
+        cady = TableFile.ensureCapacity(cady, size, size + 1);
+        nodes.put(size, node);
+        cady.put(size, cd);
+        return ++size;
     }
     
     
     public int putAll(Map<Long, Integer> table) {
         for (Entry<Long, Integer> pair : table.entrySet()) {
-            nodes.add(pair.getKey());
-            cady.add(pair.getValue());            
+            put(pair.getKey(), pair.getValue());
         }
-        return nodes.size();
+        return size;
     }
 
     /**
@@ -141,7 +149,7 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
      * @return number of elements
      */
     public int size(){
-        return  this.nodes.size();
+        return  this.size;
     }
     
     /**
@@ -149,19 +157,29 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
      * @return  the map
      */
     public LinkedHashMap<Long, Integer> getNodesMap(){
-        LinkedHashMap<Long, Integer> map = new LinkedHashMap<>(nodes.size()*4/3);
-        for(Pair<Long, Integer> p : this){
-            map.put(p.getFirst(), p.getSecond());
+        LinkedHashMap<Long, Integer> map = new LinkedHashMap<>(size*4/3);
+        for (int i = 0; i < size; i++) {
+            map.put(nodeAt(i), valueAt(i));
         }
         return map;
     }
 
     /**
-     * The nodes in this table
-     * @return 
+     *
+     * @param i
+     * @return the node at position i
+     */
+    public long nodeAt(int i) {
+        return mappedNodes != null ? mappedNodes.get(i) : nodes.get(i);
+    }
+
+    /**
+     *
+     * @param i
+     * @return the value at position i
      */
-    public List<Long> getNodes(){
-        return this.nodes;
+    public int valueAt(int i) {
+        return mappedCady != null ? mappedCady.get(i) : cady.get(i);
     }
     
     
@@ -182,117 +200,189 @@ public class StorableTable extends LoggableObject implements Iterable<Pair<Long,
     }
     
     /**
-     * Saves the list of nodes as two arrays of long and int
+     * Saves the nodes and the values as two binary tables, a mapped table has
+     * not been changed since it has been loaded from the same files
      *
      * @throws java.io.IOException
      */
     public void save() throws IOException {
-        try (
-                OutputStream file = new FileOutputStream(this.nodesPath);
-                OutputStream buffer = new BufferedOutputStream(file);
-                ObjectOutput output = new ObjectOutputStream(buffer);) {
-
-            long[] toOut = CollectionUtilities.convertListLongs(this.nodes);
-            output.writeObject(toOut);
-
+        if (mappedNodes != null) {
+            return;
+        }
+        try {
+            TableFile.writeLongs(this.nodesPath, this.nodes, size);
         } catch (IOException ex) {
-            throw new IOException("Could Not Serialize Table Nodes File", ex);
+            throw new IOException("Could Not Write Table Nodes File", ex);
         }
-        try (
-                OutputStream file = new FileOutputStream(this.cadyPath);
-                OutputStream buffer = new BufferedOutputStream(file);
-                ObjectOutput output = new ObjectOutputStream(buffer);) {
-
-            int[] toOut = CollectionUtilities.convertListIntegers(this.cady);
-            output.writeObject(toOut);
-
+        try {
+            TableFile.writeInts(this.cadyPath, this.cady, size);
         } catch (IOException ex) {
-            throw new IOException("Could Not Serialize Table Cardinalities File", ex);
+            throw new IOException("Could Not Write Table Cardinalities File", ex);
         }
         debug("Saved on %s", this.cadyPath);
     }
 
     /**
-     * Loads the list of nodes from two files containing the two arrays
+     * Maps the two tables, tables serialized by older versions are read on
+     * the heap
      *
      * @return true if everything went well
      * @throws java.io.IOException
      */
     public boolean load() throws IOException {
-        this.nodes = new ArrayList<>(this.initialSize);
-        this.cady = new ArrayList<>(this.initialSize);
-                    
+        this.clear();
         if(!this.isStored()){
             return false;
         }
-        try (
-                InputStream file = new FileInputStream(this.nodesPath);
-                InputStream buffer = new BufferedInputStream(file);
-                ObjectInput input = new ObjectInputStream(buffer);
-            ) {
+        if (TableFile.isLegacy(this.nodesPath) || TableFile.isLegacy(this.cadyPath)) {
+            return loadLegacy();
+        }
+        MappedLongArray loadedNodes = TableFile.mapLongs(this.nodesPath);
+        MappedIntArray loadedCady = TableFile.mapInts(this.cadyPath);
+        if (loadedNodes.length() != loadedCady.length() || loadedNodes.length() > Integer.MAX_VALUE) {
+            error("Table %s has %s nodes and %s values", this.nodesPath, loadedNodes.length(), loadedCady.length());
+            return false;
+        }
+        this.nodes = null;
+        this.cady = null;
+        this.mappedNodes = loadedNodes;
+        this.mappedCady = loadedCady;
+        this.size = (int) loadedNodes.length();
+        return true;
+    }
 
-            long[] rec = (long[]) input.readObject();
-            
-            for (long n : rec) {
-                this.nodes.add(n);
+    /**
+     * Reads the tables serialized by older versions on the heap, a table in
+     * the binary format is copied as well
+     */
+    private boolean loadLegacy() throws IOException {
+        LongBuffer loadedNodes;
+        IntBuffer loadedCady;
+        if (TableFile.isLegacy(this.nodesPath)) {
+            loadedNodes = LongBuffer.wrap((long[]) TableFile.readLegacy(this.nodesPath));
+        } else {
+            MappedLongArray mapped = TableFile.mapLongs(this.nodesPath);
+            loadedNodes = LongBuffer.allocate((int) mapped.length());
+            for (int i = 0; i < loadedNodes.capacity(); i++) {
+                loadedNodes.put(i, mapped.get(i));
             }
-
-        } catch (ClassNotFoundException ex) {
-            error("How could you let this happen?");
-            return false;
         }
-        try (
-                InputStream file = new FileInputStream(this.cadyPath);
-                InputStream buffer = new BufferedInputStream(file);
-                ObjectInput input = new ObjectInputStream(buffer);) {
-
-            int[] rec = (int[]) input.readObject();
-            for (int n : rec) {
-                this.cady.add(n);
+        if (TableFile.isLegacy(this.cadyPath)) {
+            loadedCady = IntBuffer.wrap((int[]) TableFile.readLegacy(this.cadyPath));
+        } else {
+            MappedIntArray mapped = TableFile.mapInts(this.cadyPath);
+            loadedCady = IntBuffer.allocate((int) mapped.length());
+            for (int i = 0; i < loadedCady.capacity(); i++) {
+                loadedCady.put(i, mapped.get(i));
             }
-
-        } catch (ClassNotFoundException ex) {
-            error("How could you let this happen?");
+        }
+        if (loadedNodes.capacity() != loadedCady.capacity()) {
+            error("Table %s has %s nodes and %s values", this.nodesPath, loadedNodes.capacity(), loadedCady.capacity());
             return false;
         }
-
+        this.nodes = loadedNodes;
+        this.cady = loadedCady;
+        this.size = loadedNodes.capacity();
         return true;
     }
 
+    /**
+     * Copies a mapped table on the heap, so that it can be extended
+     */
+    private void unmap() {
+        if (mappedNodes == null) {
+            return;
+        }
+        LongBuffer heapNodes = LongBuffer.allocate(Math.max(1, size));
+        IntBuffer heapCady = IntBuffer.allocate(Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            heapNodes.put(i, mappedNodes.get(i));
+            heapCady.put(i, mappedCady.get(i));
+        }
+        this.nodes = heapNodes;
+        this.cady = heapCady;
+        this.mappedNodes = null;
+        this.mappedCady = null;
+    }
+
+    /**
+     * Converts the tables serialized by older versions to binary tables
+     *
+     * @return true if a file has been converted
+     * @throws IOException
+     */
+    public boolean convert() throws IOException {
+        if (!this.isStored()) {
+            return false;
+        }
+        boolean converted = TableFile.convert(this.nodesPath);
+        return TableFile.convert(this.cadyPath) || converted;
+    }
+
     @Override
     public Iterator<Pair<Long, Integer>> iterator() {
-        return new NodeCardinalityIterator(nodes.iterator(), cady.iterator());
+        return new Iterator<Pair<Long, Integer>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Pair<Long, Integer> next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                Pair<Long, Integer> p = new Pair<>(nodeAt(next), valueAt(next));
+                next++;
+                return p;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a cursor over the table, before the first element
+     */
+    public Cursor cursor() {
+        return new Cursor();
     }
 
     public void clear() {
-        this.nodes.clear();
-        this.cady.clear();
+        this.mappedNodes = null;
+        this.mappedCady = null;
+        this.nodes = LongBuffer.allocate(Math.max(1, this.initialSize));
+        this.cady = IntBuffer.allocate(Math.max(1, this.initialSize));
+        this.size = 0;
     }
 
     
-    private class NodeCardinalityIterator implements Iterator<Pair<Long, Integer>> {
+    /**
+     * Scans the table without boxing
+     */
+    public final class Cursor {
 
-        private final Iterator<Long> nodes;
-        private final Iterator<Integer> cadys;
+        private int pos = -1;
 
-        public NodeCardinalityIterator(Iterator<Long> nodes, Iterator<Integer> cadys) {
-            this.nodes = nodes;
-            this.cadys = cadys;
+        private Cursor() {
         }
 
-        @Override
-        public boolean hasNext() {
-            if (nodes.hasNext() ^ cadys.hasNext()) {
-                throw new IllegalStateException("Nodes iterator and cardinality iterator differ in status");
-            }
-            return nodes.hasNext();
+        /**
+         *
+         * @return false if there are no more elements
+         */
+        public boolean moveNext() {
+            return ++pos < size;
         }
 
-        @Override
-        public Pair<Long, Integer> next() {
-            return new Pair<>(this.nodes.next(), this.cadys.next());
+        public long key() {
+            return nodeAt(pos);
         }
 
+        public int value() {
+            return valueAt(pos);
+        }
     }
 
 }
@@ -17,30 +17,27 @@
  */
 package eu.unitn.disi.db.exemplar.core.storage;
 
-import eu.unitn.disi.db.mutilities.data.CollectionUtilities;
 import eu.unitn.disi.db.mutilities.LoggableObject;
 import eu.unitn.disi.db.mutilities.Pair;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 /**
+ * Table of pairs of node ids and int values, stored as two
+ * {@link TableFile}s.
+ *
+ * The loaded files are memory mapped in chunks, so they can exceed 2GB, use
+ * {@link #cursor()} to scan them without allocating pairs. A loaded table is
+ * copied on the heap only when it is extended. Files serialized
+ * by older versions are still loaded, copying them on the heap.
  *
  * @author Matteo Lissandrini
  */
@@ -56,14 +53,23 @@ public class StorableTriple extends LoggableObject implements Iterable<Pair<Pair
 
 
     /**
-     * Nodes IDS
+     * Nodes IDS, the pair i is at 2i and 2i+1
      */
-    private ArrayList<Pair<Long,Long>> pairs;
+    private LongBuffer pairs;
 
     /**
      * Nodes Cardinality
      */
-    private ArrayList<Integer> cady;
+    private IntBuffer cady;
+
+    /**
+     * The tables mapped by {@link #load()}, null while the table is on the
+     * heap
+     */
+    private MappedLongArray mappedPairs;
+    private MappedIntArray mappedCady;
+
+    private int size;
 
     
     
@@ -100,8 +106,9 @@ public class StorableTriple extends LoggableObject implements Iterable<Pair<Pair
             
             throw new IOException("Illegal directory path: '"+dirPath + "'  "+cause);
         }
-        this.pairs = new ArrayList<>(initialSize);
-        this.cady = new ArrayList<>(initialSize);
+        this.pairs = LongBuffer.allocate(Math.max(1, initialSize) * 2);
+        this.cady = IntBuffer.allocate(Math.max(1, initialSize));
+        this.size = 0;
 
     }
     
@@ -123,46 +130,58 @@ public class StorableTriple extends LoggableObject implements Iterable<Pair<Pair
      * @return current number of elements
      */
     public int put(long node1, long node2, int cd) {
-        pairs.add(new Pair<>(node1, node2));
-        cady.add(cd);
-        return pairs.size();
+        unmap();
+        pairs = TableFile.ensureCapacity(pairs, 2 * size, 2 * size + 2);
+        cady = TableFile.ensureCapacity(cady, size, size + 1);
+        pairs.put(2 * size, node1);
+        pairs.put(2 * size + 1, node2);
+        cady.put(size, cd);
+        return ++size;
     }
     
     
     public int put(Pair<Long, Long> p, int cd) {
-        pairs.add(p);
-        cady.add(cd);
-        return pairs.size();
+        return put(p.getFirst(), p.getSecond(), cd);
     }
     
     
     public int putAll(Map<Pair<Long, Long>, Integer> table) {
         for (Entry<Pair<Long, Long>, Integer> entry : table.entrySet()) {
-            pairs.add(entry.getKey());
-            cady.add(entry.getValue());
+            put(entry.getKey(), entry.getValue());
         }
-        return pairs.size();
+        return size;
     }
 
+    /**
+     * 
+     * @return number of elements
+     */
+    public int size(){
+        return  this.size;
+    }
     
     /**
      * 
      * @return  the map
      */
     public Map<Pair<Long,Long>, Integer> getNodesMap(){
-        Map<Pair<Long, Long>, Integer> map = new HashMap<>();
-        for(Pair<Pair<Long, Long>, Integer> p : this){
-            map.put(p.getFirst(), p.getSecond());
+        Map<Pair<Long, Long>, Integer> map = new HashMap<>(size*4/3 + 1);
+        for (int i = 0; i < size; i++) {
+            map.put(new Pair<>(firstAt(i), secondAt(i)), valueAt(i));
         }
         return map;
     }
 
-    /**
-     * The nodes in this table
-     * @return 
-     */
-    public List<Pair<Long, Long>> getNodes(){
-        return this.pairs;
+    private long firstAt(int i) {
+        return mappedPairs != null ? mappedPairs.get(2L * i) : pairs.get(2 * i);
+    }
+
+    private long secondAt(int i) {
+        return mappedPairs != null ? mappedPairs.get(2L * i + 1) : pairs.get(2 * i + 1);
+    }
+
+    private int valueAt(int i) {
+        return mappedCady != null ? mappedCady.get(i) : cady.get(i);
     }
     
     
@@ -185,115 +204,201 @@ public class StorableTriple extends LoggableObject implements Iterable<Pair<Pair
     }
     
     /**
-     * Saves the list of pairs as serialized object  and the cardinalities as array of int
+     * Saves the pairs and the values as two binary tables, a mapped table has
+     * not been changed since it has been loaded from the same files
      *
      * @throws java.io.IOException
      */
     public void save() throws IOException {
-        try (
-                OutputStream file = new FileOutputStream(this.pairsPath);
-                OutputStream buffer = new BufferedOutputStream(file);
-                ObjectOutput output = new ObjectOutputStream(buffer);) {
-            
-            output.writeObject(this.pairs);
-
+        if (mappedPairs != null) {
+            return;
+        }
+        try {
+            TableFile.writePairs(this.pairsPath, this.pairs, size);
         } catch (IOException ex) {
-            throw new IOException("Could Not Serialize Pairs File", ex);
+            throw new IOException("Could Not Write Pairs File", ex);
         }
-        try (
-                OutputStream file = new FileOutputStream(this.cadyPath);
-                OutputStream buffer = new BufferedOutputStream(file);
-                ObjectOutput output = new ObjectOutputStream(buffer);) {
-
-            int[] toOut = CollectionUtilities.convertListIntegers(this.cady);
-            output.writeObject(toOut);
-
+        try {
+            TableFile.writeInts(this.cadyPath, this.cady, size);
         } catch (IOException ex) {
-            throw new IOException("Could Not Serialize Cardinalities File", ex);
+            throw new IOException("Could Not Write Cardinalities File", ex);
         }
         debug("Saved on %s", this.pairsPath);
     }
 
     public void clear(){
-        this.pairs.clear();
-        this.cady.clear();
+        this.mappedPairs = null;
+        this.mappedCady = null;
+        this.pairs = LongBuffer.allocate(Math.max(1, this.initialSize) * 2);
+        this.cady = IntBuffer.allocate(Math.max(1, this.initialSize));
+        this.size = 0;
     }
     
     /**
-     * Loads the list of nodes from two files containing the two arrays
+     * Maps the two tables, tables serialized by older versions are read on
+     * the heap
      *
      * @return true if everything went well
      * @throws java.io.IOException
      */
-    @SuppressWarnings("unchecked")
     public boolean load() throws IOException {
-        this.pairs = new ArrayList<>(this.initialSize);
-        this.cady = new ArrayList<>(this.initialSize);
-                    
+        this.clear();
         if(!this.isStored()){
             return false;
         }
-        try (
-                InputStream file = new FileInputStream(this.pairsPath);
-                InputStream buffer = new BufferedInputStream(file);
-                ObjectInput input = new ObjectInputStream(buffer);
-            ) {
-
-            this.pairs = (ArrayList<Pair<Long,Long>>) input.readObject();
-            
-            
-
-        } catch (ClassNotFoundException ex) {
-            error("How could you let this happen?");
+        if (TableFile.isLegacy(this.pairsPath) || TableFile.isLegacy(this.cadyPath)) {
+            return loadLegacy();
+        }
+        MappedLongArray loadedPairs = TableFile.mapPairs(this.pairsPath);
+        MappedIntArray loadedCady = TableFile.mapInts(this.cadyPath);
+        if (loadedPairs.length() != 2 * loadedCady.length() || loadedCady.length() > Integer.MAX_VALUE) {
+            error("Table %s has %s pairs and %s values", this.pairsPath, loadedPairs.length() / 2, loadedCady.length());
             return false;
         }
-        try (
-                InputStream file = new FileInputStream(this.cadyPath);
-                InputStream buffer = new BufferedInputStream(file);
-                ObjectInput input = new ObjectInputStream(buffer);) {
-
-            int[] rec = (int[]) input.readObject();
-            for (int n : rec) {
-                this.cady.add(n);
-            }
+        this.pairs = null;
+        this.cady = null;
+        this.mappedPairs = loadedPairs;
+        this.mappedCady = loadedCady;
+        this.size = (int) loadedCady.length();
+        return true;
+    }
 
-        } catch (ClassNotFoundException ex) {
-            error("How could you let this happen?");
+    /**
+     * Reads the tables serialized by older versions on the heap, a table in
+     * the binary format is copied as well
+     */
+    @SuppressWarnings("unchecked")
+    private boolean loadLegacy() throws IOException {
+        LongBuffer loadedPairs;
+        IntBuffer loadedCady;
+        if (TableFile.isLegacy(this.pairsPath)) {
+            List<Pair<Long, Long>> legacy = (List<Pair<Long, Long>>) TableFile.readLegacy(this.pairsPath);
+            loadedPairs = LongBuffer.allocate(legacy.size() * 2);
+            for (Pair<Long, Long> p : legacy) {
+                loadedPairs.put(p.getFirst());
+                loadedPairs.put(p.getSecond());
+            }
+            loadedPairs.clear();
+        } else {
+            MappedLongArray mapped = TableFile.mapPairs(this.pairsPath);
+            loadedPairs = LongBuffer.allocate((int) mapped.length());
+            for (int i = 0; i < loadedPairs.capacity(); i++) {
+                loadedPairs.put(i, mapped.get(i));
+            }
+        }
+        if (TableFile.isLegacy(this.cadyPath)) {
+            loadedCady = IntBuffer.wrap((int[]) TableFile.readLegacy(this.cadyPath));
+        } else {
+            MappedIntArray mapped = TableFile.mapInts(this.cadyPath);
+            loadedCady = IntBuffer.allocate((int) mapped.length());
+            for (int i = 0; i < loadedCady.capacity(); i++) {
+                loadedCady.put(i, mapped.get(i));
+            }
+        }
+        if (loadedPairs.capacity() != 2 * loadedCady.capacity()) {
+            error("Table %s has %s pairs and %s values", this.pairsPath, loadedPairs.capacity() / 2, loadedCady.capacity());
             return false;
         }
-
+        this.pairs = loadedPairs;
+        this.cady = loadedCady;
+        this.size = loadedCady.capacity();
         return true;
     }
 
+    /**
+     * Copies a mapped table on the heap, so that it can be extended
+     */
+    private void unmap() {
+        if (mappedPairs == null) {
+            return;
+        }
+        LongBuffer heapPairs = LongBuffer.allocate(Math.max(1, size) * 2);
+        IntBuffer heapCady = IntBuffer.allocate(Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            heapPairs.put(2 * i, firstAt(i));
+            heapPairs.put(2 * i + 1, secondAt(i));
+            heapCady.put(i, valueAt(i));
+        }
+        this.pairs = heapPairs;
+        this.cady = heapCady;
+        this.mappedPairs = null;
+        this.mappedCady = null;
+    }
+
+    /**
+     * Converts the tables serialized by older versions to binary tables
+     *
+     * @return true if a file has been converted
+     * @throws IOException
+     */
+    public boolean convert() throws IOException {
+        if (!this.isStored()) {
+            return false;
+        }
+        boolean converted = TableFile.convert(this.pairsPath);
+        return TableFile.convert(this.cadyPath) || converted;
+    }
+
     @Override
     public Iterator<Pair<Pair<Long, Long>, Integer>> iterator() {
-        return new PairCardinalityIterator(pairs.iterator(), cady.iterator());
+        return new Iterator<Pair<Pair<Long, Long>, Integer>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Pair<Pair<Long, Long>, Integer> next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                Pair<Pair<Long, Long>, Integer> p = new Pair<>(new Pair<>(firstAt(next), secondAt(next)), valueAt(next));
+                next++;
+                return p;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a cursor over the table, before the first element
+     */
+    public Cursor cursor() {
+        return new Cursor();
     }
 
     
-    private class PairCardinalityIterator implements Iterator<Pair<Pair<Long, Long>, Integer>> {
+    /**
+     * Scans the table without allocating pairs
+     */
+    public final class Cursor {
 
-        private final Iterator<Pair<Long, Long>> pairs;
-        private final Iterator<Integer> cadys;
+        private int pos = -1;
 
-        public PairCardinalityIterator(Iterator<Pair<Long, Long>> nodes, Iterator<Integer> cadys) {
-            this.pairs = nodes;
-            this.cadys = cadys;
+        private Cursor() {
         }
 
-        @Override
-        public boolean hasNext() {
-            if (pairs.hasNext() ^ cadys.hasNext()) {
-                throw new IllegalStateException("Nodes iterator and cardinality iterator differ in status");
-            }
-            return pairs.hasNext();
+        /**
+         *
+         * @return false if there are no more elements
+         */
+        public boolean moveNext() {
+            return ++pos < size;
+        }
+
+        public long first() {
+            return firstAt(pos);
         }
 
-        @Override
-        public Pair<Pair<Long, Long>, Integer> next() {
-            return new Pair<>(this.pairs.next(), this.cadys.next());
+        public long second() {
+            return secondAt(pos);
         }
 
+        public int value() {
+            return valueAt(pos);
+        }
     }
 
 }
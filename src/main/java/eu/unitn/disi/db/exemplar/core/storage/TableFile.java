@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.core.storage;
+
+import eu.unitn.disi.db.mutilities.Pair;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Binary little-endian file holding a single array of the tables stored by
+ * {@link StorableTable} and {@link StorableTriple}.
+ *
+ * The file starts with a header [magic, version, type, count] of longs,
+ * followed by the elements. It is written with a {@link BinaryFile.Writer},
+ * so saving over a table that is mapped replaces the file instead of
+ * truncating it under the mapping. It is memory mapped in chunks when read,
+ * through a {@link MappedLongArray} or a {@link MappedIntArray}, so a file can
+ * exceed 2GB. Files written by older versions with an ObjectOutputStream are
+ * recognized by the serialization magic and can still be read, or converted
+ * once with {@link #convert(String)}.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public final class TableFile {
+
+    public static final long MAGIC = 0x4558515441424c45L; // "EXQTABLE"
+    public static final long VERSION = 1;
+
+    public static final int LONGS = 1;
+    public static final int INTS = 2;
+    /**
+     * Pairs of longs, stored as consecutive longs
+     */
+    public static final int LONG_PAIRS = 3;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    private TableFile() {
+    }
+
+    /**
+     *
+     * @param path
+     * @return true if the file has been written with an ObjectOutputStream
+     * @throws IOException
+     */
+    public static boolean isLegacy(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.available() >= 2 && in.readUnsignedShort() == SERIALIZATION_MAGIC;
+        }
+    }
+
+    /**
+     * Checks the header and the size of a table
+     *
+     * @return the number of elements in the table
+     */
+    private static long count(FileChannel channel, String path, int type) throws IOException {
+        MappedLongArray header = BinaryFile.readHeader(channel, path, "table", MAGIC, VERSION, HEADER_SIZE);
+        if (header.get(2) != type) {
+            throw new IOException("Table " + path + " has type " + header.get(2) + " instead of " + type);
+        }
+        long count = header.get(3);
+        long width = type == INTS ? Integer.BYTES : type == LONG_PAIRS ? 2 * Long.BYTES : Long.BYTES;
+        if (HEADER_SIZE * Long.BYTES + count * width != channel.size()) {
+            throw new IOException("Table " + path + " is corrupt");
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param path a table of {@link #LONGS}
+     * @return the mapped longs
+     * @throws IOException
+     */
+    public static MappedLongArray mapLongs(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            return new MappedLongArray(channel, HEADER_SIZE * Long.BYTES, count(channel, path, LONGS));
+        }
+    }
+
+    /**
+     *
+     * @param path a table of {@link #INTS}
+     * @return the mapped ints
+     * @throws IOException
+     */
+    public static MappedIntArray mapInts(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            return new MappedIntArray(channel, HEADER_SIZE * Long.BYTES, count(channel, path, INTS));
+        }
+    }
+
+    /**
+     *
+     * @param path a table of {@link #LONG_PAIRS}
+     * @return the mapped pairs, the first element of pair i is at 2i and the
+     * second at 2i+1
+     * @throws IOException
+     */
+    public static MappedLongArray mapPairs(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            return new MappedLongArray(channel, HEADER_SIZE * Long.BYTES, 2 * count(channel, path, LONG_PAIRS));
+        }
+    }
+
+    /**
+     *
+     * @param path
+     * @return the object in a legacy file
+     * @throws IOException
+     */
+    public static Object readLegacy(String path) throws IOException {
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            return input.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Cannot deserialize table " + path, ex);
+        }
+    }
+
+    /**
+     *
+     * @param path output file
+     * @param values the first count values are written, by absolute index
+     * @param count
+     * @throws IOException
+     */
+    public static void writeLongs(String path, LongBuffer values, int count) throws IOException {
+        try (BinaryFile.Writer out = new BinaryFile.Writer(path)) {
+            out.putHeader(MAGIC, VERSION, LONGS, count);
+            for (int i = 0; i < count; i++) {
+                out.putLong(values.get(i));
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     *
+     * @param path output file
+     * @param values the first count values are written, by absolute index
+     * @param count
+     * @throws IOException
+     */
+    public static void writeInts(String path, IntBuffer values, int count) throws IOException {
+        try (BinaryFile.Writer out = new BinaryFile.Writer(path)) {
+            out.putHeader(MAGIC, VERSION, INTS, count);
+            for (int i = 0; i < count; i++) {
+                out.putInt(values.get(i));
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     *
+     * @param path output file
+     * @param values the pairs, as consecutive longs from index 0
+     * @param count number of pairs to write
+     * @throws IOException
+     */
+    public static void writePairs(String path, LongBuffer values, int count) throws IOException {
+        try (BinaryFile.Writer out = new BinaryFile.Writer(path)) {
+            out.putHeader(MAGIC, VERSION, LONG_PAIRS, count);
+            for (int i = 0; i < 2 * count; i++) {
+                out.putLong(values.get(i));
+            }
+            out.commit();
+        }
+    }
+
+    /**
+     * Makes room for the given number of elements, copying the first size
+     * elements in a new buffer if the buffer is full
+     */
+    static LongBuffer ensureCapacity(LongBuffer buffer, int size, int needed) {
+        if (buffer.capacity() >= needed) {
+            return buffer;
+        }
+        LongBuffer grown = LongBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        for (int i = 0; i < size; i++) {
+            grown.put(i, buffer.get(i));
+        }
+        return grown;
+    }
+
+    static IntBuffer ensureCapacity(IntBuffer buffer, int size, int needed) {
+        if (buffer.capacity() >= needed) {
+            return buffer;
+        }
+        IntBuffer grown = IntBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        for (int i = 0; i < size; i++) {
+            grown.put(i, buffer.get(i));
+        }
+        return grown;
+    }
+
+    /**
+     * Rewrites a legacy file in the binary format, replacing it
+     *
+     * @param path
+     * @return false if the file was already binary
+     * @throws IOException if the file does not contain a long[], an int[] or
+     * a list of pairs of longs
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean convert(String path) throws IOException {
+        if (!isLegacy(path)) {
+            return false;
+        }
+        Object content = readLegacy(path);
+        if (content instanceof long[]) {
+            long[] values = (long[]) content;
+            writeLongs(path, LongBuffer.wrap(values), values.length);
+        } else if (content instanceof int[]) {
+            int[] values = (int[]) content;
+            writeInts(path, IntBuffer.wrap(values), values.length);
+        } else if (content instanceof List) {
+            for (Object o : (List<?>) content) {
+                if (!(o instanceof Pair) || !(((Pair<?, ?>) o).getFirst() instanceof Long) || !(((Pair<?, ?>) o).getSecond() instanceof Long)) {
+                    throw new IOException("Table " + path + " contains a list of " + (o == null ? null : o.getClass().getName()) + " instead of pairs of longs");
+                }
+            }
+            List<Pair<Long, Long>> pairs = (List<Pair<Long, Long>>) content;
+            long[] values = new long[pairs.size() * 2];
+            int i = 0;
+            for (Pair<Long, Long> p : pairs) {
+                values[i++] = p.getFirst();
+                values[i++] = p.getSecond();
+            }
+            writePairs(path, LongBuffer.wrap(values), pairs.size());
+        } else {
+            throw new IOException("Table " + path + " contains an unknown " + content.getClass().getName());
+        }
+        return true;
+    }
+}
@@ -18,11 +18,17 @@
 package eu.unitn.disi.db.exemplar.isomorphism.algorithms;
 
 import eu.unitn.disi.db.exemplar.isomorphism.algorithms.steps.GraphIsomorphismRecursiveStep;
+import eu.unitn.disi.db.exemplar.isomorphism.algorithms.steps.IsomorphismForkJoinSearch;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmInput;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.core.QueryPlan;
+import eu.unitn.disi.db.exemplar.core.algorithms.QueryPlanner;
 import eu.unitn.disi.db.mutilities.StopWatch;
 import eu.unitn.disi.db.exemplar.core.algorithms.ExemplarQuerySearch;
 import eu.unitn.disi.db.exemplar.core.algorithms.steps.GraphSearchStep;
+import eu.unitn.disi.db.exemplar.core.storage.CSRAdjacency;
+import eu.unitn.disi.db.exemplar.core.storage.LabeledAdjacency;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.ThreadUtilities;
 import java.util.ArrayList;
@@ -31,10 +37,13 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -48,7 +57,52 @@ import java.util.concurrent.TimeoutException;
  */
 public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
 
-    
+    /**
+     * Build a CSR snapshot of the graph, with the edges of each node sorted by
+     * label, to look up the candidate edges with a binary search
+     */
+    @AlgorithmInput
+    private boolean csrAdjacency = false;
+
+    /**
+     * Adjacency indexed by label of the graph, built or taken from the graph
+     * when null
+     */
+    @AlgorithmInput
+    private LabeledAdjacency adjacency = null;
+
+    /**
+     * Run every root as a task of a work stealing pool instead of splitting the
+     * roots in one fixed chunk per thread
+     */
+    @AlgorithmInput
+    private boolean workStealing = false;
+
+    /**
+     * Work stealing pool shared by the searches of the command, null to
+     * create one for this search
+     */
+    @AlgorithmInput
+    private ForkJoinPool pool = null;
+
+    /**
+     * Match the edges in the order chosen by the {@link QueryPlanner} on the
+     * label statistics, or on the label frequencies without statistics,
+     * instead of the recursive expansion
+     */
+    @AlgorithmInput
+    private boolean queryPlanning = false;
+
+    @AlgorithmInput
+    private Map<Long, Integer> labelFrequencies = null;
+
+    /**
+     * With work stealing, split also the roots with at least this number of
+     * candidate edges, 0 to never split a root
+     */
+    @AlgorithmInput
+    private int branchDegree = 0;
+
     /**
      * Execute the algorithm
      *
@@ -56,7 +110,15 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
      */
     @Override
     public void algorithm() throws AlgorithmExecutionException {
-        Long startingNode = this.getRootNode(true);
+        QueryPlan plan = null;
+        Long startingNode;
+        if (queryPlanning) {
+            plan = this.labelStatistics != null ? QueryPlanner.plan(this.getQuery(), this.labelStatistics) : QueryPlanner.plan(this.getQuery(), this.labelFrequencies);
+            debug("Query plan %s", plan);
+            startingNode = plan.getRoot();
+        } else {
+            startingNode = this.getRootNode(true);
+        }
        
         
         //debug("Starting node is %s",startingNode );
@@ -82,6 +144,16 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
         Multigraph graph = this.getGraph();
         Multigraph query = this.getQuery();
 
+        LabeledAdjacency labeledAdjacency = adjacency;
+        if (labeledAdjacency == null && graph instanceof LabeledAdjacency) {
+            labeledAdjacency = (LabeledAdjacency) graph;
+        } else if (labeledAdjacency == null && csrAdjacency) {
+            StopWatch csrWatch = new StopWatch();
+            csrWatch.start();
+            labeledAdjacency = new CSRAdjacency(graph);
+            debug("CSR adjacency of %s edges built in %sms", graph.numberOfEdges(), csrWatch.getElapsedTimeMillis());
+        }
+
         int numGraphNodes;
         Iterator<Long> graphNodesIterator;
         
@@ -109,6 +181,11 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
         }
         assert graphNodesIterator != null :  "GraphNodes to search are not allowed to be NULL";
 
+        if (workStealing) {
+            forkJoinSearch(startingNode, plan, query, graph, labeledAdjacency, graphNodesIterator, hasWhiteList);
+            watch.stop();
+            return;
+        }
         
 
         //Start in parallel
@@ -142,6 +219,9 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
         for (List<Long> chunk : nodesChunks) {
             threadNum++;
             GraphIsomorphismRecursiveStep graphI = new GraphIsomorphismRecursiveStep(threadNum, chunk.iterator(), startingNode, query, graph, this.getComputationLimit(), this.getSkipSave(), whiteList, this.memoryLimit);
+            graphI.setAdjacency(labeledAdjacency);
+            graphI.setAnswerSink(answerSink);
+            graphI.setQueryPlan(plan);
             isoSteps.add(graphI);
             lists.add(pool.submit(graphI));
         }
@@ -164,15 +244,7 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
                     if (tmp != null) {
                         //debug("Graph size: %d", smallGraph.vertexSet().size());
                         //                  //((List<RelatedQuery>)this.getRelatedQueries()).addAll(tmp);
-                        if(!storeOnlyGraphs){
-                            List<ExemplarAnswer> rr = this.getExemplarAnswers();
-                            rr.addAll(tmp);
-                        } else {                        
-                            for (ExemplarAnswer ans : tmp) {
-                                this.exemplarGraphs.add(ans.buildMatchedGraph());                            
-                            }
-                            tmp.clear();
-                        }
+                        addAnswers(tmp);
                     }
                 } catch (TimeoutException | InterruptedException ex) {
                     list.cancel(true);
@@ -196,6 +268,64 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
         //debug("Computed Isomorphism in %dms", watch.getElapsedTimeMillis());
     }
 
+    /**
+     * Searches from every root in the shared fork/join pool, or in one that
+     * lives as long as the search
+     */
+    private void forkJoinSearch(Long startingNode, QueryPlan plan, Multigraph query, Multigraph graph, LabeledAdjacency labeledAdjacency, Iterator<Long> graphNodesIterator, boolean hasWhiteList) {
+        List<Long> roots = new ArrayList<>();
+        while (graphNodesIterator.hasNext()) {
+            Long node = graphNodesIterator.next();
+            if (!strictPruning || !hasWhiteList || whiteList.contains(node)) {
+                roots.add(node);
+            }
+        }
+
+        GraphIsomorphismRecursiveStep step = new GraphIsomorphismRecursiveStep(0, Collections.<Long>emptyIterator(), startingNode, query, graph, this.getComputationLimit(), this.getSkipSave(), whiteList, this.memoryLimit);
+        step.setAdjacency(labeledAdjacency);
+        step.setQueryPlan(plan);
+        IsomorphismForkJoinSearch search = new IsomorphismForkJoinSearch(step, roots, branchDegree, this.getComputationLimit(), this.getSkipSave());
+        search.setAnswerSink(answerSink);
+
+        ForkJoinPool searchPool = this.pool != null ? this.pool : new ForkJoinPool(this.getNumThreads());
+        ForkJoinTask<Void> task = searchPool.submit(search.newTask());
+        try {
+            if (this.timeLimit > 0) {
+                task.get(this.timeLimit, TimeUnit.SECONDS);
+            } else {
+                task.get();
+            }
+        } catch (TimeoutException | InterruptedException ex) {
+            this.setInterrupted();
+            error("Stopping the search, message: %s", ex.getMessage());
+        } catch (ExecutionException ex) {
+            error("Isomorphic search failed.", ex);
+        } finally {
+            // The workers may still be running, wait for them before merging
+            step.stop();
+            task.quietlyJoin();
+            if (searchPool != this.pool) {
+                searchPool.shutdown();
+            }
+        }
+        addAnswers(search.getAnswers());
+        if (step.isMemoryExhausted()) {
+            setMemoryExhausted(true);
+        }
+    }
+
+    private void addAnswers(Collection<ExemplarAnswer> tmp) {
+        if(!storeOnlyGraphs){
+            List<ExemplarAnswer> rr = this.getExemplarAnswers();
+            rr.addAll(tmp);
+        } else {                        
+            for (ExemplarAnswer ans : tmp) {
+                this.exemplarGraphs.add(ans.buildMatchedGraph());                            
+            }
+            tmp.clear();
+        }
+    }
+
     
 
     @Override
@@ -206,6 +336,67 @@ public class IsomorphicQuerySearch extends ExemplarQuerySearch<ExemplarAnswer> {
         return super.getExemplarAnswers(); 
     }
 
+    /**
+     *
+     * @param csrAdjacency true to search on a CSR snapshot of the graph
+     */
+    public void setCsrAdjacency(boolean csrAdjacency) {
+        this.csrAdjacency = csrAdjacency;
+    }
+
+    /**
+     *
+     * @param adjacency a prebuilt adjacency of the graph, shared among searches
+     */
+    public void setAdjacency(LabeledAdjacency adjacency) {
+        this.adjacency = adjacency;
+    }
+
+    /**
+     *
+     * @param workStealing true to run every root as a task of a work
+     * stealing pool
+     */
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    /**
+     *
+     * @param pool the work stealing pool shared among searches, owned and
+     * shut down by the caller, null to create one for each search
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     *
+     * @param branchDegree with work stealing, split the roots with at least
+     * this number of candidate edges, 0 to never split a root
+     */
+    public void setBranchDegree(int branchDegree) {
+        this.branchDegree = branchDegree;
+    }
+
+    /**
+     *
+     * @param queryPlanning true to match the edges in the order of a query
+     * plan
+     */
+    public void setQueryPlanning(boolean queryPlanning) {
+        this.queryPlanning = queryPlanning;
+    }
+
+    /**
+     *
+     * @param labelFrequencies number of edges for each label, used to plan
+     * the query when no label statistics are set
+     */
+    public void setLabelFrequencies(Map<Long, Integer> labelFrequencies) {
+        this.labelFrequencies = labelFrequencies;
+    }
+
     
     
     
@@ -16,8 +16,11 @@
 package eu.unitn.disi.db.exemplar.isomorphism.algorithms.steps;
 
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.core.QueryPlan;
+import eu.unitn.disi.db.exemplar.isomorphism.core.CompactIsomorphicAnswer;
 import eu.unitn.disi.db.exemplar.isomorphism.core.IsomorphicAnswer;
 import eu.unitn.disi.db.exemplar.core.algorithms.steps.GraphSearchStep;
+import eu.unitn.disi.db.exemplar.core.storage.LabeledAdjacency;
 
 import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
@@ -25,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -36,22 +40,62 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
 
 
     private final Long startingQueryNode;
-    
+    // Small queries use compact answers, cheaper to clone
+    private final CompactIsomorphicAnswer.QuerySlots querySlots;
+    private LabeledAdjacency adjacency = null;
+    private QueryPlan plan = null;
+    private volatile boolean stopped = false;
     
 
     public GraphIsomorphismRecursiveStep(int threadNumber, Iterator<Long> kbConcepts, Long startingQueryNode, Multigraph query, Multigraph targetSubgraph, int limitComputation, boolean skipSave, Set<Long> whiteList, int memoryLimit) {
         super(threadNumber,kbConcepts,query, targetSubgraph, limitComputation, skipSave, whiteList, memoryLimit);
         this.startingQueryNode = startingQueryNode;
-                
+        this.querySlots = CompactIsomorphicAnswer.QuerySlots.fits(query) ? new CompactIsomorphicAnswer.QuerySlots(query) : null;
+    }
+
+    /**
+     * Match the query edges in the order of the plan instead of expanding
+     * them recursively node by node
+     *
+     * @param plan a plan rooted in the starting query node, null to expand
+     * recursively
+     */
+    public void setQueryPlan(QueryPlan plan) {
+        if (plan != null && !plan.getRoot().equals(startingQueryNode)) {
+            throw new IllegalArgumentException("The plan is rooted in " + plan.getRoot() + " instead of " + startingQueryNode);
+        }
+        this.plan = plan;
+    }
+
+    /**
+     *
+     * @param node
+     * @return an answer mapping only the starting query node to the node
+     */
+    private IsomorphicAnswer newAnswer(Long node) {
+        IsomorphicAnswer relatedQuery = querySlots != null ? new CompactIsomorphicAnswer(querySlots) : new IsomorphicAnswer(query);
+        //Map the first node
+        relatedQuery.map(startingQueryNode, node);
+        return relatedQuery;
+    }
+
+    /**
+     * Use an adjacency indexed by label to find the candidate edges instead of
+     * scanning all the edges of each graph node
+     *
+     * @param adjacency the adjacency of the target graph, null to scan the graph
+     */
+    public void setAdjacency(LabeledAdjacency adjacency) {
+        this.adjacency = adjacency;
     }
 
     @Override
     public List<ExemplarAnswer> call() throws Exception {
-        IsomorphicAnswer relatedQuery;
         List<IsomorphicAnswer> relatedQueriesPartial = new ArrayList<>(150);
         Set<IsomorphicAnswer> relatedQueries = new HashSet<>(4/3*EXPECTED_RESULT_SIZE);
 
         boolean warned = false;
+        long streamed = 0;
         //watch.start();
         while (graphNodes.hasNext()) {
             Long node = graphNodes.next();
@@ -59,15 +103,22 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
                 continue;
             }
             try {
-                relatedQuery = new IsomorphicAnswer(query);
-                //Map the first node
-                relatedQuery.map(startingQueryNode, node);
-
-                relatedQueriesPartial = createQueries(query, startingQueryNode, node, relatedQuery);
+                relatedQueriesPartial = searchFrom(node);
                 if (relatedQueriesPartial != null) {
                     if(skipSave){
                         continue;
                     }
+                    if (answerSink != null) {
+                        for (IsomorphicAnswer answer : relatedQueriesPartial) {
+                            answerSink.accept(answer);
+                        }
+                        streamed += relatedQueriesPartial.size();
+                        if (this.limitComputation > 0 && streamed > limitComputation) {
+                            warn("Computation interrupted after " + streamed + " streamed isomorphic results");
+                            break;
+                        }
+                        continue;
+                    }
                     if(!warned){
                         relatedQueries.addAll(relatedQueriesPartial);
                     }
@@ -94,6 +145,130 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
         return new ArrayList<>(relatedQueries);
     }
 
+    /**
+     * Searches the answers rooted in a graph node
+     *
+     * @param node the graph node mapped to the starting query node
+     * @return the answers, null if there are none
+     * @throws InterruptedException if the search is stopped or the memory is exhausted
+     */
+    public List<IsomorphicAnswer> searchFrom(Long node) throws InterruptedException {
+        if (!graph.containsVertex(node)) {
+            return null;
+        }
+        if (plan != null) {
+            List<IsomorphicAnswer> relatedQueries = new ArrayList<>();
+            matchPlan(0, newAnswer(node), relatedQueries, Runtime.getRuntime());
+            return distinct(relatedQueries);
+        }
+        return distinct(createQueries(query, startingQueryNode, node, newAnswer(node)));
+    }
+
+    /**
+     * Drops the answers found twice. Equal answers have the same mapping, so
+     * they are found from the same root, and the same branch of the root:
+     * the answers of the roots, streamed as they come, need no other check.
+     *
+     * @return the distinct answers, null if there are none
+     */
+    private static List<IsomorphicAnswer> distinct(List<IsomorphicAnswer> answers) {
+        if (answers == null || answers.isEmpty()) {
+            return null;
+        }
+        if (answers.size() == 1) {
+            return answers;
+        }
+        Set<IsomorphicAnswer> unique = new LinkedHashSet<>(answers);
+        return unique.size() == answers.size() ? answers : new ArrayList<>(unique);
+    }
+
+    /**
+     *
+     * @return the query edge of the starting node used to split the search
+     * from a root in branches, null if the starting node has no edges
+     */
+    public Edge getBranchingEdge() {
+        if (plan != null) {
+            return plan.getSteps().isEmpty() ? null : plan.getSteps().get(0).getQueryEdge();
+        }
+        Collection<Edge> edges = query.outgoingEdgesOf(startingQueryNode);
+        if (edges != null && !edges.isEmpty()) {
+            return edges.iterator().next();
+        }
+        edges = query.incomingEdgesOf(startingQueryNode);
+        if (edges != null && !edges.isEmpty()) {
+            return edges.iterator().next();
+        }
+        return null;
+    }
+
+    /**
+     * The candidates for the branching edge at a root, each one is the first
+     * choice of an independent branch of {@link #searchFrom(Long)}
+     *
+     * @param node the graph node mapped to the starting query node
+     * @param queryEdge the branching edge
+     * @return the graph edges with the label and direction of the query edge
+     */
+    public Collection<Edge> branchesOf(Long node, Edge queryEdge) {
+        if (!graph.containsVertex(node)) {
+            return new ArrayList<>();
+        }
+        boolean isIncoming = queryEdge.getDestination().equals(startingQueryNode);
+        if (adjacency != null) {
+            return isIncoming ? adjacency.incomingEdgesOf(node, queryEdge.getLabel()) : adjacency.outgoingEdgesOf(node, queryEdge.getLabel());
+        }
+        Collection<Edge> graphEdges = isIncoming ? graph.incomingEdgesOf(node) : graph.outgoingEdgesOf(node);
+        return graphEdges == null ? new ArrayList<>() : findEdges(queryEdge.getLabel(), graphEdges);
+    }
+
+    /**
+     * Searches the answers rooted in a graph node that map the branching edge
+     * to the given graph edge, the union over all the branches is the result
+     * of {@link #searchFrom(Long)}
+     *
+     * @param node the graph node mapped to the starting query node
+     * @param queryEdge the branching edge
+     * @param graphEdge one of the {@link #branchesOf(Long, Edge)}
+     * @return the answers, null if there are none
+     * @throws InterruptedException if the search is stopped or the memory is exhausted
+     */
+    public List<IsomorphicAnswer> searchBranch(Long node, Edge queryEdge, Edge graphEdge) throws InterruptedException {
+        if (!graph.containsVertex(node)) {
+            return null;
+        }
+        IsomorphicAnswer relatedQuery = newAnswer(node);
+        if (plan != null) {
+            List<IsomorphicAnswer> relatedQueries = new ArrayList<>();
+            extendPlan(0, relatedQuery, graphEdge, relatedQueries, Runtime.getRuntime());
+            return distinct(relatedQueries);
+        }
+        boolean isIncoming = queryEdge.getDestination().equals(startingQueryNode);
+        List<IsomorphicAnswer> partials = new ArrayList<>();
+        extendAnswer(query, queryEdge, graphEdge, isIncoming, relatedQuery, partials, Runtime.getRuntime());
+
+        List<IsomorphicAnswer> relatedQueries = new ArrayList<>();
+        for (IsomorphicAnswer partial : partials) {
+            // The remaining edges of the root, the branching one is already mapped
+            List<IsomorphicAnswer> completed = createQueries(query, startingQueryNode, node, partial);
+            if (completed != null) {
+                relatedQueries.addAll(completed);
+            }
+        }
+        return distinct(relatedQueries);
+    }
+
+    /**
+     * Stops the search, also from other threads, as an interruption does
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
     /**
      * Given a query, a starting node from the query, and a node from the
      * knowledgeBase , tries to build up a related query
@@ -112,7 +287,7 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
         /////////////////////////
         Runtime runtime = Runtime.getRuntime();
         List<IsomorphicAnswer> relatedQueries = new ArrayList<>();
-        if (Thread.currentThread().isInterrupted()) {
+        if ((stopped || Thread.currentThread().isInterrupted())) {
             warn("The thread has received a killing signal");
             throw new InterruptedException("The computation has been interrupted!");
         }
@@ -132,21 +307,31 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
         // The graphEdges entering the query node passed
         Collection<Edge> queryEdgesIn = query.incomingEdgesOf(queryNode);
 
-        // The graphEdges in the KB exiting from the mapped node passed
-        Collection<Edge> graphEdgesOut = graph.outgoingEdgesOf(graphNode);
-        // The graphEdges in the KB entering the mapped node passed
-        Collection<Edge> graphEdgesIn = graph.incomingEdgesOf(graphNode);
+        // The graphEdges in the KB exiting from and entering the mapped node passed,
+        // with an adjacency they are looked up by label instead
+        Collection<Edge> graphEdgesOut = null;
+        Collection<Edge> graphEdgesIn = null;
+        int graphOutDegree, graphInDegree;
+        if (adjacency != null) {
+            graphOutDegree = adjacency.outDegreeOf(graphNode);
+            graphInDegree = adjacency.inDegreeOf(graphNode);
+        } else {
+            graphEdgesOut = graph.outgoingEdgesOf(graphNode);
+            graphEdgesIn = graph.incomingEdgesOf(graphNode);
+            graphEdgesIn = graphEdgesIn == null ? new HashSet<>() : graphEdgesIn;
+            graphEdgesOut = graphEdgesOut == null ? new HashSet<>() : graphEdgesOut;
+            graphOutDegree = graphEdgesOut.size();
+            graphInDegree = graphEdgesIn.size();
+        }
 
         // Null handling
         queryEdgesIn = queryEdgesIn == null ? new HashSet<>() : queryEdgesIn;
         queryEdgesOut = queryEdgesOut == null ? new HashSet<>() : queryEdgesOut;
-        graphEdgesIn = graphEdgesIn == null ? new HashSet<>() : graphEdgesIn;
-        graphEdgesOut = graphEdgesOut == null ? new HashSet<>() : graphEdgesOut;
 
         //debug("TEst %d map to  %d", queryNode, graphNode);
 
         //Optimization: if the queryEdges are more than the kbEdges, we are done, not isomorphic!
-        if (queryEdgesIn.size() > graphEdgesIn.size() || queryEdgesOut.size() > graphEdgesOut.size()) {
+        if (queryEdgesIn.size() > graphInDegree || queryEdgesOut.size() > graphOutDegree) {
             return null;
         }
 
@@ -197,9 +382,11 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
             //is it isIncoming or outgoing ?
             boolean isIncoming = queryEdge.getDestination().equals(queryNode);
 
-            List<Edge> graphEdges;
+            Collection<Edge> graphEdges;
             // Look for graphEdges with the same label and same direction as the one from the query
-            if (isIncoming) {
+            if (adjacency != null) {
+                graphEdges = isIncoming ? adjacency.incomingEdgesOf(graphNode, label) : adjacency.outgoingEdgesOf(graphNode, label);
+            } else if (isIncoming) {
                 graphEdges = findEdges(label, graphEdgesIn);
             } else {
                 graphEdges = findEdges(label, graphEdgesOut);
@@ -223,103 +410,7 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
                             //it means that this query didn't found his match in this edge
                             continue;
                         }
-                        //Otherwise this edge can be mapped to the query edge if all goes well
-                        IsomorphicAnswer newRelatedQuery = tempRelatedQuery.getClone();
-
-                        //check nodes similarity
-                        //double nodeSimilarity = 0;
-                        //if (isIncoming) {
-                        //    nodeSimilarity = RelatedQuerySearch.conceptSimilarity(queryEdge.getSource(), graphEdge.getSource());
-                        //} else {
-                        //    nodeSimilarity = RelatedQuerySearch.conceptSimilarity(queryEdge.getDestination(), graphEdge.getDestination());
-                        //}
-                        //If the found edge peudo-destination is similar to the query edge pseudo-destination
-                        //if (nodeSimilarity > RelatedQuerySearch.MIN_SIMILARITY) {
-                        //The destination if outgoing the source if isIncoming
-                        Long queryNextNode;
-                        Long graphNextNode;
-                        if (isIncoming) {
-                            queryNextNode = queryEdge.getSource();
-                            graphNextNode = graphEdge.getSource();
-                        } else {
-                            queryNextNode = queryEdge.getDestination();
-                            graphNextNode = graphEdge.getDestination();
-                        }
-
-                        //Is this node coeherent with the structure?
-                        if (edgeMatch(queryEdge, graphEdge, newRelatedQuery)) {
-                            
-                            if (Thread.currentThread().isInterrupted()) {
-                                warn("The thread has received a killing signal");
-                                throw new InterruptedException("The computation has been interrupted!");
-                            }
-                            if (this.memoryLimit > 0 && (runtime.freeMemory()) < this.memoryLimit) {
-                                warn("Memory limit reached, memory used is: %.2fMb, free memory: %.2fMb. Returning the answers computed so far", (runtime.totalMemory() - runtime.freeMemory())/(1024*1024.), runtime.freeMemory()/(1024*1024.));
-                                this.memoryExhausted = true; 
-                                throw new InterruptedException("The memory is exhausted");
-                            }
-
-                            
-                            //That's a good edge!! Add it to this related query
-                            newRelatedQuery.map(queryEdge, graphEdge);
-
-                            //Map also the node
-                            newRelatedQuery.map(queryNextNode, graphNextNode);
-
-                            //The query node that we are going to map
-                            //Does it have graphEdges that we don't have mapped?
-                            boolean needExpansion = false;
-                            Collection<Edge> pseudoOutgoingEdges = query.incomingEdgesOf(queryNextNode);
-                            if (pseudoOutgoingEdges.size() > 0) {
-                                for (Edge pseudoEdge : pseudoOutgoingEdges) {
-                                    needExpansion = !newRelatedQuery.hasMapped(pseudoEdge) && !pseudoEdge.equals(queryEdge);
-                                    if (needExpansion) {
-                                        break;
-                                    }
-                                }
-                            }
-
-                            pseudoOutgoingEdges = query.outgoingEdgesOf(queryNextNode);
-                            if (!needExpansion && pseudoOutgoingEdges.size() > 0) {
-                                for (Edge pseudoEdge : pseudoOutgoingEdges) {
-                                    needExpansion = !newRelatedQuery.hasMapped(pseudoEdge) && !pseudoEdge.equals(queryEdge);
-                                    if (needExpansion) {
-                                        break;
-                                    }
-                                }
-                            }
-
-                            //Lookout! We need to check the outgoing part, if we did not already
-                            if (needExpansion) {
-                                // Possible outgoing branches
-                                List<IsomorphicAnswer> tmpRelatedQueries;
-                                //Go find them!
-                                //log("Go find mapping for: " + queryNextNode + " // " + graphNextNode);
-                                tmpRelatedQueries = createQueries(query, queryNextNode, graphNextNode, newRelatedQuery);
-                                //Did we find any?
-                                if (tmpRelatedQueries != null) {
-                                    //Ok so we found some, they are all good to me
-                                    //More possible related queries
-                                    //They already contain the root
-                                    for (IsomorphicAnswer branch : tmpRelatedQueries) {
-                                        //All these related queries have found in this edge their match
-                                        newRelatedQueries.add(branch);
-                                    }
-                                }
-                                // else {
-                                // This query didn't find in this edge its match
-                                // continue;
-                                //}
-                            } else {
-                                //log("Complete query " + relatedQuery);
-                                //this related query has found in this edge is map
-                                //newRelatedQuery.map(queryNextNode, graphNextNode);
-                                newRelatedQueries.add(newRelatedQuery);
-                            }
-                        }
-                        //else {
-                        //info("Edge does not match  %s   -  for %s  : %d", graphEdge.getId(), FreebaseConstants.convertLongToMid(graphNode), graphNode);
-                        //}
+                        extendAnswer(query, queryEdge, graphEdge, isIncoming, tempRelatedQuery, newRelatedQueries, runtime);
                     }
                 }
             }
@@ -335,6 +426,177 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
         return relatedQueries.size() > 0 ? relatedQueries : null;
     }
 
+    /**
+     * Matches the steps of the plan from the given one, depth first
+     *
+     * @param i the step to match
+     * @param answer the answer matching the previous steps
+     * @param relatedQueries where the complete answers are added
+     * @param runtime
+     * @throws InterruptedException if the search is stopped or the memory is exhausted
+     */
+    private void matchPlan(int i, IsomorphicAnswer answer, List<IsomorphicAnswer> relatedQueries, Runtime runtime) throws InterruptedException {
+        if (i == plan.getSteps().size()) {
+            relatedQueries.add(answer);
+            return;
+        }
+        QueryPlan.Step step = plan.getSteps().get(i);
+        Long graphNode = answer.isomorphicMapOf(step.getBoundNode());
+        Long label = step.getQueryEdge().getLabel();
+        Collection<Edge> graphEdges;
+        if (adjacency != null) {
+            graphEdges = step.isIncoming() ? adjacency.incomingEdgesOf(graphNode, label) : adjacency.outgoingEdgesOf(graphNode, label);
+        } else {
+            graphEdges = step.isIncoming() ? graph.incomingEdgesOf(graphNode) : graph.outgoingEdgesOf(graphNode);
+            graphEdges = graphEdges == null ? new ArrayList<>() : findEdges(label, graphEdges);
+        }
+        for (Edge graphEdge : graphEdges) {
+            extendPlan(i, answer, graphEdge, relatedQueries, runtime);
+        }
+    }
+
+    /**
+     * Matches a step of the plan to a candidate graph edge in a clone of the
+     * answer and continues with the next steps
+     */
+    private void extendPlan(int i, IsomorphicAnswer answer, Edge graphEdge, List<IsomorphicAnswer> relatedQueries, Runtime runtime) throws InterruptedException {
+        QueryPlan.Step step = plan.getSteps().get(i);
+        Edge queryEdge = step.getQueryEdge();
+        if (step.isClosing()) {
+            // Both ends are matched, the candidate has to connect them
+            Long otherEnd = step.isIncoming() ? graphEdge.getSource() : graphEdge.getDestination();
+            if (!otherEnd.equals(answer.isomorphicMapOf(step.getNextNode()))) {
+                return;
+            }
+        }
+        if (!edgeMatch(queryEdge, graphEdge, answer)) {
+            return;
+        }
+        if (stopped || Thread.currentThread().isInterrupted()) {
+            warn("The thread has received a killing signal");
+            throw new InterruptedException("The computation has been interrupted!");
+        }
+        if (this.memoryLimit > 0 && (runtime.totalMemory() - runtime.freeMemory())/(1024*1024.) > this.memoryLimit) {
+            warn("Memory limit reached, memory used is: %.2fMb, free memory: %.2fMb. Returning the answers computed so far", (runtime.totalMemory() - runtime.freeMemory())/(1024*1024.), runtime.freeMemory()/(1024*1024.));
+            this.memoryExhausted = true;
+            throw new InterruptedException("The memory is exhausted");
+        }
+        IsomorphicAnswer next = answer.getClone();
+        next.map(queryEdge, graphEdge);
+        next.map(step.getNextNode(), step.isIncoming() ? graphEdge.getSource() : graphEdge.getDestination());
+        matchPlan(i + 1, next, relatedQueries, runtime);
+    }
+
+    /**
+     * Maps the query edge to the graph edge in a clone of the answer and, if
+     * the next query node has other edges to map, expands the clone from there
+     *
+     * @param query
+     * @param queryEdge the query edge to map
+     * @param graphEdge the candidate graph edge
+     * @param isIncoming whether the query edge enters the current query node
+     * @param tempRelatedQuery the answer to extend, it is not modified
+     * @param newRelatedQueries where the extended answers are added
+     * @param runtime
+     * @throws InterruptedException if the search is stopped or the memory is exhausted
+     */
+    private void extendAnswer(Multigraph query, Edge queryEdge, Edge graphEdge, boolean isIncoming, IsomorphicAnswer tempRelatedQuery, List<IsomorphicAnswer> newRelatedQueries, Runtime runtime) throws InterruptedException {
+        //Otherwise this edge can be mapped to the query edge if all goes well
+        IsomorphicAnswer newRelatedQuery = tempRelatedQuery.getClone();
+
+        //check nodes similarity
+        //double nodeSimilarity = 0;
+        //if (isIncoming) {
+        //    nodeSimilarity = RelatedQuerySearch.conceptSimilarity(queryEdge.getSource(), graphEdge.getSource());
+        //} else {
+        //    nodeSimilarity = RelatedQuerySearch.conceptSimilarity(queryEdge.getDestination(), graphEdge.getDestination());
+        //}
+        //If the found edge peudo-destination is similar to the query edge pseudo-destination
+        //if (nodeSimilarity > RelatedQuerySearch.MIN_SIMILARITY) {
+        //The destination if outgoing the source if isIncoming
+        Long queryNextNode;
+        Long graphNextNode;
+        if (isIncoming) {
+            queryNextNode = queryEdge.getSource();
+            graphNextNode = graphEdge.getSource();
+        } else {
+            queryNextNode = queryEdge.getDestination();
+            graphNextNode = graphEdge.getDestination();
+        }
+
+        //Is this node coeherent with the structure?
+        if (edgeMatch(queryEdge, graphEdge, newRelatedQuery)) {
+            
+            if ((stopped || Thread.currentThread().isInterrupted())) {
+                warn("The thread has received a killing signal");
+                throw new InterruptedException("The computation has been interrupted!");
+            }
+            if (this.memoryLimit > 0 && (runtime.freeMemory()) < this.memoryLimit) {
+                warn("Memory limit reached, memory used is: %.2fMb, free memory: %.2fMb. Returning the answers computed so far", (runtime.totalMemory() - runtime.freeMemory())/(1024*1024.), runtime.freeMemory()/(1024*1024.));
+                this.memoryExhausted = true; 
+                throw new InterruptedException("The memory is exhausted");
+            }
+
+            
+            //That's a good edge!! Add it to this related query
+            newRelatedQuery.map(queryEdge, graphEdge);
+
+            //Map also the node
+            newRelatedQuery.map(queryNextNode, graphNextNode);
+
+            //The query node that we are going to map
+            //Does it have graphEdges that we don't have mapped?
+            boolean needExpansion = false;
+            Collection<Edge> pseudoOutgoingEdges = query.incomingEdgesOf(queryNextNode);
+            if (pseudoOutgoingEdges.size() > 0) {
+                for (Edge pseudoEdge : pseudoOutgoingEdges) {
+                    needExpansion = !newRelatedQuery.hasMapped(pseudoEdge) && !pseudoEdge.equals(queryEdge);
+                    if (needExpansion) {
+                        break;
+                    }
+                }
+            }
+
+            pseudoOutgoingEdges = query.outgoingEdgesOf(queryNextNode);
+            if (!needExpansion && pseudoOutgoingEdges.size() > 0) {
+                for (Edge pseudoEdge : pseudoOutgoingEdges) {
+                    needExpansion = !newRelatedQuery.hasMapped(pseudoEdge) && !pseudoEdge.equals(queryEdge);
+                    if (needExpansion) {
+                        break;
+                    }
+                }
+            }
+
+            //Lookout! We need to check the outgoing part, if we did not already
+            if (needExpansion) {
+                // Possible outgoing branches
+                List<IsomorphicAnswer> tmpRelatedQueries;
+                //Go find them!
+                //log("Go find mapping for: " + queryNextNode + " // " + graphNextNode);
+                tmpRelatedQueries = createQueries(query, queryNextNode, graphNextNode, newRelatedQuery);
+                //Did we find any?
+                if (tmpRelatedQueries != null) {
+                    //Ok so we found some, they are all good to me
+                    //More possible related queries
+                    //They already contain the root
+                    for (IsomorphicAnswer branch : tmpRelatedQueries) {
+                        //All these related queries have found in this edge their match
+                        newRelatedQueries.add(branch);
+                    }
+                }
+                // else {
+                // This query didn't find in this edge its match
+                // continue;
+                //}
+            } else {
+                //log("Complete query " + relatedQuery);
+                //this related query has found in this edge is map
+                //newRelatedQuery.map(queryNextNode, graphNextNode);
+                newRelatedQueries.add(newRelatedQuery);
+            }
+        }
+    }
+
     /**
      *
      * @param queryEdge
@@ -357,6 +619,9 @@ public class GraphIsomorphismRecursiveStep extends GraphSearchStep<ExemplarAnswe
             if(whiteList != null && (!whiteList.contains(graphEdge.getSource()) ||  !whiteList.contains(graphEdge.getDestination()) )){
                 return false;
             }
+            if (r instanceof CompactIsomorphicAnswer) {
+                return ((CompactIsomorphicAnswer) r).canMap(queryEdge, graphEdge);
+            }
             if (r.isUsing(graphEdge)) {
                 return false;
             }
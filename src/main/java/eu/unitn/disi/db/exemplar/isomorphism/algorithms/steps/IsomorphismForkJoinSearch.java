@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.isomorphism.algorithms.steps;
+
+import eu.unitn.disi.db.exemplar.core.AnswerSink;
+import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
+import eu.unitn.disi.db.exemplar.isomorphism.core.IsomorphicAnswer;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.mutilities.LoggableObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work stealing execution of a {@link GraphIsomorphismRecursiveStep}.
+ *
+ * Every root is a task of a fork/join pool, so idle workers steal the roots
+ * left by the busy ones. A root with at least <code>branchDegree</code>
+ * candidates for the first query edge is further split in one task per
+ * candidate. The answers of a root or of a branch come deduplicated by the
+ * step, and equal answers are never found from different roots or branches,
+ * so they are collected in a buffer per worker and merged when the search is
+ * over, or streamed to a sink, without a set of all the answers.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class IsomorphismForkJoinSearch extends LoggableObject {
+
+    private final GraphIsomorphismRecursiveStep step;
+    private final Long[] roots;
+    private final Edge branchingEdge;
+    private final int branchDegree;
+    private final int limitComputation;
+    private final boolean skipSave;
+    private AnswerSink<ExemplarAnswer> answerSink = null;
+
+    private final ConcurrentHashMap<Long, List<ExemplarAnswer>> buffers = new ConcurrentHashMap<>();
+    private final AtomicInteger found = new AtomicInteger();
+    private volatile boolean limitReached = false;
+
+    /**
+     *
+     * @param step the search to execute, shared by all the tasks
+     * @param roots the graph nodes mapped to the starting query node
+     * @param branchDegree split the roots with at least this number of
+     * candidate edges, 0 to never split a root
+     * @param limitComputation stop after this number of answers, 0 for no limit
+     * @param skipSave do not keep the answers
+     */
+    public IsomorphismForkJoinSearch(GraphIsomorphismRecursiveStep step, Collection<Long> roots, int branchDegree, int limitComputation, boolean skipSave) {
+        this.step = step;
+        this.roots = roots.toArray(new Long[roots.size()]);
+        this.branchingEdge = branchDegree > 0 ? step.getBranchingEdge() : null;
+        this.branchDegree = branchDegree;
+        this.limitComputation = limitComputation;
+        this.skipSave = skipSave;
+    }
+
+    /**
+     *
+     * @param answerSink when set, the answers are pushed to the sink instead
+     * of the buffers
+     */
+    public void setAnswerSink(AnswerSink<ExemplarAnswer> answerSink) {
+        this.answerSink = answerSink;
+    }
+
+    /**
+     *
+     * @return the task searching all the roots
+     */
+    public RecursiveAction newTask() {
+        return new RootsTask(0, roots.length);
+    }
+
+    /**
+     * Merges the buffers of the workers, call it once the task is done
+     *
+     * @return the answers found
+     */
+    public List<ExemplarAnswer> getAnswers() {
+        int size = 0;
+        for (List<ExemplarAnswer> buffer : buffers.values()) {
+            size += buffer.size();
+        }
+        List<ExemplarAnswer> answers = new ArrayList<>(size);
+        for (List<ExemplarAnswer> buffer : buffers.values()) {
+            answers.addAll(buffer);
+        }
+        return answers;
+    }
+
+    private boolean isOver() {
+        return limitReached || step.isStopped();
+    }
+
+    private void collect(List<IsomorphicAnswer> answers) {
+        if (answers == null || skipSave || limitReached) {
+            return;
+        }
+        List<ExemplarAnswer> buffer = answerSink != null ? null : buffers.computeIfAbsent(Thread.currentThread().getId(), k -> new ArrayList<>());
+        for (IsomorphicAnswer answer : answers) {
+            if (buffer != null) {
+                buffer.add(answer);
+            } else {
+                answerSink.accept(answer);
+            }
+        }
+        if (limitComputation > 0 && found.addAndGet(answers.size()) > limitComputation && !limitReached) {
+            limitReached = true;
+            warn("Computation interrupted after %s partial isomorphic results", found.get());
+        }
+    }
+
+    private void failed(OutOfMemoryError e) {
+        step.stop();
+        List<ExemplarAnswer> buffer = buffers.remove(Thread.currentThread().getId());
+        if (buffer != null) {
+            buffer.clear();
+        }
+        error("Memory exausted, so we are dropping the answers of this worker.");
+    }
+
+    /**
+     * A range of roots, split in halves down to a single root
+     */
+    private class RootsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        RootsTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (isOver() || from >= to) {
+                return;
+            }
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RootsTask(from, mid), new RootsTask(mid, to));
+                return;
+            }
+            Long root = roots[from];
+            try {
+                if (branchingEdge != null) {
+                    Collection<Edge> branches = step.branchesOf(root, branchingEdge);
+                    if (branches.size() >= branchDegree) {
+                        new BranchesTask(root, branches.toArray(new Edge[branches.size()]), 0, branches.size()).invoke();
+                        return;
+                    }
+                }
+                collect(step.searchFrom(root));
+            } catch (InterruptedException e) {
+                // The search has been stopped, keep what we found
+            } catch (OutOfMemoryError e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * A range of the candidates of the branching edge at a root
+     */
+    private class BranchesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Long root;
+        private final Edge[] branches;
+        private final int from;
+        private final int to;
+
+        BranchesTask(Long root, Edge[] branches, int from, int to) {
+            this.root = root;
+            this.branches = branches;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (isOver() || from >= to) {
+                return;
+            }
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BranchesTask(root, branches, from, mid), new BranchesTask(root, branches, mid, to));
+                return;
+            }
+            try {
+                collect(step.searchBranch(root, branchingEdge, branches[from]));
+            } catch (InterruptedException e) {
+                // The search has been stopped, keep what we found
+            } catch (OutOfMemoryError e) {
+                failed(e);
+            }
+        }
+    }
+}
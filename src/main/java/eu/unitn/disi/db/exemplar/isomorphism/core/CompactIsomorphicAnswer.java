@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.isomorphism.core;
+
+import eu.unitn.disi.db.grava.graphs.BaseMultigraph;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An isomorphic answer for small queries stored in arrays indexed by the slot
+ * of each query node and edge.
+ *
+ * The graph nodes are kept in a <code>long[]</code> with a bitmask of the
+ * mapped slots, and the reverse map in a small open addressing table, so a
+ * clone is a copy of a few arrays instead of three hash maps.
+ * The slots are shared by all the answers of the same query.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class CompactIsomorphicAnswer extends IsomorphicAnswer {
+
+    /**
+     * Queries up to this number of nodes use compact answers
+     */
+    public static final int MAX_QUERY_NODES = 20;
+
+    private final QuerySlots slots;
+    private long nodeMask;
+    private long[] graphNodes;
+    private long[] reverseKeys;
+    private byte[] reverseSlots;
+    private Edge[] graphEdges;
+
+    /**
+     * The slots of the nodes and edges of a query
+     */
+    public static final class QuerySlots {
+
+        private final Multigraph query;
+        private final Long[] nodes;
+        private final Edge[] edges;
+        private final Map<Long, Integer> nodeSlots;
+        private final Map<Edge, Integer> edgeSlots;
+        private final int tableSize;
+
+        /**
+         *
+         * @param query a query that {@link #fits(Multigraph)}
+         */
+        public QuerySlots(Multigraph query) {
+            if (!fits(query)) {
+                throw new IllegalArgumentException("Query with " + query.numberOfNodes() + " nodes is too big for compact answers");
+            }
+            this.query = query;
+            this.nodes = query.vertexSet().toArray(new Long[0]);
+            this.edges = query.edgeSet().toArray(new Edge[0]);
+            this.nodeSlots = new HashMap<>(nodes.length * 2);
+            for (int i = 0; i < nodes.length; i++) {
+                nodeSlots.put(nodes[i], i);
+            }
+            this.edgeSlots = new HashMap<>(edges.length * 2);
+            for (int i = 0; i < edges.length; i++) {
+                edgeSlots.put(edges[i], i);
+            }
+            // At most half full, so probing always ends on an empty cell
+            this.tableSize = Integer.highestOneBit(Math.max(nodes.length, 2)) * 4;
+        }
+
+        /**
+         *
+         * @param query
+         * @return true if the query is small enough for compact answers
+         */
+        public static boolean fits(Multigraph query) {
+            return query.numberOfNodes() <= MAX_QUERY_NODES;
+        }
+
+        private int slotOf(Long queryNode) {
+            Integer slot = nodeSlots.get(queryNode);
+            return slot == null ? -1 : slot;
+        }
+
+        private int slotOf(Edge queryEdge) {
+            Integer slot = edgeSlots.get(queryEdge);
+            return slot == null ? -1 : slot;
+        }
+    }
+
+    /**
+     * An empty answer
+     *
+     * @param slots the slots of the query to map
+     */
+    public CompactIsomorphicAnswer(QuerySlots slots) {
+        this.query = slots.query;
+        this.slots = slots;
+        this.nodeMask = 0;
+        this.graphNodes = new long[slots.nodes.length];
+        this.reverseKeys = new long[slots.tableSize];
+        this.reverseSlots = new byte[slots.tableSize];
+        this.graphEdges = new Edge[slots.edges.length];
+    }
+
+    private CompactIsomorphicAnswer(CompactIsomorphicAnswer other) {
+        this.query = other.query;
+        this.slots = other.slots;
+        this.nodeMask = other.nodeMask;
+        this.graphNodes = Arrays.copyOf(other.graphNodes, other.graphNodes.length);
+        this.reverseKeys = Arrays.copyOf(other.reverseKeys, other.reverseKeys.length);
+        this.reverseSlots = Arrays.copyOf(other.reverseSlots, other.reverseSlots.length);
+        this.graphEdges = Arrays.copyOf(other.graphEdges, other.graphEdges.length);
+        this.totalWeight = other.totalWeight;
+        if (other.nodeWeights != null) {
+            this.nodeWeights = new HashMap<>(other.nodeWeights);
+        }
+    }
+
+    @Override
+    public CompactIsomorphicAnswer getClone() {
+        return new CompactIsomorphicAnswer(this);
+    }
+
+    private boolean isMapped(int slot) {
+        return (nodeMask & (1L << slot)) != 0;
+    }
+
+    private int cellOf(long graphNode) {
+        int mask = reverseKeys.length - 1;
+        // Fibonacci hashing: the high bits of the product depend on all the
+        // bits of the node
+        int cell = (int) ((graphNode * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - Integer.numberOfTrailingZeros(reverseKeys.length)));
+        while (reverseSlots[cell] != 0 && reverseKeys[cell] != graphNode) {
+            cell = (cell + 1) & mask;
+        }
+        return cell;
+    }
+
+    /**
+     *
+     * @return the slot of the query node mapped to the graph node, -1 if none
+     */
+    private int reverseSlotOf(long graphNode) {
+        return reverseSlots[cellOf(graphNode)] - 1;
+    }
+
+    @Override
+    public double addWeight(Long c, Double w) {
+        if (nodeWeights == null) {
+            nodeWeights = new HashMap<>();
+        }
+        return super.addWeight(c, w);
+    }
+
+    @Override
+    public void map(Long queryNode, Long graphNode) {
+        if (queryNode == null) {
+            throw new IllegalArgumentException("Query Node cannot be null");
+        }
+
+        if (graphNode == null) {
+            throw new IllegalArgumentException("Graph Node cannot be null");
+        }
+
+        int slot = slots.slotOf(queryNode);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Query node " + queryNode + " is not present in the original query");
+        } else if (!isMapped(slot)) {
+            graphNodes[slot] = graphNode;
+            nodeMask |= 1L << slot;
+            int cell = cellOf(graphNode);
+            reverseKeys[cell] = graphNode;
+            reverseSlots[cell] = (byte) (slot + 1);
+        } else if (graphNodes[slot] != graphNode) {
+            throw new IllegalArgumentException("Trying to change map of query node " + queryNode + " a different map is already present");
+        }
+    }
+
+    @Override
+    public void map(Edge queryEdge, Edge graphEdge) {
+        if (queryEdge == null) {
+            throw new IllegalArgumentException("Query Edge cannot be null");
+        }
+
+        if (graphEdge == null) {
+            throw new IllegalArgumentException("Graph Edge cannot be null");
+        }
+
+        int slot = slots.slotOf(queryEdge);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Query edge " + queryEdge + " is not present in the original query");
+        } else if (graphEdges[slot] == null) {
+            graphEdges[slot] = graphEdge;
+        } else if (!graphEdges[slot].equals(graphEdge)) {
+            throw new IllegalArgumentException("Trying to change map of query edge " + queryEdge + " a different map is already present");
+        }
+    }
+
+    /**
+     * The structural checks of {@code edgeMatch} in the isomorphic search,
+     * done on the slots without boxing
+     *
+     * @param queryEdge
+     * @param graphEdge
+     * @return true if the graph edge is coherent with the current mapping
+     */
+    public boolean canMap(Edge queryEdge, Edge graphEdge) {
+        if (isUsing(graphEdge)) {
+            return false;
+        }
+        int querySource = slots.slotOf(queryEdge.getSource());
+        int queryDestination = slots.slotOf(queryEdge.getDestination());
+        long graphSource = graphEdge.getSource();
+        long graphDestination = graphEdge.getDestination();
+
+        boolean mappedSource = querySource >= 0 && isMapped(querySource);
+        int usingSource = reverseSlotOf(graphSource);
+        if (usingSource >= 0 && !mappedSource) {
+            return false;
+        }
+
+        boolean mappedDestination = queryDestination >= 0 && isMapped(queryDestination);
+        int usingDestination = reverseSlotOf(graphDestination);
+        if (usingDestination >= 0 && !mappedDestination) {
+            return false;
+        }
+
+        if (mappedSource && graphNodes[querySource] != graphSource) {
+            return false;
+        }
+        if (mappedDestination && graphNodes[queryDestination] != graphDestination) {
+            return false;
+        }
+        if (usingSource >= 0 && usingSource != querySource) {
+            return false;
+        }
+        return usingDestination < 0 || usingDestination == queryDestination;
+    }
+
+    @Override
+    public Set<Long> getUsedNodes() {
+        Set<Long> used = new HashSet<>();
+        for (int i = 0; i < reverseSlots.length; i++) {
+            if (reverseSlots[i] != 0) {
+                used.add(reverseKeys[i]);
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public Map<Long, Long> getNodesMapping() {
+        Map<Long, Long> m = new HashMap<>();
+        for (int i = 0; i < slots.nodes.length; i++) {
+            m.put(slots.nodes[i], isMapped(i) ? graphNodes[i] : null);
+        }
+        return m;
+    }
+
+    @Override
+    public boolean hasMapped(Long queryNode) {
+        int slot = slots.slotOf(queryNode);
+        return slot >= 0 && isMapped(slot);
+    }
+
+    @Override
+    public boolean isUsing(Long graphNode) {
+        return graphNode != null && reverseSlotOf(graphNode) >= 0;
+    }
+
+    @Override
+    public boolean hasMapped(Edge queryEdge) {
+        int slot = slots.slotOf(queryEdge);
+        return slot >= 0 && graphEdges[slot] != null;
+    }
+
+    @Override
+    public boolean isUsing(Edge graphEdge) {
+        for (Edge e : graphEdges) {
+            if (Objects.equals(e, graphEdge)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<String> getUsedEdgesIDs() {
+        Set<String> m = new HashSet<>();
+        for (Edge e : graphEdges) {
+            if (e != null) {
+                m.add(e.getId());
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public Set<Edge> getUsedEdges() {
+        Set<Edge> m = new HashSet<>();
+        m.addAll(Arrays.asList(graphEdges));
+        return m;
+    }
+
+    @Override
+    public Long mappedAs(Long graphNode) {
+        int slot = graphNode == null ? -1 : reverseSlotOf(graphNode);
+        return slot < 0 ? null : slots.nodes[slot];
+    }
+
+    @Override
+    public Long isomorphicMapOf(Long queryNode) {
+        int slot = slots.slotOf(queryNode);
+        return slot >= 0 && isMapped(slot) ? graphNodes[slot] : null;
+    }
+
+    @Override
+    public List<Long> mapOf(Long queryNode) {
+        List<Long> map = new LinkedList<>();
+        map.add(isomorphicMapOf(queryNode));
+        return map;
+    }
+
+    @Override
+    public List<Edge> mapOf(Edge queryEdge) {
+        List<Edge> map = new LinkedList<>();
+        map.add(ismorphicMapOf(queryEdge));
+        return map;
+    }
+
+    @Override
+    public Edge ismorphicMapOf(Edge queryEdge) {
+        int slot = slots.slotOf(queryEdge);
+        return slot < 0 ? null : graphEdges[slot];
+    }
+
+    @Override
+    public Multigraph buildMatchedGraph() {
+        Multigraph queryGraph = new BaseMultigraph();
+
+        for (int i = 0; i < graphNodes.length; i++) {
+            if (!isMapped(i)) {
+                throw new IllegalStateException("The query is not totally mapped: missing a node");
+            }
+            queryGraph.addVertex(graphNodes[i]);
+        }
+
+        for (Edge edge : graphEdges) {
+            if (edge == null) {
+                throw new IllegalStateException("The query is not totally mapped: missing an edge");
+            }
+            smartAddEdge(queryGraph, edge, true);
+        }
+        return queryGraph;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final CompactIsomorphicAnswer other = (CompactIsomorphicAnswer) obj;
+        if (other.graphEdges.length != this.graphEdges.length) {
+            return false;
+        }
+        for (Edge otherEdge : other.graphEdges) {
+            if (!this.isUsing(otherEdge)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Edge e : graphEdges) {
+            s.append(e).append(" ");
+        }
+        return s.toString().trim();
+    }
+
+    /**
+     *
+     * @return a hash of the mapped graph edges only, independent of the slots
+     * they are mapped to, as {@link #equals(Object)} compares the edges
+     */
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (Edge e : graphEdges) {
+            if (e != null) {
+                int x = e.hashCode() * 0x9E3779B9;
+                h += x ^ (x >>> 16);
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public int size() {
+        Set<Edge> used = new HashSet<>();
+        for (Edge e : graphEdges) {
+            if (e != null) {
+                used.add(e);
+            }
+        }
+        return used.size();
+    }
+}
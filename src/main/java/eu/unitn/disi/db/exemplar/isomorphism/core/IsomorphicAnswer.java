@@ -60,6 +60,13 @@ public class IsomorphicAnswer extends ExemplarAnswer {
         this.initialize();
     }
 
+    /**
+     * Constructor for subclasses storing the mapping in their own structures,
+     * nothing is initialized
+     */
+    protected IsomorphicAnswer() {
+    }
+
     private void initialize() {
         this.mappedNodes = new HashMap<>(query.vertexSet().size() + 2, 1f);
         this.reversedMappedNodes = new HashMap<>(query.vertexSet().size() + 2, 1f);
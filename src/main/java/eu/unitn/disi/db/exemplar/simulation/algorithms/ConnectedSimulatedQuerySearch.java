@@ -22,14 +22,18 @@ import eu.unitn.disi.db.exemplar.simulation.algorithms.steps.StrongSimulatonExpa
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
 import eu.unitn.disi.db.exemplar.core.ExemplarAnswer;
 import eu.unitn.disi.db.mutilities.StopWatch;
+import eu.unitn.disi.db.exemplar.simulation.core.AnswerFingerprints;
 import eu.unitn.disi.db.exemplar.simulation.core.SimulatedAnswer;
 import eu.unitn.disi.db.exemplar.core.algorithms.ExemplarQuerySearch;
+import eu.unitn.disi.db.exemplar.core.algorithms.UndirectedUnweightedDiameter;
 import eu.unitn.disi.db.exemplar.core.algorithms.steps.GraphSearchStep;
+import eu.unitn.disi.db.grava.graphs.Edge;
 import eu.unitn.disi.db.grava.graphs.Multigraph;
 import eu.unitn.disi.db.mutilities.ThreadUtilities;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -51,6 +55,18 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
 
     @AlgorithmInput
     protected int maxDiameter = 0;
+
+    @AlgorithmInput
+    protected boolean bitSimulation = false;
+
+    @AlgorithmInput
+    protected boolean ballReuse = false;
+
+    @AlgorithmInput
+    protected int maxBallEdges = 0;
+
+    @AlgorithmInput
+    protected boolean dualFilter = false;
     
     /**
      * Execute the algorithm
@@ -98,6 +114,34 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
             debug("Whitelist contains %s nodes", whiteList.size());
             graphNodes = whiteList;
         }
+        if (dualFilter) {
+            // Only the nodes in the dual simulation can be centers or in a ball
+            GraphDualSimulation dual = new GraphDualSimulation();
+            dual.setQuery(query);
+            dual.setGraph(graph);
+            dual.setAllowed(whiteList);
+            dual.compute();
+            whiteList = new HashSet<>();
+            whiteList.addAll(dual.getMatchingNodes());
+            debug("Dual simulation keeps %s nodes out of %s in %dms", whiteList.size(), graphNodes.size(), dual.getComputationTime());
+            graphNodes = whiteList;
+            if (whiteList.isEmpty()) {
+                return;
+            }
+        }
+        if (ballReuse) {
+            graphNodes = localityOrder(graphNodes, graph);
+        }
+
+        // The diameter of the query, computed once for all the threads
+        int diameter = this.maxDiameter;
+        if (diameter < 1) {
+            UndirectedUnweightedDiameter dimComp = new UndirectedUnweightedDiameter();
+            dimComp.setGraph(query);
+            dimComp.compute();
+            diameter = dimComp.getDiameter();
+            debug("Diameter %d ", diameter);
+        }
 
         if(storeOnlyGraphs){
             exemplarGraphs = new ArrayList<>(GraphSearchStep.EXPECTED_RESULT_SIZE*4/3);
@@ -111,6 +155,7 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
         int chunkSize = this.getNumThreads() == 1 ? graphNodes.size() :  (int) Math.round(graphNodes.size() / this.getNumThreads() + 0.5);
         List<Future<Collection<SimulatedAnswer>>> lists = new ArrayList<>();
         List<StrongSimulatonExpansionRecursiveStep> simSteps = new ArrayList<>();  
+        AnswerFingerprints fingerprints = new AnswerFingerprints();
         ////////////////////// USE 1 THREAD
         //chunkSize =  graphNodes.size();
         ////////////////////// USE 1 THREAD
@@ -136,7 +181,10 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
 
         for (List<Long> chunk : nodesChunks) {
             threadNum++;
-            StrongSimulatonExpansionRecursiveStep graphI = new StrongSimulatonExpansionRecursiveStep(threadNum, chunk.iterator(), query, graph, this.getComputationLimit(), this.getSkipSave(), this.whiteList, this.memoryLimit, this.maxDiameter);
+            StrongSimulatonExpansionRecursiveStep graphI = new StrongSimulatonExpansionRecursiveStep(threadNum, chunk.iterator(), query, graph, this.getComputationLimit(), this.getSkipSave(), this.whiteList, this.memoryLimit, diameter, this.bitSimulation);
+            graphI.setBallReuse(this.ballReuse);
+            graphI.setMaxBallEdges(this.maxBallEdges);
+            graphI.setFingerprints(fingerprints);
             simSteps.add(graphI);
             lists.add(pool.submit(graphI));
         }
@@ -201,6 +249,44 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
 
     }
 
+    /**
+     * Orders the centers breadth first, so that the centers adjacent to a
+     * center follow it and end up in the same chunk
+     *
+     * @param centers
+     * @param graph
+     * @return the centers in visit order
+     */
+    private List<Long> localityOrder(Collection<Long> centers, Multigraph graph) {
+        Set<Long> toVisit = new HashSet<>(centers);
+        List<Long> ordered = new ArrayList<>(centers.size());
+        for (Long seed : centers) {
+            if (!toVisit.remove(seed)) {
+                continue;
+            }
+            int head = ordered.size();
+            ordered.add(seed);
+            while (head < ordered.size()) {
+                Long node = ordered.get(head++);
+                Iterator<Edge> edges = graph.incomingEdgesIteratorOf(node);
+                while (edges.hasNext()) {
+                    Long neighbor = edges.next().getSource();
+                    if (toVisit.remove(neighbor)) {
+                        ordered.add(neighbor);
+                    }
+                }
+                edges = graph.outgoingEdgesIteratorOf(node);
+                while (edges.hasNext()) {
+                    Long neighbor = edges.next().getDestination();
+                    if (toVisit.remove(neighbor)) {
+                        ordered.add(neighbor);
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
     public int getMaxDiam() {
         return maxDiameter;
     }
@@ -209,6 +295,44 @@ public class ConnectedSimulatedQuerySearch extends ExemplarQuerySearch<ExemplarA
         this.maxDiameter = maxDiam;
     }
 
+    /**
+     *
+     * @param bitSimulation true to simulate the query on bitsets over the
+     * dense ids of each ball, instead of on the graph with the edges
+     * expanded to nodes
+     */
+    public void setBitSimulation(boolean bitSimulation) {
+        this.bitSimulation = bitSimulation;
+    }
+
+    /**
+     *
+     * @param ballReuse true to visit the centers in breadth first order and
+     * reuse the ball of a center for the centers adjacent to it
+     */
+    public void setBallReuse(boolean ballReuse) {
+        this.ballReuse = ballReuse;
+    }
+
+    /**
+     *
+     * @param maxBallEdges skip the centers with a ball with more edges, 0 for
+     * no limit
+     */
+    public void setMaxBallEdges(int maxBallEdges) {
+        this.maxBallEdges = maxBallEdges;
+    }
+
+    /**
+     *
+     * @param dualFilter true to compute the dual simulation of the query in
+     * the graph first, and search only the balls of its nodes
+     */
+    public void setDualFilter(boolean dualFilter) {
+        this.dualFilter = dualFilter;
+    }
+
+
     
     
     
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.simulation.algorithms;
+
+import eu.unitn.disi.db.command.algorithmic.Algorithm;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmInput;
+import eu.unitn.disi.db.command.algorithmic.AlgorithmOutput;
+import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Maximal dual simulation of the query in the whole graph.
+ *
+ * A graph node simulates a query node if, for every query edge of the query
+ * node, it has an edge with the same label and direction to a node
+ * simulating the other end of the query edge. Any strong simulation in a
+ * ball is also a dual simulation in the graph, so only the nodes in this
+ * relation can be part of an answer.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class GraphDualSimulation extends Algorithm {
+
+    @AlgorithmInput
+    protected Multigraph query;
+
+    @AlgorithmInput
+    protected Multigraph graph;
+
+    /**
+     * Nodes that can be in the simulation, null for all
+     */
+    @AlgorithmInput
+    protected Set<Long> allowed = null;
+
+    @AlgorithmOutput
+    protected Map<Long, Set<Long>> simulation;
+
+    @Override
+    protected void algorithm() throws AlgorithmExecutionException {
+        simulation = new HashMap<>();
+
+        // Sources and destinations of the edges with the labels of the query
+        Map<Long, Set<Long>> sources = new HashMap<>();
+        Map<Long, Set<Long>> destinations = new HashMap<>();
+        for (Edge qe : query.edgeSet()) {
+            sources.put(qe.getLabel(), new HashSet<>());
+            destinations.put(qe.getLabel(), new HashSet<>());
+        }
+        Iterator<Edge> edges = graph.edgesIterator();
+        while (edges.hasNext()) {
+            Edge e = edges.next();
+            Set<Long> labelSources = sources.get(e.getLabel());
+            if (labelSources != null) {
+                labelSources.add(e.getSource());
+                destinations.get(e.getLabel()).add(e.getDestination());
+            }
+        }
+
+        // Query nodes map initially to the nodes with the labels of their edges
+        for (Long v : query.vertexSet()) {
+            Set<Long> sim = null;
+            for (Edge qe : query.outgoingEdgesOf(v)) {
+                sim = restrict(sim, sources.get(qe.getLabel()));
+            }
+            for (Edge qe : query.incomingEdgesOf(v)) {
+                sim = restrict(sim, destinations.get(qe.getLabel()));
+            }
+            if (sim == null) {
+                sim = new HashSet<>(graph.vertexSet());
+            }
+            if (allowed != null) {
+                sim.retainAll(allowed);
+            }
+            simulation.put(v, sim);
+        }
+        sources.clear();
+        destinations.clear();
+
+        boolean changed = true;
+        int rounds = 0;
+        while (changed) {
+            changed = false;
+            rounds++;
+            for (Edge qe : query.edgeSet()) {
+                Set<Long> simSource = simulation.get(qe.getSource());
+                Set<Long> simDestination = simulation.get(qe.getDestination());
+                changed |= refine(simSource, simDestination, qe.getLabel(), true);
+                changed |= refine(simDestination, simSource, qe.getLabel(), false);
+                if (simSource.isEmpty() || simDestination.isEmpty()) {
+                    for (Set<Long> sim : simulation.values()) {
+                        sim.clear();
+                    }
+                    debug("Query has no dual simulation after %d rounds", rounds);
+                    return;
+                }
+            }
+        }
+        debug("Dual simulation computed in %d rounds, %d nodes match", rounds, getMatchingNodes().size());
+    }
+
+    private static Set<Long> restrict(Set<Long> sim, Set<Long> allowed) {
+        if (sim == null) {
+            return new HashSet<>(allowed);
+        }
+        sim.retainAll(allowed);
+        return sim;
+    }
+
+    /**
+     * Removes the nodes without an edge with the label to the other side
+     *
+     * @param sim the nodes to check
+     * @param other the nodes at the other end of the query edge
+     * @param label
+     * @param outgoing true if sim contains the sources of the edge
+     * @return true if some node has been removed
+     */
+    private boolean refine(Set<Long> sim, Set<Long> other, Long label, boolean outgoing) {
+        boolean changed = false;
+        Iterator<Long> nodes = sim.iterator();
+        while (nodes.hasNext()) {
+            Long u = nodes.next();
+            boolean found = false;
+            Iterator<Edge> edges = outgoing ? graph.outgoingEdgesIteratorOf(u) : graph.incomingEdgesIteratorOf(u);
+            while (!found && edges.hasNext()) {
+                Edge e = edges.next();
+                found = Objects.equals(e.getLabel(), label) && other.contains(outgoing ? e.getDestination() : e.getSource());
+            }
+            if (!found) {
+                nodes.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    public void setQuery(Multigraph query) {
+        this.query = query;
+    }
+
+    public void setGraph(Multigraph graph) {
+        this.graph = graph;
+    }
+
+    public void setAllowed(Set<Long> allowed) {
+        this.allowed = allowed;
+    }
+
+    /**
+     *
+     * @return the graph nodes simulating each query node
+     */
+    public Map<Long, Set<Long>> getSimulation() {
+        return simulation;
+    }
+
+    /**
+     *
+     * @return the graph nodes simulating some query node
+     */
+    public Set<Long> getMatchingNodes() {
+        Set<Long> matching = new HashSet<>();
+        for (Set<Long> sim : simulation.values()) {
+            matching.addAll(sim);
+        }
+        return matching;
+    }
+}
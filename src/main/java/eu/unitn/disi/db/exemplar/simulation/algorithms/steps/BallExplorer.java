@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.simulation.algorithms.steps;
+
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the balls of the centers of a strong simulation, reusing its buffers
+ * from one center to the next.
+ *
+ * A ball is copied in a local graph with dense ids, and its edges are taken
+ * from the adjacency of its nodes instead of scanning the whole graph.
+ * With reuse enabled, the local graph of a center is built with one more hop
+ * than needed, so it contains the balls of all the centers adjacent to it:
+ * every path of length <code>radius</code> from a neighbor stays within
+ * <code>radius + 1</code> hops from the center. The balls of the following
+ * centers adjacent to it are then visited in the local graph, so centers
+ * should be visited in an order that keeps neighbors close.
+ *
+ * Not thread safe, each search step has its own.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class BallExplorer {
+
+    /**
+     * Maximum number of edges of a local graph built for reuse
+     */
+    public static final int REUSE_LIMIT = 1_000_000;
+
+    private final Multigraph graph;
+    private final Set<Long> allowed;
+    private final int radius;
+    private final boolean reuse;
+    private final int maxEdges;
+
+    // Local graph: nodes in visit order, with their hops from the anchor
+    private final HashLongIntMap localIds = HashLongIntMaps.newUpdatableMap();
+    private long[] nodes = new long[1024];
+    private int[] depths = new int[1024];
+    private int size = 0;
+    // Outgoing edges of each local node, to local nodes
+    private int[] outOffsets = new int[1025];
+    private Edge[] outEdges = new Edge[4096];
+    private int[] outTargets = new int[4096];
+    // Undirected adjacency, built only to visit from another center
+    private int[] adjOffsets = new int[1025];
+    private int[] adjacency = new int[8192];
+    private boolean adjacencyBuilt = false;
+    // Visit from a center in the local graph
+    private int[] marks = new int[1024];
+    private int[] queue = new int[1024];
+    private int epoch = 0;
+
+    private boolean anchored = false;
+    private long reused = 0;
+    private long skipped = 0;
+
+    /**
+     *
+     * @param graph the graph to search
+     * @param allowed the nodes that can be in a ball, null for all
+     * @param radius number of hops from the center
+     * @param reuse true to reuse the ball of a center for its neighbors
+     * @param maxEdges skip the balls with more edges, 0 for no limit
+     */
+    public BallExplorer(Multigraph graph, Set<Long> allowed, int radius, boolean reuse, int maxEdges) {
+        this.graph = graph;
+        this.allowed = allowed;
+        this.radius = radius;
+        this.reuse = reuse;
+        this.maxEdges = maxEdges;
+    }
+
+    /**
+     * Collects the edges with both endpoints within radius hops from the
+     * center
+     *
+     * @param center
+     * @param ball emptied and filled with the edges of the ball
+     * @return false if the ball has more edges than allowed
+     */
+    public boolean ballOf(Long center, List<Edge> ball) {
+        ball.clear();
+        int local = anchored ? localIds.getOrDefault(center.longValue(), -1) : -1;
+        if (local >= 0 && depths[local] <= 1) {
+            reused++;
+            return collect(local, ball);
+        }
+        anchored = false;
+        if (reuse && build(center, radius + 1, REUSE_LIMIT)) {
+            anchored = true;
+            return collect(0, ball);
+        }
+        if (!build(center, radius, maxEdges)) {
+            skipped++;
+            return false;
+        }
+        return collect(0, ball);
+    }
+
+    /**
+     *
+     * @return number of balls visited in the local graph of another center
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    /**
+     *
+     * @return number of balls skipped for their size
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Copies the nodes within hops from the center, and the edges among them
+     *
+     * @return false if the local graph has more edges than the limit
+     */
+    private boolean build(long center, int hops, int limit) {
+        localIds.clear();
+        size = 0;
+        adjacencyBuilt = false;
+        add(center, 0);
+        int seen = 0;
+        for (int head = 0; head < size; head++) {
+            if (depths[head] >= hops) {
+                break;
+            }
+            seen += visit(graph.incomingEdgesIteratorOf(nodes[head]), true, depths[head] + 1, hops);
+            seen += visit(graph.outgoingEdgesIteratorOf(nodes[head]), false, depths[head] + 1, hops);
+            // The edges seen so far are in the local graph, stop before copying it
+            if (limit > 0 && seen > limit) {
+                return false;
+            }
+        }
+        int count = 0;
+        outOffsets = ensure(outOffsets, size + 1);
+        outOffsets[0] = 0;
+        for (int u = 0; u < size; u++) {
+            Iterator<Edge> edges = graph.outgoingEdgesIteratorOf(nodes[u]);
+            while (edges.hasNext()) {
+                Edge e = edges.next();
+                int target = localIds.getOrDefault(e.getDestination().longValue(), -1);
+                if (target < 0) {
+                    continue;
+                }
+                if (count == outEdges.length) {
+                    outEdges = Arrays.copyOf(outEdges, count * 2);
+                    outTargets = Arrays.copyOf(outTargets, count * 2);
+                }
+                outEdges[count] = e;
+                outTargets[count] = target;
+                count++;
+            }
+            if (limit > 0 && count > limit) {
+                return false;
+            }
+            outOffsets[u + 1] = count;
+        }
+        marks = ensure(marks, size);
+        Arrays.fill(marks, 0, size, 0);
+        epoch = 0;
+        return true;
+    }
+
+    /**
+     * Adds the neighbors of a node of the local graph
+     *
+     * @return the number of edges to the neighbors not counted from another
+     * node: an edge is counted from its source, or from its destination if
+     * the source is not expanded
+     */
+    private int visit(Iterator<Edge> edges, boolean incoming, int depth, int hops) {
+        int counted = 0;
+        while (edges.hasNext()) {
+            Edge e = edges.next();
+            Long neighbor = incoming ? e.getSource() : e.getDestination();
+            if (allowed != null && !allowed.contains(neighbor)) {
+                continue;
+            }
+            int local = localIds.getOrDefault(neighbor.longValue(), -1);
+            if (local < 0) {
+                local = size;
+                add(neighbor, depth);
+            }
+            if (!incoming || depths[local] >= hops) {
+                counted++;
+            }
+        }
+        return counted;
+    }
+
+    private void add(long node, int depth) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            depths = Arrays.copyOf(depths, size * 2);
+        }
+        localIds.put(node, size);
+        nodes[size] = node;
+        depths[size] = depth;
+        size++;
+    }
+
+    /**
+     * Visits the local graph from a center and collects the edges among the
+     * nodes within radius hops
+     */
+    private boolean collect(int center, List<Edge> ball) {
+        epoch++;
+        if (center == 0) {
+            // The local graph is built from this center, hops are known
+            for (int u = 0; u < size && depths[u] <= radius; u++) {
+                marks[u] = epoch;
+            }
+        } else {
+            buildAdjacency();
+            queue = ensure(queue, size);
+            int head = 0, tail = 0, level = 0, levelEnd = 1;
+            marks[center] = epoch;
+            queue[tail++] = center;
+            while (head < tail && level < radius) {
+                int u = queue[head++];
+                for (int i = adjOffsets[u]; i < adjOffsets[u + 1]; i++) {
+                    int v = adjacency[i];
+                    if (marks[v] != epoch) {
+                        marks[v] = epoch;
+                        queue[tail++] = v;
+                    }
+                }
+                if (head == levelEnd) {
+                    level++;
+                    levelEnd = tail;
+                }
+            }
+        }
+        for (int u = 0; u < size; u++) {
+            if (marks[u] != epoch) {
+                continue;
+            }
+            for (int k = outOffsets[u]; k < outOffsets[u + 1]; k++) {
+                if (marks[outTargets[k]] == epoch) {
+                    ball.add(outEdges[k]);
+                }
+            }
+        }
+        if (maxEdges > 0 && ball.size() > maxEdges) {
+            ball.clear();
+            skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    private void buildAdjacency() {
+        if (adjacencyBuilt) {
+            return;
+        }
+        int count = outOffsets[size];
+        adjOffsets = ensure(adjOffsets, size + 1);
+        adjacency = ensure(adjacency, count * 2);
+        Arrays.fill(adjOffsets, 0, size + 1, 0);
+        for (int u = 0; u < size; u++) {
+            for (int k = outOffsets[u]; k < outOffsets[u + 1]; k++) {
+                adjOffsets[u + 1]++;
+                adjOffsets[outTargets[k] + 1]++;
+            }
+        }
+        for (int u = 0; u < size; u++) {
+            adjOffsets[u + 1] += adjOffsets[u];
+        }
+        // queue is used as fill counter
+        queue = ensure(queue, size);
+        System.arraycopy(adjOffsets, 0, queue, 0, size);
+        for (int u = 0; u < size; u++) {
+            for (int k = outOffsets[u]; k < outOffsets[u + 1]; k++) {
+                adjacency[queue[u]++] = outTargets[k];
+                adjacency[queue[outTargets[k]]++] = u;
+            }
+        }
+        adjacencyBuilt = true;
+    }
+
+    private static int[] ensure(int[] array, int length) {
+        return array.length >= length ? array : new int[Math.max(length, array.length * 2)];
+    }
+}
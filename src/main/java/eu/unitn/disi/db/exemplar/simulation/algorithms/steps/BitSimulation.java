@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.simulation.algorithms.steps;
+
+import com.koloboke.collect.map.hash.HashLongIntMap;
+import com.koloboke.collect.map.hash.HashLongIntMaps;
+import eu.unitn.disi.db.exemplar.simulation.core.SimulatedAnswer;
+import eu.unitn.disi.db.grava.graphs.Edge;
+import eu.unitn.disi.db.grava.graphs.Multigraph;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Strong simulation of a query in a ball computed on dense local ids.
+ *
+ * The nodes of the ball are numbered from 0, and the candidates of each query
+ * node are a bitset over these numbers. The dual simulation is the fixpoint
+ * of the refinement along each query edge: the candidates of the source are
+ * intersected with the nodes having an edge with the same label to a
+ * candidate of the destination, and vice versa. The answer is then built, as
+ * in {@link StrongSimulatonExpansionRecursiveStep}, from the matching edges
+ * connected to the center of the ball.
+ *
+ * Not thread safe, each search step has its own.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class BitSimulation {
+
+    private final Multigraph query;
+    private final Edge[] queryEdges;
+    private final int[] querySources;
+    private final int[] queryDestinations;
+    private final Long[] queryNodes;
+
+    /**
+     *
+     * @param query the query to simulate
+     */
+    public BitSimulation(Multigraph query) {
+        this.query = query;
+        Map<Long, Integer> queryIds = new HashMap<>();
+        queryNodes = new Long[query.numberOfNodes()];
+        for (Long node : query.vertexSet()) {
+            queryNodes[queryIds.size()] = node;
+            queryIds.put(node, queryIds.size());
+        }
+        Collection<Edge> edges = query.edgeSet();
+        queryEdges = edges.toArray(new Edge[edges.size()]);
+        querySources = new int[queryEdges.length];
+        queryDestinations = new int[queryEdges.length];
+        for (int j = 0; j < queryEdges.length; j++) {
+            querySources[j] = queryIds.get(queryEdges[j].getSource());
+            queryDestinations[j] = queryIds.get(queryEdges[j].getDestination());
+        }
+    }
+
+    /**
+     *
+     * @param ballEdges the edges of the ball
+     * @param center the center of the ball
+     * @return the strong simulation of the query in the ball, null if the
+     * ball does not simulate the query
+     */
+    public SimulatedAnswer simulate(Collection<Edge> ballEdges, Long center) {
+        // Dense ids of the nodes and the edges of the ball
+        int m = ballEdges.size();
+        Edge[] edges = ballEdges.toArray(new Edge[m]);
+        int[] sources = new int[m];
+        int[] destinations = new int[m];
+        HashLongIntMap ids = HashLongIntMaps.newUpdatableMap(m);
+        Map<Long, int[]> labelCounts = new HashMap<>();
+        for (int e = 0; e < m; e++) {
+            sources[e] = localId(ids, edges[e].getSource());
+            destinations[e] = localId(ids, edges[e].getDestination());
+            labelCounts.computeIfAbsent(edges[e].getLabel(), l -> new int[1])[0]++;
+        }
+        int n = ids.size();
+        int centerId = ids.getOrDefault(center.longValue(), -1);
+        if (centerId < 0) {
+            return null;
+        }
+
+        // The ball edges with the label of each query edge
+        Map<Long, int[]> byLabel = new HashMap<>(labelCounts.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, int[]> count : labelCounts.entrySet()) {
+            byLabel.put(count.getKey(), new int[count.getValue()[0]]);
+            count.getValue()[0] = 0;
+        }
+        for (int e = 0; e < m; e++) {
+            int[] fill = labelCounts.get(edges[e].getLabel());
+            byLabel.get(edges[e].getLabel())[fill[0]++] = e;
+        }
+        int[][] candidateEdges = new int[queryEdges.length][];
+        for (int j = 0; j < queryEdges.length; j++) {
+            candidateEdges[j] = byLabel.get(queryEdges[j].getLabel());
+            if (candidateEdges[j] == null) {
+                return null;
+            }
+        }
+
+        // Dual simulation, query nodes map initially to all the nodes
+        BitSet[] simulation = new BitSet[queryNodes.length];
+        for (int q = 0; q < queryNodes.length; q++) {
+            simulation[q] = new BitSet(n);
+            simulation[q].set(0, n);
+        }
+        BitSet image = new BitSet(n);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int j = 0; j < queryEdges.length; j++) {
+                BitSet simSource = simulation[querySources[j]];
+                BitSet simDestination = simulation[queryDestinations[j]];
+                int[] candidates = candidateEdges[j];
+
+                image.clear();
+                for (int e : candidates) {
+                    if (simDestination.get(destinations[e])) {
+                        image.set(sources[e]);
+                    }
+                }
+                changed |= restrict(simSource, image);
+
+                image.clear();
+                for (int e : candidates) {
+                    if (simSource.get(sources[e])) {
+                        image.set(destinations[e]);
+                    }
+                }
+                changed |= restrict(simDestination, image);
+
+                if (simSource.isEmpty() || simDestination.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+
+        boolean valid = false;
+        for (BitSet sim : simulation) {
+            valid = valid || sim.get(centerId);
+        }
+        if (!valid) {
+            return null;
+        }
+
+        // The edges matching a query edge
+        BitSet matched = new BitSet(m);
+        for (int j = 0; j < queryEdges.length; j++) {
+            BitSet simSource = simulation[querySources[j]];
+            BitSet simDestination = simulation[queryDestinations[j]];
+            for (int e : candidateEdges[j]) {
+                if (simSource.get(sources[e]) && simDestination.get(destinations[e])) {
+                    matched.set(e);
+                }
+            }
+        }
+
+        // Extract MaxPG, the nodes connected to the center by matching edges
+        BitSet component = connectedTo(centerId, n, matched, sources, destinations);
+
+        SimulatedAnswer solution = new SimulatedAnswer(query);
+        for (int j = 0; j < queryEdges.length; j++) {
+            BitSet simSource = simulation[querySources[j]];
+            BitSet simDestination = simulation[queryDestinations[j]];
+            for (int e : candidateEdges[j]) {
+                if (component.get(sources[e]) && simSource.get(sources[e]) && simDestination.get(destinations[e])) {
+                    solution.map(queryEdges[j].getSource(), edges[e].getSource());
+                    solution.map(queryEdges[j].getDestination(), edges[e].getDestination());
+                    solution.map(queryEdges[j], edges[e]);
+                }
+            }
+        }
+        return solution.isMappingComplete() ? solution : null;
+    }
+
+    private static int localId(HashLongIntMap ids, long node) {
+        int id = ids.getOrDefault(node, -1);
+        if (id < 0) {
+            id = ids.size();
+            ids.put(node, id);
+        }
+        return id;
+    }
+
+    /**
+     * Intersects the candidates with the image
+     *
+     * @return true if some candidate has been removed
+     */
+    private static boolean restrict(BitSet candidates, BitSet image) {
+        int before = candidates.cardinality();
+        candidates.and(image);
+        return candidates.cardinality() != before;
+    }
+
+    /**
+     * Undirected visit of the matching edges from the center
+     */
+    private static BitSet connectedTo(int center, int n, BitSet matched, int[] sources, int[] destinations) {
+        // Matching edges incident to each node
+        int[] offsets = new int[n + 1];
+        for (int e = matched.nextSetBit(0); e >= 0; e = matched.nextSetBit(e + 1)) {
+            offsets[sources[e] + 1]++;
+            offsets[destinations[e] + 1]++;
+        }
+        for (int u = 0; u < n; u++) {
+            offsets[u + 1] += offsets[u];
+        }
+        int[] neighbors = new int[offsets[n]];
+        int[] fill = new int[n];
+        for (int e = matched.nextSetBit(0); e >= 0; e = matched.nextSetBit(e + 1)) {
+            neighbors[offsets[sources[e]] + fill[sources[e]]++] = destinations[e];
+            neighbors[offsets[destinations[e]] + fill[destinations[e]]++] = sources[e];
+        }
+
+        BitSet visited = new BitSet(n);
+        int[] toVisit = new int[n];
+        int head = 0, tail = 0;
+        visited.set(center);
+        toVisit[tail++] = center;
+        while (head < tail) {
+            int u = toVisit[head++];
+            for (int i = offsets[u]; i < offsets[u + 1]; i++) {
+                if (!visited.get(neighbors[i])) {
+                    visited.set(neighbors[i]);
+                    toVisit[tail++] = neighbors[i];
+                }
+            }
+        }
+        return visited;
+    }
+}
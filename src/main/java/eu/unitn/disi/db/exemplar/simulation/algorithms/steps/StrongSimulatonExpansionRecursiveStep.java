@@ -18,6 +18,7 @@ package eu.unitn.disi.db.exemplar.simulation.algorithms.steps;
 import eu.unitn.disi.db.command.exceptions.AlgorithmExecutionException;
 import eu.unitn.disi.db.exemplar.core.algorithms.UndirectedUnweightedDiameter;
 
+import eu.unitn.disi.db.exemplar.simulation.core.AnswerFingerprints;
 import eu.unitn.disi.db.exemplar.simulation.core.SimulatedAnswer;
 import eu.unitn.disi.db.exemplar.core.algorithms.steps.GraphSearchStep;
 import eu.unitn.disi.db.grava.graphs.BaseMultigraph;
@@ -28,7 +29,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -43,17 +43,46 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
     //private final HashSet<Long> listed = new HashSet<>();
  
     private int maxDiameter = 0;
+
+    /**
+     * Simulation on the dense ids of the ball, null to use the expanded graph
+     */
+    private final BitSimulation bitSimulation;
+
+    private boolean ballReuse = false;
+    private int maxBallEdges = 0;
+    private AnswerFingerprints fingerprints = null;
      
     public StrongSimulatonExpansionRecursiveStep(int threadNumber, Iterator<Long> kbConcepts, Multigraph query, Multigraph targetSubgraph, int limitComputation, boolean skipSave, Set<Long> whiteList, int memoryLimit, int maxDiameter) {
+        this(threadNumber, kbConcepts, query, targetSubgraph, limitComputation, skipSave, whiteList, memoryLimit, maxDiameter, false);
+    }
+
+    /**
+     *
+     * @param threadNumber
+     * @param kbConcepts
+     * @param query
+     * @param targetSubgraph
+     * @param limitComputation
+     * @param skipSave
+     * @param whiteList
+     * @param memoryLimit
+     * @param maxDiameter
+     * @param bitSimulation true to compute the simulation with a
+     * {@link BitSimulation}
+     */
+    public StrongSimulatonExpansionRecursiveStep(int threadNumber, Iterator<Long> kbConcepts, Multigraph query, Multigraph targetSubgraph, int limitComputation, boolean skipSave, Set<Long> whiteList, int memoryLimit, int maxDiameter, boolean bitSimulation) {
         super(threadNumber, kbConcepts, query, targetSubgraph, limitComputation, skipSave, whiteList, memoryLimit);
         this.maxDiameter = maxDiameter;
+        this.bitSimulation = bitSimulation ? new BitSimulation(query) : null;
     }
 
     @Override
     public Collection<SimulatedAnswer> call() throws Exception {
         SimulatedAnswer temp;
 
-        LinkedHashSet<SimulatedAnswer> relatedQueries = new LinkedHashSet<>(3500);
+        List<SimulatedAnswer> relatedQueries = new ArrayList<>(3500);
+        AnswerFingerprints found = this.fingerprints != null ? this.fingerprints : new AnswerFingerprints();
         if(maxDiameter<1){
             UndirectedUnweightedDiameter dimComp = new UndirectedUnweightedDiameter();
             dimComp.setGraph(query);
@@ -61,7 +90,8 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
             this.maxDiameter = dimComp.getDiameter();
             debug("Diameter %d ", this.maxDiameter);
         }
-        
+        BallExplorer explorer = new BallExplorer(this.graph, this.whiteList, this.maxDiameter, this.ballReuse, this.maxBallEdges);
+        List<Edge> connectedComponent = new ArrayList<>();
 
         
         while (graphNodes.hasNext()) {            
@@ -73,7 +103,9 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
             try {
                 // Get the diameter of the query
                 //Find the Ball with this node as center
-                List<Edge> connectedComponent = findComponentEdges(node, this.maxDiameter, this.graph);
+                if (!explorer.ballOf(node, connectedComponent)) {
+                    continue;
+                }
                 //debug("Seed %s : %s", node, connectedComponent.toString());
                 // Check if the components is actually containing something
                 if ( connectedComponent.size()  > 0) {
@@ -82,7 +114,7 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
                     //}
                     // Put the multigraph in a query
                     //temp = relatedQuery.computeSimulation(connectedComponent);
-                    temp = strongSimulation(query, connectedComponent, node);
+                    temp = bitSimulation != null ? bitSimulation.simulate(connectedComponent, node) : strongSimulation(query, connectedComponent, node);
                     connectedComponent.clear();
                         //
                     if(skipSave){
@@ -94,7 +126,7 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
                         // Check if this component can simulate the query.
                         if (!temp.isMappingComplete()) {
                             error("Incomplete simulation from node %s; \nquery %s \nresult %s ", node, this.query.toString(), temp.buildMatchedGraph().toString());
-                        } else if(!relatedQueries.contains(temp)) {
+                        } else if(found.add(temp)) {
                             relatedQueries.add(temp);
                         }
 
@@ -132,9 +164,38 @@ public class StrongSimulatonExpansionRecursiveStep extends GraphSearchStep<Simul
             watch.reset();*/
         }
 
+        debug("Balls reused %s, skipped %s", explorer.getReused(), explorer.getSkipped());
         return relatedQueries;
     }
 
+    /**
+     *
+     * @param ballReuse true to visit the balls of adjacent centers in the
+     * ball of the first one, see {@link BallExplorer}
+     */
+    public void setBallReuse(boolean ballReuse) {
+        this.ballReuse = ballReuse;
+    }
+
+    /**
+     *
+     * @param maxBallEdges skip the centers with a ball with more edges, 0 for
+     * no limit
+     */
+    public void setMaxBallEdges(int maxBallEdges) {
+        this.maxBallEdges = maxBallEdges;
+    }
+
+    /**
+     *
+     * @param fingerprints the answers found so far, shared with the other
+     * steps to drop the answers found by another thread, null to keep the
+     * answers of this step only
+     */
+    public void setFingerprints(AnswerFingerprints fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
     
     private Set<Long> findComponentNodes(Long node, int diameter, Multigraph searchSpace ) {        
             return findComponentNodes(node, diameter, searchSpace, this.whiteList);               
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Matteo Lissandrini <ml@disi.unitn.eu>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package eu.unitn.disi.db.exemplar.simulation.core;
+
+import com.koloboke.collect.map.hash.HashLongObjMap;
+import com.koloboke.collect.map.hash.HashLongObjMaps;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Set of the simulated answers already found, shared among the search threads.
+ *
+ * The answers are looked up by their 128 bit fingerprint in primitive maps,
+ * split in stripes locked independently. The used edges are compared only
+ * when two answers have the same fingerprint, and the few answers colliding
+ * on the first half of the fingerprint are kept in a set aside.
+ *
+ * @author Matteo Lissandrini <ml@disi.unitn.eu>
+ */
+public class AnswerFingerprints {
+
+    private static final int STRIPES_BITS = 5;
+
+    private final Stripe[] stripes;
+
+    public AnswerFingerprints() {
+        this.stripes = new Stripe[1 << STRIPES_BITS];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds the answer if no answer using the same edges has been added,
+     * the answer must not be modified afterwards
+     *
+     * @param answer
+     * @return true if the answer is new
+     */
+    public boolean add(SimulatedAnswer answer) {
+        long high = answer.getFingerprintHigh();
+        Stripe stripe = stripes[(int) (answer.getFingerprintLow() >>> (Long.SIZE - STRIPES_BITS))];
+        synchronized (stripe) {
+            SimulatedAnswer other = stripe.answers.putIfAbsent(high, answer);
+            if (other == null) {
+                return true;
+            }
+            if (other.getFingerprintLow() == answer.getFingerprintLow() && other.equals(answer)) {
+                return false;
+            }
+            return stripe.collisions.add(answer);
+        }
+    }
+
+    /**
+     *
+     * @return the number of distinct answers added
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.answers.size() + stripe.collisions.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Stripe {
+
+        private final HashLongObjMap<SimulatedAnswer> answers = HashLongObjMaps.newUpdatableMap();
+        private final Set<SimulatedAnswer> collisions = new HashSet<>();
+    }
+}
@@ -59,6 +59,14 @@ public class SimulatedAnswer extends ExemplarAnswer{
     protected Map<Edge, List<Edge>> mappedEdges;
     
     protected Set<Edge> usedEdges; 
+
+    /**
+     * 128 bit fingerprint of the used edges, updated by {@link #map(Edge, Edge)}
+     */
+    protected long fingerprintHigh = 0;
+    protected long fingerprintLow = 0;
+
+    private static final long FINGERPRINT_SEED = 0x9E3779B97F4A7C15L;
    
 
     
@@ -114,6 +122,8 @@ public class SimulatedAnswer extends ExemplarAnswer{
 
         clone.usedEdges = new HashSet<>(this.usedEdges.size() + 2, 1f);
         clone.usedEdges.addAll(this.usedEdges);
+        clone.fingerprintHigh = this.fingerprintHigh;
+        clone.fingerprintLow = this.fingerprintLow;
         
          //clone.mappedEdges = new HashMap<>(query.edgeSet().size() + 2, 1f);
         for (Edge key : this.mappedEdges.keySet()) {
@@ -180,9 +190,40 @@ public class SimulatedAnswer extends ExemplarAnswer{
 
         mappedEdges.get(queryEdge).add(graphEdge);
         
-        usedEdges.add(graphEdge);
-        
+        if (usedEdges.add(graphEdge)) {
+            long key = mix(mix(mix(graphEdge.getSource()) ^ graphEdge.getDestination()) ^ graphEdge.getLabel());
+            fingerprintHigh += key;
+            fingerprintLow += mix(key ^ FINGERPRINT_SEED);
+        }
+
+    }
+
+    /**
+     * Finalizer of splitmix64, spreads the bits of the input on the output
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
 
+    /**
+     * The fingerprint is a sum over the used edges, so it does not depend on
+     * the order in which the edges are mapped: answers using the same edges
+     * have the same fingerprint.
+     *
+     * @return the high 64 bits of the fingerprint of the used edges
+     */
+    public long getFingerprintHigh() {
+        return fingerprintHigh;
+    }
+
+    /**
+     *
+     * @return the low 64 bits of the fingerprint of the used edges
+     */
+    public long getFingerprintLow() {
+        return fingerprintLow;
     }
 
     /**
@@ -386,6 +427,9 @@ public class SimulatedAnswer extends ExemplarAnswer{
         }
         if (obj instanceof SimulatedAnswer) {
             final SimulatedAnswer other = (SimulatedAnswer) obj;
+            if (other.fingerprintHigh != this.fingerprintHigh || other.fingerprintLow != this.fingerprintLow) {
+                return false;
+            }
 
             Set<Edge> otherEdges = other.usedEdges;
             Set<Edge> thisEdges = this.usedEdges;
@@ -413,7 +457,7 @@ public class SimulatedAnswer extends ExemplarAnswer{
 
     @Override
     public int hashCode() {
-        return this.usedEdges.hashCode();
+        return (int) (fingerprintHigh ^ (fingerprintHigh >>> 32));
     }
     
     @Override